@@ -0,0 +1,145 @@
+package bot;
+
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.model.Update;
+import config.AppConfig;
+import okhttp3.OkHttpClient;
+import security.FolderCrypto;
+import service.DriveService;
+import service.FileMetadataCache;
+import service.FolderTreeCache;
+import service.UrlDownloader;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * What all bots in one process share, so another bot token costs a session store and a few small caches
+ * rather than a second copy of everything.
+ *
+ * Shared: the {@link DriveService} and its accounts, the {@link FolderTreeCache} (one crawl and one tree in
+ * memory), the Drive file metadata cache and prefetch listing budget, the update lanes ("bot.workers",
+ * default twice the cores) and upload workers (both split fairly between bots that are busy at the same
+ * time), link downloads, the HTTP connection pools to Telegram and, in webhook mode, one server on
+ * "telegram.webhookPort" with a path per bot.
+ *
+ * Each bot keeps its own sessions, {@link security.SecurityStore}, Telegram file id cache and upload journal,
+ * named after it with {@link AppConfig#forBot}.
+ */
+public class BotHost {
+
+    private final DriveService driveService;
+    private final FolderTreeCache treeCache;
+    private final FileMetadataCache metadata = new FileMetadataCache();
+    private final NavigationPrefetcher.Listings listings = new NavigationPrefetcher.Listings();
+    private final UpdateDispatcher dispatcher;
+    private final UploadScheduler uploads = new UploadScheduler();
+    private final UrlDownloader urls = new UrlDownloader();
+    private final OkHttpClient telegramHttp = new OkHttpClient.Builder()
+            .connectTimeout(75, TimeUnit.SECONDS)
+            .writeTimeout(75, TimeUnit.SECONDS)
+            .readTimeout(75, TimeUnit.SECONDS)
+            .build();
+    private final HttpClient streamHttp = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final List<FileUploaderBot> bots = new CopyOnWriteArrayList<>();
+    private WebhookServer webhookServer;
+    private boolean started;
+
+    public BotHost(DriveService driveService) {
+        this.driveService = driveService;
+        this.treeCache = new FolderTreeCache(driveService);
+        this.dispatcher = new UpdateDispatcher(AppConfig.getInt("bot.workers", Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    /** Names of the bots to host, from "bots" (comma-separated); empty for the single bot of "telegram.token". */
+    public static List<String> configuredBots() {
+        List<String> names = new ArrayList<>();
+        for (String name : AppConfig.get("bots", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            if (!name.matches("[A-Za-z0-9_-]+")) throw new IllegalArgumentException("Bot name '" + name + "' may only use letters, digits, - and _");
+            if (names.contains(name)) throw new IllegalArgumentException("Bot name '" + name + "' is listed twice");
+            names.add(name);
+        }
+        return names;
+    }
+
+    /** A Telegram client on the shared connection pool; "telegram.apiUrl" / "telegram.fileApiUrl" apply to all bots. */
+    public TelegramBot telegramBot(String token) {
+        TelegramBot.Builder builder = new TelegramBot.Builder(token).okHttpClient(telegramHttp);
+        String apiUrl = AppConfig.get("telegram.apiUrl");
+        if (apiUrl != null) builder.apiUrl(apiUrl);
+        String fileApiUrl = AppConfig.get("telegram.fileApiUrl");
+        if (fileApiUrl != null) builder.fileApiUrl(fileApiUrl);
+        return builder.build();
+    }
+
+    DriveService driveService() {
+        return driveService;
+    }
+
+    FolderTreeCache treeCache() {
+        return treeCache;
+    }
+
+    FileMetadataCache metadata() {
+        return metadata;
+    }
+
+    NavigationPrefetcher.Listings listings() {
+        return listings;
+    }
+
+    UploadScheduler uploads() {
+        return uploads;
+    }
+
+    UrlDownloader urls() {
+        return urls;
+    }
+
+    HttpClient streamHttp() {
+        return streamHttp;
+    }
+
+    UpdateDispatcher.Tenant register(FileUploaderBot bot, Consumer<Update> handler) {
+        bots.add(bot);
+        return dispatcher.register(handler);
+    }
+
+    /** Starts the shared tree sync; later calls do nothing. */
+    synchronized void start() {
+        if (started) return;
+        started = true;
+        treeCache.start();
+    }
+
+    /** The webhook server of all bots, started on first use. */
+    synchronized WebhookServer webhookServer() throws IOException {
+        if (webhookServer == null) {
+            WebhookServer server = new WebhookServer(AppConfig.getInt("telegram.webhookPort", 8443));
+            server.setHealthDetail(this::statusSummary);
+            server.start();
+            webhookServer = server;
+        }
+        return webhookServer;
+    }
+
+    /** Drive and cache state, then one line per bot, for the health endpoint. */
+    public String statusSummary() {
+        StringBuilder sb = new StringBuilder("drive: ").append(driveService.healthStatus())
+                .append(", ").append(driveService.async().describe())
+                .append(", uploads queued: ").append(uploads.queued())
+                .append(", ").append(FolderCrypto.getDefault().describe());
+        for (FileUploaderBot bot : bots) {
+            sb.append('\n').append(bot.name().isEmpty() ? "bot" : bot.name()).append(": ").append(bot.botStatus());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,347 @@
+package bot;
+
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
+import com.pengrad.telegrambot.request.EditMessageText;
+import com.pengrad.telegrambot.request.SendMessage;
+import com.pengrad.telegrambot.response.SendResponse;
+import model.FileEntry;
+import model.Folder;
+import security.ProtectionIndex;
+import security.SecurityStore;
+import service.DriveService;
+import session.UserSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Admin multi-select actions on the items of the open folder: move, copy, rename by pattern and trash.
+ *
+ * Each action is sent to Drive as batch requests of up to 100 operations, with a progress message edited
+ * after every batch. Afterwards the session's folder tree, the {@link SecurityStore} and the
+ * {@link ProtectionIndex} are patched to match, so no rescan is needed. Read-only trees (compact mode) cannot be patched; for those the methods return
+ * true and the caller reloads the tree.
+ */
+public class BulkOperations {
+
+    private final TelegramBot bot;
+    private final DriveService driveService;
+    private final SecurityStore securityStore;
+    private final ProtectionIndex protectionIndex;
+
+    public BulkOperations(TelegramBot bot, DriveService driveService, SecurityStore securityStore,
+                          ProtectionIndex protectionIndex) {
+        this.bot = bot;
+        this.driveService = driveService;
+        this.securityStore = securityStore;
+        this.protectionIndex = protectionIndex;
+    }
+
+    /** Folder keyboard in selection mode: every item toggles, actions at the bottom. */
+    public InlineKeyboardMarkup selectionKeyboard(Folder folder, Set<String> selected) {
+        InlineKeyboardMarkup kb = new InlineKeyboardMarkup();
+        for (Folder sub : folder.getSubFolders()) {
+            kb.addRow(new InlineKeyboardButton((selected.contains(sub.getId()) ? "☑ " : "⬜ ") + "📂 " + sub.getName())
+                    .callbackData("sel:t:" + sub.getId()));
+        }
+        for (FileEntry file : folder.getFiles()) {
+            if (file.getId() == null || file.getId().isEmpty()) continue;
+            kb.addRow(new InlineKeyboardButton((selected.contains(file.getId()) ? "☑ " : "⬜ ") + "📄 " + file.getName())
+                    .callbackData("sel:t:" + file.getId()));
+        }
+        kb.addRow(new InlineKeyboardButton("✅ All / none").callbackData("sel:all"));
+        kb.addRow(new InlineKeyboardButton("📦 Move to…").callbackData("bulk:move"),
+                new InlineKeyboardButton("📄 Copy to…").callbackData("bulk:copy"));
+        kb.addRow(new InlineKeyboardButton("✏ Rename…").callbackData("bulk:rename"),
+                new InlineKeyboardButton("🗑 Trash").callbackData("bulk:trash"));
+        kb.addRow(new InlineKeyboardButton("✖ Done").callbackData("sel:cancel"));
+        return kb;
+    }
+
+    /** Ids of all selectable items in the folder. */
+    public static List<String> allIds(Folder folder) {
+        List<String> ids = new ArrayList<>();
+        for (Folder sub : folder.getSubFolders()) ids.add(sub.getId());
+        for (FileEntry f : folder.getFiles()) {
+            if (f.getId() != null && !f.getId().isEmpty()) ids.add(f.getId());
+        }
+        return ids;
+    }
+
+    // =====================
+    // Actions
+    // =====================
+
+    public boolean move(long chatId, UserSession session, Folder dest) throws IOException {
+        Folder current = session.getCurrentFolder();
+        List<String> ids = new ArrayList<>(session.getSelectedIds());
+        if (!checkDestination(chatId, current, dest, ids, true)) return false;
+
+        List<FileEntry> results = driveService.moveAll(ids, current.getId(), dest.getId(), progress(chatId, "Moving", ids.size()));
+        boolean patchable = !current.isReadOnly() && !dest.isReadOnly();
+        int ok = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            if (results.get(i) == null) continue;
+            ok++;
+            if (!patchable) continue;
+            String id = ids.get(i);
+            Folder sub = findSub(current, id);
+            if (sub != null) {
+                current.removeSubFolder(sub);
+                dest.addSubFolder(sub);
+                protectionIndex.subtreeChanged(sub); // now under the destination's locks
+            } else {
+                current.removeFile(id);
+                dest.addFile(results.get(i));
+            }
+        }
+        // Folder ids survive a move, so passwords and direct codes stay valid as they are
+        report(chatId, "Moved", ok, ids.size());
+        return !patchable;
+    }
+
+    public boolean copy(long chatId, UserSession session, Folder dest) throws IOException {
+        Folder current = session.getCurrentFolder();
+        List<String> ids = new ArrayList<>(session.getSelectedIds());
+        if (!checkDestination(chatId, current, dest, ids, false)) return false;
+        boolean patchable = !dest.isReadOnly();
+
+        List<Folder> folders = new ArrayList<>();
+        List<FileEntry> files = new ArrayList<>();
+        for (String id : ids) {
+            Folder sub = findSub(current, id);
+            if (sub != null) folders.add(sub);
+            else files.add(findFile(current, id));
+        }
+        ProgressMessage progress = progress(chatId, "Copying", countItems(folders) + files.size());
+        int ok = 0;
+
+        // Top-level files go straight into the destination
+        List<Folder> fileTargets = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) fileTargets.add(dest);
+        ok += copyFiles(files, fileTargets, patchable, progress);
+
+        // Drive cannot copy folders: recreate them level by level, copying each level's files in one go
+        Map<String, String> securityCopies = new LinkedHashMap<>();
+        List<Folder> level = folders;
+        List<Folder> levelParents = new ArrayList<>();
+        for (int i = 0; i < level.size(); i++) levelParents.add(dest);
+        List<Folder> topCopies = new ArrayList<>();
+        while (!level.isEmpty()) {
+            List<String> names = new ArrayList<>();
+            List<String> parentIds = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                names.add(level.get(i).getName());
+                parentIds.add(levelParents.get(i).getId());
+            }
+            List<FileEntry> created = driveService.createFolders(names, parentIds, progress::update);
+            progress.commit(level.size());
+
+            List<Folder> nextLevel = new ArrayList<>();
+            List<Folder> nextParents = new ArrayList<>();
+            List<FileEntry> levelFiles = new ArrayList<>();
+            List<Folder> levelFileTargets = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                FileEntry c = created.get(i);
+                if (c == null) continue; // the whole subtree of a failed folder is skipped
+                ok++;
+                Folder src = level.get(i);
+                Folder copy = new Folder(c.getId(), c.getName());
+                if (patchable) levelParents.get(i).addSubFolder(copy);
+                if (levelParents.get(i) == dest) topCopies.add(copy);
+                securityCopies.put(src.getId(), c.getId());
+                for (FileEntry f : src.getFiles()) {
+                    if (f.getId() == null || f.getId().isEmpty()) continue;
+                    levelFiles.add(f);
+                    levelFileTargets.add(copy);
+                }
+                for (Folder sub : src.getSubFolders()) {
+                    nextLevel.add(sub);
+                    nextParents.add(copy);
+                }
+            }
+            ok += copyFiles(levelFiles, levelFileTargets, true, progress);
+            level = nextLevel;
+            levelParents = nextParents;
+        }
+        // Copies of protected folders are protected the same way
+        securityStore.copyFolderSecurity(securityCopies);
+        if (patchable) topCopies.forEach(protectionIndex::subtreeChanged);
+        report(chatId, "Copied", ok, progress.total);
+        return !patchable;
+    }
+
+    private int copyFiles(List<FileEntry> files, List<Folder> targets, boolean patchable, ProgressMessage progress) throws IOException {
+        if (files.isEmpty()) return 0;
+        List<String> ids = new ArrayList<>();
+        List<String> targetIds = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            ids.add(files.get(i).getId());
+            targetIds.add(targets.get(i).getId());
+        }
+        List<FileEntry> copies = driveService.copyAll(ids, targetIds, progress::update);
+        progress.commit(files.size());
+        int ok = 0;
+        for (int i = 0; i < copies.size(); i++) {
+            if (copies.get(i) == null) continue;
+            ok++;
+            if (patchable) targets.get(i).addFile(copies.get(i));
+        }
+        return ok;
+    }
+
+    /**
+     * Pattern placeholders: {name} = old name without extension, {ext} = extension with the dot,
+     * {n} = position in the selection. Files keep their extension when the pattern has no {ext}.
+     */
+    public boolean rename(long chatId, UserSession session, String pattern) throws IOException {
+        Folder current = session.getCurrentFolder();
+        List<String> ids = new ArrayList<>(session.getSelectedIds());
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Folder sub = findSub(current, ids.get(i));
+            names.add(sub != null
+                    ? applyPattern(pattern, sub.getName(), false, i + 1)
+                    : applyPattern(pattern, findFile(current, ids.get(i)).getName(), true, i + 1));
+        }
+
+        List<FileEntry> results = driveService.renameAll(ids, names, progress(chatId, "Renaming", ids.size()));
+        boolean patchable = !current.isReadOnly();
+        int ok = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            FileEntry r = results.get(i);
+            if (r == null) continue;
+            ok++;
+            if (!patchable) continue;
+            Folder sub = findSub(current, ids.get(i));
+            if (sub != null) {
+                sub.setName(r.getName());
+            } else {
+                current.replaceFile(r);
+            }
+        }
+        report(chatId, "Renamed", ok, ids.size());
+        return !patchable;
+    }
+
+    static String applyPattern(String pattern, String oldName, boolean isFile, int n) {
+        int dot = isFile ? oldName.lastIndexOf('.') : -1;
+        String base = dot > 0 ? oldName.substring(0, dot) : oldName;
+        String ext = dot > 0 ? oldName.substring(dot) : "";
+        String name = pattern.replace("{name}", base).replace("{n}", String.valueOf(n));
+        return pattern.contains("{ext}") ? name.replace("{ext}", ext) : name + ext;
+    }
+
+    public boolean trash(long chatId, UserSession session) throws IOException {
+        Folder current = session.getCurrentFolder();
+        List<String> ids = new ArrayList<>(session.getSelectedIds());
+        List<FileEntry> results = driveService.trashAll(ids, progress(chatId, "Trashing", ids.size()));
+        boolean patchable = !current.isReadOnly();
+        List<String> goneFolders = new ArrayList<>();
+        int ok = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            if (results.get(i) == null) continue;
+            ok++;
+            String id = ids.get(i);
+            Folder sub = findSub(current, id);
+            if (sub != null) {
+                collectFolderIds(sub, goneFolders);
+                protectionIndex.subtreeRemoved(sub);
+                if (patchable) current.removeSubFolder(sub);
+            } else if (patchable) {
+                current.removeFile(id);
+            }
+        }
+        securityStore.removeFolders(goneFolders);
+        report(chatId, "Trashed", ok, ids.size());
+        return !patchable;
+    }
+
+    // =====================
+    // Helpers
+    // =====================
+
+    private boolean checkDestination(long chatId, Folder current, Folder dest, List<String> ids, boolean move) {
+        if (move && dest.getId().equals(current.getId())) {
+            bot.execute(new SendMessage(chatId, "ℹ The items are already in " + dest.getName() + "."));
+            return false;
+        }
+        for (Folder p = dest; p != null; p = p.getParent()) {
+            if (ids.contains(p.getId())) {
+                bot.execute(new SendMessage(chatId, "🚫 A folder cannot be moved or copied into itself."));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Folder findSub(Folder folder, String id) {
+        for (Folder sub : folder.getSubFolders()) {
+            if (sub.getId().equals(id)) return sub;
+        }
+        return null;
+    }
+
+    private static FileEntry findFile(Folder folder, String id) {
+        for (FileEntry f : folder.getFiles()) {
+            if (id.equals(f.getId())) return f;
+        }
+        throw new IllegalStateException("Selected item " + id + " is no longer in " + folder.getName());
+    }
+
+    private static int countItems(List<Folder> folders) {
+        int n = 0;
+        for (Folder f : folders) {
+            n += 1 + f.getFiles().size() + countItems(f.getSubFolders());
+        }
+        return n;
+    }
+
+    private static void collectFolderIds(Folder f, List<String> out) {
+        out.add(f.getId());
+        for (Folder sub : f.getSubFolders()) collectFolderIds(sub, out);
+    }
+
+    private void report(long chatId, String verb, int ok, int total) {
+        bot.execute(new SendMessage(chatId, (ok == total ? "✅ " : "⚠ ") + verb + " " + ok + " of " + total + " item(s)."
+                + (ok == total ? "" : " The others failed, see the log.")));
+    }
+
+    private ProgressMessage progress(long chatId, String verb, int total) {
+        return new ProgressMessage(chatId, verb, total);
+    }
+
+    /** One message edited after every batch; several Drive calls can add up into one total. */
+    private final class ProgressMessage implements DriveService.BatchProgress {
+        final long chatId;
+        final String verb;
+        final int total;
+        final Integer messageId;
+        int base;
+
+        ProgressMessage(long chatId, String verb, int total) {
+            this.chatId = chatId;
+            this.verb = verb;
+            this.total = total;
+            SendResponse r = bot.execute(new SendMessage(chatId, "⏳ " + verb + " 0/" + total + "…"));
+            this.messageId = r.isOk() && r.message() != null ? r.message().messageId() : null;
+        }
+
+        @Override
+        public void update(int done, int ignored) {
+            if (messageId != null) {
+                bot.execute(new EditMessageText(chatId, messageId, "⏳ " + verb + " " + (base + done) + "/" + total + "…"));
+            }
+        }
+
+        void commit(int finished) {
+            base += finished;
+        }
+    }
+}
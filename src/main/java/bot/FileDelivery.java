@@ -0,0 +1,168 @@
+package bot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.model.request.ChatAction;
+import com.pengrad.telegrambot.request.SendChatAction;
+import com.pengrad.telegrambot.request.SendDocument;
+import com.pengrad.telegrambot.request.SendMessage;
+import com.pengrad.telegrambot.response.SendResponse;
+import config.AppConfig;
+import model.FileEntry;
+import security.FolderCrypto;
+import service.DriveService;
+import service.FileIdCache;
+import service.FileMetadataCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sends Drive files into a chat.
+ *
+ * The first delivery streams the Drive download straight into a multipart sendDocument request
+ * (the pengrad client would need the whole file as byte[] or java.io.File); Telegram's file_id from the
+ * response is cached, so later deliveries of the same content are a plain SendDocument by id.
+ */
+public class FileDelivery {
+
+    private static final long CLOUD_API_UPLOAD_LIMIT = 50L * 1024 * 1024;   // sendDocument limit
+    private static final long LOCAL_API_UPLOAD_LIMIT = 2000L * 1024 * 1024;  // with a local Bot API server
+
+    private final TelegramBot bot;
+    private final DriveService driveService;
+    private final FileIdCache cache;
+    private final FileMetadataCache metadata;
+    private final FolderCrypto crypto = FolderCrypto.getDefault();
+    private final String sendDocumentUrl;
+    private final long uploadLimit;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient http;
+
+    /** @param http for streamed uploads to Telegram; may be shared by all bots in the process */
+    public FileDelivery(TelegramBot bot, DriveService driveService, FileIdCache cache, FileMetadataCache metadata, HttpClient http) {
+        this.bot = bot;
+        this.http = http;
+        this.driveService = driveService;
+        this.cache = cache;
+        this.metadata = metadata;
+        this.sendDocumentUrl = AppConfig.get("telegram.apiUrl", "https://api.telegram.org/bot") + bot.getToken() + "/sendDocument";
+        this.uploadLimit = AppConfig.getLong("telegram.uploadLimitBytes",
+                AppConfig.getBoolean("telegram.localApi", false) ? LOCAL_API_UPLOAD_LIMIT : CLOUD_API_UPLOAD_LIMIT);
+    }
+
+    public void deliver(long chatId, String driveFileId) throws IOException {
+        // usually listed moments ago by the navigation prefetch
+        FileEntry meta = metadata.get(driveFileId);
+        if (meta == null) meta = driveService.getFileMetadata(driveFileId);
+        long size = meta.isEncrypted() ? FolderCrypto.plainLength(meta.getSize()) : meta.getSize();
+        if (meta.isEncrypted() && size > uploadLimit) {
+            // a Drive link would only give the encrypted bytes
+            bot.execute(new SendMessage(chatId, "🔒 " + meta.getName() + " is stored encrypted and too large to send here."));
+            return;
+        }
+        if (meta.isGoogleDoc() || size > uploadLimit) {
+            bot.execute(new SendMessage(chatId, "🔗 " + meta.getName() + " can't be sent here, open it on Drive:\n"
+                    + "https://drive.google.com/uc?id=" + meta.getId()));
+            return;
+        }
+
+        String key = FileIdCache.key(meta.getId(), meta.getMd5Checksum());
+        String cached = cache.get(key);
+        if (cached != null) {
+            SendResponse resp = bot.execute(new SendDocument(chatId, cached));
+            if (resp.isOk()) return;
+            // file_ids are per bot and can expire; fall back to a fresh upload
+            cache.remove(key);
+        }
+
+        bot.execute(new SendChatAction(chatId, ChatAction.upload_document));
+        if (meta.isEncrypted()) {
+            // decrypted chunk by chunk on the way from Drive to Telegram
+            String mime = java.net.URLConnection.guessContentTypeFromName(meta.getName());
+            try (InputStream in = crypto.decrypt(driveService.openFileStream(meta.getId()))) {
+                cache.put(key, streamDocument(chatId, meta.getName(), mime != null ? mime : "application/octet-stream", size, in));
+            }
+            return;
+        }
+        try (InputStream in = driveService.openFileStream(meta.getId())) {
+            cache.put(key, streamDocument(chatId, meta.getName(), meta.getMimeType(), meta.getSize(), in));
+        }
+    }
+
+    /** Uploads a file from local disk (e.g. a spooled export) as a document. */
+    public String sendLocalFile(long chatId, Path path, String fileName, String mimeType) throws IOException {
+        bot.execute(new SendChatAction(chatId, ChatAction.upload_document));
+        try (InputStream in = Files.newInputStream(path)) {
+            return streamDocument(chatId, fileName, mimeType, Files.size(path), in);
+        }
+    }
+
+    /** Largest document the bot can send in the configured mode. */
+    public long getUploadLimit() {
+        return uploadLimit;
+    }
+
+    /** @return the Telegram file_id of the uploaded document */
+    private String streamDocument(long chatId, String name, String mimeType, long size, InputStream content) throws IOException {
+        String boundary = "----drivebot" + UUID.randomUUID().toString().replace("-", "");
+        String fileName = name.replaceAll("[\"\\r\\n]", "_");
+        String mime = mimeType != null ? mimeType : "application/octet-stream";
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"chat_id\"\r\n\r\n" + chatId + "\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"document\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: " + mime + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+
+        InputStream body = new SequenceInputStream(new ByteArrayInputStream(head),
+                new SequenceInputStream(content, new ByteArrayInputStream(tail)));
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> body);
+        HttpRequest.BodyPublisher publisher = size >= 0
+                ? HttpRequest.BodyPublishers.fromPublisher(stream, head.length + size + tail.length)
+                : stream;
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(sendDocumentUrl))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(publisher)
+                .build();
+        HttpResponse<InputStream> response;
+        try {
+            response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending " + name, e);
+        }
+        JsonNode json;
+        try (InputStream in = response.body()) {
+            json = mapper.readTree(in);
+        }
+        if (!json.path("ok").asBoolean()) {
+            throw new IOException("sendDocument failed: " + json.path("description").asText(String.valueOf(response.statusCode())));
+        }
+        return fileIdOf(json.path("result"));
+    }
+
+    /** Telegram may file a document under another media type (e.g. an .mp4 comes back as "video"). */
+    private static String fileIdOf(JsonNode message) {
+        for (String field : List.of("document", "video", "audio", "animation", "voice", "sticker")) {
+            JsonNode media = message.path(field);
+            if (media.hasNonNull("file_id")) return media.get("file_id").asText();
+        }
+        JsonNode photo = message.path("photo");
+        if (photo.isArray() && photo.size() > 0) return photo.get(photo.size() - 1).path("file_id").asText(null);
+        return null;
+    }
+}
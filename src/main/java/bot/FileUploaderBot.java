@@ -5,48 +5,274 @@ import com.pengrad.telegrambot.UpdatesListener;
 import com.pengrad.telegrambot.model.*;
 import com.pengrad.telegrambot.model.request.*;
 import com.pengrad.telegrambot.request.*;
-import com.pengrad.telegrambot.response.GetFileResponse;
+import com.pengrad.telegrambot.response.BaseResponse;
 import com.pengrad.telegrambot.response.SendResponse;
+import config.AppConfig;
+import model.FileEntry;
 import model.Folder;
+import security.AuditLog;
+import security.FolderCrypto;
+import security.ProtectionIndex;
+import service.DriveNotReadyException;
 import service.DriveService;
+import service.FileIdCache;
+import service.FileMetadataCache;
+import service.FolderTreeCache;
+import service.SpoolManager;
+import service.UploadJournal;
+import session.ChatRouter;
 import session.SessionManager;
+import session.SharedFileSessionStore;
 import session.UserSession;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
 
 public class FileUploaderBot {
 
-    private final String TokenID = "XXX";//Replace this
+    private static final String TokenID = "XXX";//Replace this
+    private final String name;
+    private final BotHost host;
     private final TelegramBot bot;
     private final DriveService driveService;
     private final SessionManager sessionManager;
     private final security.SecurityStore securityStore;
+    private final FileDelivery fileDelivery;
+    private final SpoolManager spool = SpoolManager.getDefault();
+    private final FolderExporter folderExporter;
+    private final BulkOperations bulkOperations;
+    private final FolderTreeCache treeCache;
+    private final UploadQueue uploadQueue;
+    private final ProtectionIndex protectionIndex;
+    private final NavigationPrefetcher prefetcher;
+    private final LiveFolderViews liveViews;
+    private final UpdateDispatcher.Tenant dispatcher;
+    private final java.util.Map<Long, Long> busyNotices = new java.util.concurrent.ConcurrentHashMap<>(); // chat -> last notice nanos
+    private final AuditLog auditLog;
 
     public FileUploaderBot(DriveService driveService, SessionManager sessionManager, security.SecurityStore securityStore) {
-        this.bot = new TelegramBot(TokenID);
-        this.driveService = driveService;
+        this(new BotHost(driveService), "", sessionManager, securityStore);
+    }
+
+    public FileUploaderBot(TelegramBot bot, DriveService driveService, SessionManager sessionManager, security.SecurityStore securityStore) {
+        this(new BotHost(driveService), "", bot, sessionManager, securityStore);
+    }
+
+    /** Bot "name" of the host, with the token "bot.NAME.token" ("telegram.token" for the unnamed bot). */
+    public FileUploaderBot(BotHost host, String name, SessionManager sessionManager, security.SecurityStore securityStore) {
+        this(host, name, host.telegramBot(name.isEmpty()
+                ? AppConfig.get("telegram.token", TokenID)
+                : requireToken(name)), sessionManager, securityStore);
+    }
+
+    public FileUploaderBot(BotHost host, String name, TelegramBot bot, SessionManager sessionManager, security.SecurityStore securityStore) {
+        this.name = name;
+        this.host = host;
+        this.bot = bot;
+        this.driveService = host.driveService();
         this.sessionManager = sessionManager;
         this.securityStore = securityStore;
+        this.auditLog = AuditLog.forBot(name);
+        FileMetadataCache metadataCache = host.metadata();
+        this.fileDelivery = new FileDelivery(bot, driveService, new FileIdCache(new java.io.File(
+                AppConfig.forBot(AppConfig.get("telegram.fileIdCache", "fileid-cache.json"), name))), metadataCache, host.streamHttp());
+        this.prefetcher = new NavigationPrefetcher(driveService, metadataCache, host.listings(), this::renderFolder);
+        this.folderExporter = new FolderExporter(bot, driveService, fileDelivery, spool);
+        this.protectionIndex = new ProtectionIndex(securityStore);
+        this.bulkOperations = new BulkOperations(bot, driveService, securityStore, protectionIndex);
+        this.treeCache = host.treeCache();
+        treeCache.addListener(protectionIndex::rebuild);
+        this.liveViews = new LiveFolderViews(bot, this::renderFolder);
+        treeCache.addListener(liveViews::treePublished);
+        // Telegram file ids in the journal only work with the token that received them
+        UploadJournal journal = name.isEmpty() ? UploadJournal.getDefault()
+                : new UploadJournal(java.nio.file.Path.of(AppConfig.forBot(AppConfig.get("upload.journalDir", "upload-journal"), name)));
+        this.uploadQueue = new UploadQueue(bot, name, driveService, spool, journal, host.uploads(), host.urls());
+        this.dispatcher = host.register(this, this::handleUpdate);
     }
 
+    private static String requireToken(String name) {
+        String token = AppConfig.get("bot." + name + ".token");
+        if (token == null) throw new IllegalStateException("No token for bot '" + name + "': set bot." + name + ".token");
+        return token;
+    }
+
+    /** The name this bot is hosted under; empty for a single bot. */
+    public String name() {
+        return name;
+    }
+
+    /** Drive connection state, navigation prefetch hit rates and live folder views, for the health endpoint. */
+    public String statusSummary() {
+        return "drive: " + driveService.healthStatus() + ", " + botStatus() + ", " + FolderCrypto.getDefault().describe();
+    }
+
+    /** This bot's part of the status, without what the host shares. */
+    String botStatus() {
+        return prefetcher.describe() + ", live views: " + liveViews.size() + " (" + liveViews.edits() + " edits)"
+                + ", " + dispatcher.describe();
+    }
 
+    /**
+     * Starts update ingestion. With "telegram.webhookUrl" configured, updates are received by the host's
+     * {@link WebhookServer}; otherwise, or if registering the webhook fails, long polling is used.
+     * Either way the receiver only classifies each update and enqueues it on the {@link UpdateDispatcher}
+     * ({@link #admit}), so a slow update never holds up the next and uploads cannot crowd out taps.
+     */
     public void start() {
+        host.start();
+        // uploads cut off by the last stop are finished as soon as Drive is connected
+        driveService.whenReady().thenRun(uploadQueue::resumePending);
+
+        String webhookUrl = AppConfig.get("telegram.webhookUrl");
+        if (webhookUrl != null && startWebhook(webhookUrl)) {
+            return;
+        }
+        startPolling();
+    }
+
+    private boolean startWebhook(String webhookUrl) {
+        // All instances behind one load balancer must share the secret
+        String secret = AppConfig.get("telegram.webhookSecret", java.util.UUID.randomUUID().toString());
+        // several bots on one server: each gets its own path below the configured one
+        String suffix = name.isEmpty() ? "" : "/" + name;
+        String path = AppConfig.get("telegram.webhookPath", "/webhook") + suffix;
+        WebhookServer server = null;
+        WebhookServer.Endpoint endpoint = null;
+        try {
+            server = host.webhookServer();
+            endpoint = server.addEndpoint(path, secret, this::admit);
+
+            BaseResponse resp = bot.execute(new SetWebhook()
+                    .url(webhookUrl + suffix)
+                    .secretToken(secret)
+                    .maxConnections(AppConfig.getInt("telegram.webhookMaxConnections", 40)));
+            if (!resp.isOk()) {
+                throw new IllegalStateException("setWebhook failed: " + resp.description());
+            }
+            if (sessionManager.getStore() instanceof SharedFileSessionStore shared) {
+                // Several processes share sessions: route each chat to its owner on the hash ring
+                ChatRouter router = new ChatRouter();
+                long selfId = shared.joinCluster(server.port(), router);
+                endpoint.setForwarder(new UpdateForwarder(router, selfId, path, secret));
+                System.out.println("Joined session cluster as worker " + selfId);
+            }
+            System.out.println("Receiving updates by webhook on port " + server.port() + " at " + path);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Webhook mode unavailable, falling back to long polling: " + e.getMessage());
+            if (endpoint != null) server.removeEndpoint(path);
+            return false;
+        }
+    }
+
+    private void startPolling() {
+        // getUpdates is rejected while a webhook is registered
+        bot.execute(new DeleteWebhook());
         bot.setUpdatesListener(updates -> {
             for (Update update : updates) {
-                if (update.message() != null) {
-                    handleMessage(update.message());
-                } else if (update.callbackQuery() != null) {
-                    handleCallback(update.callbackQuery());
-                }
+                admit(update);
             }
             return UpdatesListener.CONFIRMED_UPDATES_ALL;
         });
     }
 
+    /** Queues an update by its class; tells the user when it was refused, or queued behind a backlog. */
+    private void admit(Update update) {
+        UpdateDispatcher.Admission admission = dispatcher.dispatch(update, classify(update));
+        if (admission == UpdateDispatcher.Admission.QUEUED) return;
+        boolean shed = admission == UpdateDispatcher.Admission.SHED;
+        long chatId = UpdateDispatcher.chatIdOf(update);
+        if (!shed) {
+            // a burst of files gets one notice, not one per file
+            long now = System.nanoTime();
+            Long last = busyNotices.get(chatId);
+            if (last != null && now - last < java.util.concurrent.TimeUnit.SECONDS.toNanos(30)) return;
+            if (busyNotices.size() > 10_000) busyNotices.clear();
+            busyNotices.put(chatId, now);
+        }
+        String text = shed ? "⏳ The bot is very busy right now, please try again in a minute."
+                : "⏳ The bot is busy right now; your request is queued and will be handled shortly.";
+        // Sent without waiting: the receiving thread must stay free
+        if (update.callbackQuery() != null) {
+            bot.execute(new AnswerCallbackQuery(update.callbackQuery().id()).text(text), ignoreReply());
+        } else if (chatId != 0) {
+            bot.execute(new SendMessage(chatId, text), ignoreReply());
+        }
+    }
+
+    // Uploads and link downloads are the bulk work; admin screens and bulk edits come next; then text, then taps
+    static UpdateDispatcher.Priority classify(Update update) {
+        Message msg = update.message();
+        if (msg != null) {
+            if (msg.document() != null || (msg.photo() != null && msg.photo().length > 0)) return UpdateDispatcher.Priority.UPLOAD;
+            String text = msg.text();
+            if (text != null && text.trim().toLowerCase(java.util.Locale.ROOT).startsWith("/url")) return UpdateDispatcher.Priority.UPLOAD;
+            return UpdateDispatcher.Priority.COMMAND;
+        }
+        CallbackQuery callback = update.callbackQuery();
+        String data = callback == null ? null : callback.data();
+        if (data != null && data.startsWith("zip:")) return UpdateDispatcher.Priority.UPLOAD;
+        if (data != null && (data.startsWith("admin:") || data.startsWith("bulk:"))) return UpdateDispatcher.Priority.ADMIN;
+        return UpdateDispatcher.Priority.CALLBACK;
+    }
+
+    private static <T extends BaseRequest<T, R>, R extends BaseResponse> com.pengrad.telegrambot.Callback<T, R> ignoreReply() {
+        return new com.pengrad.telegrambot.Callback<>() {
+            @Override
+            public void onResponse(T request, R response) {
+            }
+
+            @Override
+            public void onFailure(T request, IOException e) {
+                System.err.println("Busy notice failed: " + e.getMessage());
+            }
+        };
+    }
+
+    private void handleUpdate(Update update) {
+        try {
+            if (update.message() != null) {
+                handleMessage(update.message());
+            } else if (update.callbackQuery() != null) {
+                handleCallback(update.callbackQuery());
+            }
+        } catch (RuntimeException e) {
+            DriveNotReadyException notReady = driveNotReadyCause(e);
+            if (notReady == null) throw e;
+            // Drive still connecting and nothing cached to answer from
+            bot.execute(new SendMessage(UpdateDispatcher.chatIdOf(update), "⏳ " + notReady.getMessage()));
+        } finally {
+            sessionManager.saveSession(UpdateDispatcher.chatIdOf(update));
+        }
+    }
+
+    private static DriveNotReadyException driveNotReadyCause(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof DriveNotReadyException d) return d;
+        }
+        return null;
+    }
+
+    // Get or create the chat's session; sessions read from a shared store get their folders re-attached
+    private UserSession sessionFor(long chatId) {
+        UserSession session = sessionManager.getSession(chatId);
+        if (session == null) {
+            session = sessionManager.createSession(chatId);
+        }
+        if (session.needsFolderResolution()) {
+            ensureRootsLoaded(session);
+            List<Folder> roots = session.getRootFolders();
+            session.resolveFolders(id -> findFolderById(roots, id));
+        } else if (session.getRootFolders() != null && !session.getRootFolders().isEmpty()) {
+            // pick up background syncs (never blocks: a session with a tree means the cache has one too)
+            ensureRootsLoaded(session);
+        }
+        return session;
+    }
+
     // =====================
     // handleMessage(Message)
     // =====================
@@ -55,24 +281,25 @@ public class FileUploaderBot {
         Long chatId = (msg.chat() != null) ? msg.chat().id() : null;
         if (chatId == null) return;
 
-        UserSession session = sessionManager.getSession(chatId);
-        if (session == null) {
-            session = sessionManager.createSession(chatId);
-        }
+        UserSession session = sessionFor(chatId);
 
         // ===== 1) FILES FIRST: document / photo upload handling =====
         // Accept files if:
         //   - user clicked "Upload Here" (waitingForUpload == true), OR
         //   - a current folder is open (be forgiving)
         if (msg.document() != null || (msg.photo() != null && msg.photo().length > 0)) {
-            if (session.getCurrentFolder() == null) {
-                bot.execute(new SendMessage(chatId, "Please choose a folder first (📁 Browse) and then try again."));
-                return;
-            }
+            Folder folder = uploadTarget(chatId, session);
+            if (folder == null) return;
             try {
-                uploadIncomingTelegramFile(msg, session);
+                UploadQueue.Source source = UploadQueue.Source.of(msg);
+                UploadJournal.Job job = uploadQueue.begin(chatId, userName(msg), source, folder, isEncrypted(folder));
+                if (job == null) {
+                    bot.execute(new SendMessage(chatId, "⏳ " + source.name() + " is already being uploaded to: " + folder.getName()));
+                    return;
+                }
                 session.setWaitingForUpload(false); // reset if it was set
-                bot.execute(new SendMessage(chatId, "✅ File uploaded to: " + session.getCurrentFolder().getName()));
+                // Runs on the upload workers (small files first); this lane is free for the chat's next update
+                replyWhenUploaded(chatId, folder, uploadQueue.submit(job));
             } catch (Exception ex) {
                 ex.printStackTrace();
                 bot.execute(new SendMessage(chatId, "❌ Upload failed: " + ex.getMessage()));
@@ -97,10 +324,37 @@ public class FileUploaderBot {
             return;
         }
 
+        // ===== Upload from a link =====
+        if (text.toLowerCase(java.util.Locale.ROOT).startsWith("/url")) {
+            String url = text.substring("/url".length()).trim();
+            if (url.isEmpty()) {
+                bot.execute(new SendMessage(chatId, "Send /url followed by a link, e.g. /url https://example.com/video.mp4"));
+                return;
+            }
+            Folder folder = uploadTarget(chatId, session);
+            if (folder == null) return;
+            session.setWaitingForUpload(false);
+            String user = userName(msg);
+            boolean encrypt = isEncrypted(folder);
+            // The probe waits on a remote server; the chat's lane moves on and the reply comes from the fetch pool
+            uploadQueue.probeUrl(url).whenComplete((probe, error) -> {
+                if (error != null) {
+                    bot.execute(new SendMessage(chatId, "❌ Could not fetch the link: " + error.getMessage()));
+                    return;
+                }
+                bot.execute(new SendMessage(chatId, "⏳ Fetching " + probe.name()
+                        + (probe.length() >= 0 ? " (" + formatBytes(probe.length()) + ")" : "") + " into: " + folder.getName()));
+                replyWhenUploaded(chatId, folder, uploadQueue.submitUrl(chatId, user, probe, folder, encrypt));
+            });
+            return;
+        }
+
         if (awaiting != null) {
             switch (awaiting) {
                 case "ADMIN_PWD" -> {
-                    if (securityStore.checkAdminPassword(text)) {
+                    boolean ok = securityStore.checkAdminPassword(text);
+                    audit(msg, ok ? AuditLog.Type.ADMIN_LOGIN : AuditLog.Type.ADMIN_LOGIN_FAILED, null, null);
+                    if (ok) {
                         session.setAdminAuthenticated(true);
                         session.setMode(UserSession.Mode.ADMIN);
                         session.setAwaitingWhat(null);
@@ -121,6 +375,12 @@ public class FileUploaderBot {
                     bot.execute(new SendMessage(chatId, "Admin menu:").replyMarkup(adminHomeKeyboard()));
                     return;
                 }
+                case "AUDIT_QUERY" -> {
+                    session.setAwaitingWhat(null);
+                    if (!session.isAdminAuthenticated()) return;
+                    showAuditEvents(chatId, session, text);
+                    return;
+                }
                 case "DIRECT_FOLDER_NAME" -> {
                     // ✅ ensure roots loaded
                     ensureRootsLoaded(session);
@@ -137,12 +397,37 @@ public class FileUploaderBot {
                     return;
                 }
 
+                case "BULK_MOVE", "BULK_COPY" -> {
+                    if (!session.isAdminAuthenticated() || !session.isSelecting()) { session.setAwaitingWhat(null); return; }
+                    ensureRootsLoaded(session);
+                    Folder dest = resolveFolderByInput(session.getRootFolders(), text);
+                    if (dest == null) {
+                        bot.execute(new SendMessage(chatId,
+                                "Folder not found. Try again (name, path like Parent/Sub, or folder ID):"));
+                        return;
+                    }
+                    session.setAwaitingWhat(null);
+                    runBulk(chatId, session, () -> "BULK_MOVE".equals(awaiting)
+                            ? bulkOperations.move(chatId, session, dest)
+                            : bulkOperations.copy(chatId, session, dest));
+                    return;
+                }
+                case "BULK_RENAME" -> {
+                    if (!session.isAdminAuthenticated() || !session.isSelecting()) { session.setAwaitingWhat(null); return; }
+                    session.setAwaitingWhat(null);
+                    String pattern = text;
+                    runBulk(chatId, session, () -> bulkOperations.rename(chatId, session, pattern));
+                    return;
+                }
+
                 default -> { /* patterned awaits handled below */ }
             }
 
             if (awaiting.startsWith("DIRECT_CODE:")) {
                 String fid = awaiting.substring("DIRECT_CODE:".length());
-                if (securityStore.hasDirectAccess(fid, text)) {
+                boolean ok = securityStore.hasDirectAccess(fid, text);
+                audit(msg, ok ? AuditLog.Type.DIRECT_CODE : AuditLog.Type.DIRECT_CODE_FAILED, fid, null);
+                if (ok) {
                     Folder root = findFolderById(session.getRootFolders(), fid);
                     session.setMode(UserSession.Mode.DIRECT_ACCESS);
                     session.setDirectAccessRoot(root);
@@ -151,8 +436,7 @@ public class FileUploaderBot {
                     session.getUnlockedFolderIds().add(fid);
 
                     InlineKeyboardMarkup kb = buildFolderKeyboard(root, false, true, root.getId());
-                    bot.execute(new SendMessage(chatId,
-                            "✅ Direct access granted to: " + root.getName()).replyMarkup(kb));
+                    sendFolderView(chatId, "✅ Direct access granted to: " + root.getName(), root, viewVariant(session), kb);
                 } else {
                     bot.execute(new SendMessage(chatId, "❌ Invalid code. Try again:"));
                 }
@@ -161,12 +445,20 @@ public class FileUploaderBot {
 
 
             if (awaiting.startsWith("FOLDER_PWD:")) {
-                String folderId = awaiting.substring("FOLDER_PWD:".length());
-                String expected = securityStore.getFolderPassword(folderId);
-                if (expected == null || expected.isBlank() || expected.equals(text)) {
-                    session.getUnlockedFolderIds().add(folderId);
+                String lockedId = awaiting.substring("FOLDER_PWD:".length());
+                String expected = securityStore.getFolderPassword(lockedId);
+                boolean ok = expected == null || expected.isBlank() || expected.equals(text);
+                audit(msg, ok ? AuditLog.Type.FOLDER_UNLOCK : AuditLog.Type.FOLDER_UNLOCK_FAILED, lockedId, null);
+                if (ok) {
+                    session.getUnlockedFolderIds().add(lockedId);
                     session.setAwaitingWhat(null);
+                    // the folder that was tapped, which may lie below the unlocked one
+                    String folderId = session.getPendingFolderId() != null ? session.getPendingFolderId() : lockedId;
+                    session.setPendingFolderId(null);
+                    if (askForFolderPassword(chatId, session, folderId)) return; // a further lock on the way
+                    ensureRootsLoaded(session);
                     Folder f = findFolderById(session.getRootFolders(), folderId);
+                    if (f == null) return;
                     session.setCurrentFolder(f);
                     InlineKeyboardMarkup kb = buildFolderKeyboard(
                             f,
@@ -174,7 +466,7 @@ public class FileUploaderBot {
                             session.getMode() == UserSession.Mode.DIRECT_ACCESS,
                             session.getDirectAccessRoot() != null ? session.getDirectAccessRoot().getId() : null
                     );
-                    bot.execute(new SendMessage(chatId, "🔓 Access granted to: " + f.getName()).replyMarkup(kb));
+                    sendFolderView(chatId, "🔓 Access granted to: " + f.getName(), f, viewVariant(session), kb);
                 } else {
                     bot.execute(new SendMessage(chatId, "❌ Incorrect password, please try again"));
                 }
@@ -224,14 +516,12 @@ public class FileUploaderBot {
         String data = (callback.data() != null) ? callback.data() : "";
 
         // ✅ Ensure session exists
-        UserSession session = sessionManager.getSession(chatId);
-        if (session == null) {
-            session = sessionManager.createSession(chatId);
-        }
+        UserSession session = sessionFor(chatId);
 
         // ===== Global actions =====
         if ("finish".equals(data)) {
             sessionManager.removeSession(chatId); // or manually reset
+            liveViews.closed(chatId);
             bot.execute(new SendMessage(chatId, "👋 Session finished. Use /start to begin again."));
             return;
         }
@@ -244,14 +534,14 @@ public class FileUploaderBot {
             if (current != null && current.getParent() != null) {
                 Folder parent = current.getParent();
                 session.setCurrentFolder(parent);
-                InlineKeyboardMarkup kb = buildFolderKeyboard(
-                        parent,
-                        session.getMode() == UserSession.Mode.ADMIN && session.isAdminAuthenticated(),
-                        false,
-                        null
-                );
-                bot.execute(new EditMessageText(chatId, messageId, "📂 Folder: " + parent.getName()).replyMarkup(kb));
+                String variant = viewVariant(session);
+                NavigationPrefetcher.Prepared p = prefetcher.take(parent.getId(), variant, session.getRootFolders());
+                FolderView view = p != null ? p.view() : renderFolder(parent, variant);
+                bot.execute(new EditMessageText(chatId, messageId, view.title()).replyMarkup(view.keyboard()));
+                liveViews.opened(chatId, messageId, parent, variant, view);
+                prefetcher.visited(current.getId(), parent, session.getRootFolders(), variant);
             } else {
+                if (current != null) prefetcher.moved(current.getId(), NavigationStats.ROOT); // showRootFolders prepares the rest
                 showRootFolders(chatId, messageId);
             }
             return;
@@ -302,6 +592,16 @@ public class FileUploaderBot {
             return;
         }
 
+        if ("admin:audit".equals(data)) {
+            if (!session.isAdminAuthenticated()) {
+                bot.execute(new SendMessage(chatId, "Not authenticated."));
+                return;
+            }
+            session.setAwaitingWhat("AUDIT_QUERY");
+            bot.execute(new SendMessage(chatId, "Send a chat id, a folder (name, path or ID), or \"all\" for the latest events:"));
+            return;
+        }
+
         if ("admin:change_pwd".equals(data)) {
             if (!session.isAdminAuthenticated()) {
                 bot.execute(new SendMessage(chatId, "Not authenticated."));
@@ -333,24 +633,123 @@ public class FileUploaderBot {
                 }
             }
 
-            if (folderRequiresPassword(session, folderId)) {
-                session.setAwaitingWhat("FOLDER_PWD:" + folderId);
-                session.setPendingFolderId(folderId);
-                bot.execute(new SendMessage(chatId, "🔐 This folder is protected. Enter password:"));
-                return;
-            }
+            if (askForFolderPassword(chatId, session, folderId)) return;
 
-            Folder target = findFolderById(session.getRootFolders(), folderId);
+            if (session.getRootFolders() == null || session.getRootFolders().isEmpty()) {
+                // a button from before a restart: this session has no tree yet
+                ensureRootsLoaded(session);
+            }
+            // Prepared in the background when this tap was predicted; otherwise search the tree
+            String variant = viewVariant(session);
+            NavigationPrefetcher.Prepared p = prefetcher.take(folderId, variant, session.getRootFolders());
+            Folder target = p != null ? p.folder() : findFolderById(session.getRootFolders(), folderId);
             if (target != null) {
                 session.setCurrentFolder(target);
-                InlineKeyboardMarkup kb = buildFolderKeyboard(
-                        target,
-                        session.getMode() == UserSession.Mode.ADMIN && session.isAdminAuthenticated(),
-                        session.getMode() == UserSession.Mode.DIRECT_ACCESS,
-                        session.getDirectAccessRoot() != null ? session.getDirectAccessRoot().getId() : null
-                );
-                bot.execute(new EditMessageText(chatId, messageId, "📂 Folder: " + target.getName()).replyMarkup(kb));
+                FolderView view = p != null ? p.view() : renderFolder(target, variant);
+                bot.execute(new EditMessageText(chatId, messageId, view.title()).replyMarkup(view.keyboard()));
+                liveViews.opened(chatId, messageId, target, variant, view);
+                Folder from = target.getParent();
+                prefetcher.visited(from != null ? from.getId() : NavigationStats.ROOT, target, session.getRootFolders(), variant);
+            }
+            return;
+        }
+
+        // ===== File delivery =====
+        if (data.startsWith("file:")) {
+            String fileId = data.substring("file:".length());
+            // Only files of the open folder, which already passed the password/direct-access checks
+            Folder current = session.getCurrentFolder();
+            FileEntry entry = null;
+            if (current != null) {
+                for (FileEntry f : current.getFiles()) {
+                    if (fileId.equals(f.getId())) { entry = f; break; }
+                }
+            }
+            if (entry == null) {
+                bot.execute(new SendMessage(chatId, "🚫 That file is not in the open folder."));
+                return;
+            }
+            try {
+                fileDelivery.deliver(chatId, fileId);
+            } catch (Exception e) {
+                e.printStackTrace();
+                bot.execute(new SendMessage(chatId, "❌ Could not send " + entry.getName() + ": " + e.getMessage()));
+            }
+            return;
+        }
+
+        // ===== Folder export =====
+        if (data.startsWith("zip:")) {
+            // Only the open folder, which already passed the password/direct-access checks
+            Folder current = session.getCurrentFolder();
+            if (current == null || !current.getId().equals(data.substring("zip:".length()))) {
+                bot.execute(new SendMessage(chatId, "🚫 Open the folder first to download it."));
+                return;
+            }
+            folderExporter.exportAsync(chatId, current, lockedFor(session));
+            return;
+        }
+
+        // ===== Admin multi-select =====
+        if (data.startsWith("sel:") || data.startsWith("bulk:")) {
+            Folder current = session.getCurrentFolder();
+            if (!session.isAdminAuthenticated() || current == null) { bot.execute(new SendMessage(chatId, "Not authenticated.")); return; }
+            switch (data) {
+                case "sel:start" -> session.setSelecting(true);
+                case "sel:all" -> {
+                    List<String> all = BulkOperations.allIds(current);
+                    if (session.getSelectedIds().containsAll(all)) session.getSelectedIds().clear();
+                    else session.getSelectedIds().addAll(all);
+                }
+                case "sel:cancel" -> {
+                    session.setSelecting(false);
+                    session.setAwaitingWhat(null);
+                    FolderView view = renderFolder(current, "admin");
+                    bot.execute(new EditMessageText(chatId, messageId, view.title()).replyMarkup(view.keyboard()));
+                    liveViews.opened(chatId, messageId, current, "admin", view);
+                    return;
+                }
+                case "bulk:move", "bulk:copy", "bulk:rename", "bulk:trash", "bulk:trash:yes" -> {
+                    if (session.getSelectedIds().isEmpty()) {
+                        bot.execute(new SendMessage(chatId, "Select at least one item first."));
+                        return;
+                    }
+                    int n = session.getSelectedIds().size();
+                    switch (data) {
+                        case "bulk:move" -> {
+                            session.setAwaitingWhat("BULK_MOVE");
+                            bot.execute(new SendMessage(chatId, "📦 Move " + n + " item(s) to which folder? (name, path like Parent/Sub, or folder ID)"));
+                        }
+                        case "bulk:copy" -> {
+                            session.setAwaitingWhat("BULK_COPY");
+                            bot.execute(new SendMessage(chatId, "📄 Copy " + n + " item(s) to which folder? (name, path like Parent/Sub, or folder ID)"));
+                        }
+                        case "bulk:rename" -> {
+                            session.setAwaitingWhat("BULK_RENAME");
+                            bot.execute(new SendMessage(chatId, "✏ New name pattern for " + n + " item(s).\n"
+                                    + "{name} = old name, {n} = number, {ext} = extension (kept automatically if omitted).\n"
+                                    + "Example: Trip 2024 - {n}"));
+                        }
+                        case "bulk:trash" -> bot.execute(new SendMessage(chatId, "🗑 Move " + n + " item(s) to the Drive trash?")
+                                .replyMarkup(new InlineKeyboardMarkup(new InlineKeyboardButton[]{
+                                        new InlineKeyboardButton("🗑 Yes, trash").callbackData("bulk:trash:yes"),
+                                        new InlineKeyboardButton("✖ Cancel").callbackData("sel:cancel")})));
+                        default -> runBulk(chatId, session, () -> bulkOperations.trash(chatId, session));
+                    }
+                    return;
+                }
+                default -> {
+                    if (!data.startsWith("sel:t:")) return;
+                    String id = data.substring("sel:t:".length());
+                    if (!session.getSelectedIds().remove(id) && BulkOperations.allIds(current).contains(id)) {
+                        session.getSelectedIds().add(id);
+                    }
+                }
             }
+            liveViews.closed(chatId); // a selection keyboard now, not to be overwritten by a refresh
+            bot.execute(new EditMessageText(chatId, messageId,
+                    "☑ Select items in " + current.getName() + " (" + session.getSelectedIds().size() + " selected)")
+                    .replyMarkup(bulkOperations.selectionKeyboard(current, session.getSelectedIds())));
             return;
         }
 
@@ -371,6 +770,28 @@ public class FileUploaderBot {
             return;
         }
 
+        if (data.startsWith("admin:encrypt:")) {
+            if (!session.isAdminAuthenticated()) { bot.execute(new SendMessage(chatId, "Not authenticated.")); return; }
+            String fid = data.substring("admin:encrypt:".length());
+            boolean on = !securityStore.isFolderEncrypted(fid);
+            securityStore.setFolderEncrypted(fid, on);
+            Folder current = session.getCurrentFolder();
+            if (current != null && current.getId().equals(fid)) {
+                current.touch(); // the button shows the setting
+                FolderView view = renderFolder(current, "admin");
+                bot.execute(new EditMessageText(chatId, messageId, view.title()).replyMarkup(view.keyboard()));
+                liveViews.opened(chatId, messageId, current, "admin", view);
+                if (!on && isEncrypted(current)) {
+                    bot.execute(new SendMessage(chatId, "🛡 Still encrypted: a parent folder encrypts its subfolders."));
+                    return;
+                }
+            }
+            bot.execute(new SendMessage(chatId, on
+                    ? "🛡 New uploads into this folder and its subfolders will be stored encrypted."
+                    : "🛡 New uploads into this folder are no longer encrypted. Files already uploaded stay encrypted."));
+            return;
+        }
+
         if (data.startsWith("admin:adddirect:")) {
             if (!session.isAdminAuthenticated()) { bot.execute(new SendMessage(chatId, "Not authenticated.")); return; }
             String fid = data.substring("admin:adddirect:".length());
@@ -398,7 +819,8 @@ public class FileUploaderBot {
                 return;
             }
             session.setWaitingForUpload(true);
-            bot.execute(new SendMessage(chatId, "📤 Send the file now to upload into: " + session.getCurrentFolder().getName()));
+            bot.execute(new SendMessage(chatId, "📤 Send the file now to upload into: " + session.getCurrentFolder().getName()
+                    + "\n(or /url followed by a link to fetch it from the web)"));
             return;
         }
 
@@ -420,12 +842,16 @@ public class FileUploaderBot {
         }
 
         // Show files
-        for (String fileName : folder.getFiles()) {
-            kb.addRow(new InlineKeyboardButton("📄 " + fileName).callbackData("noop"));
+        for (FileEntry file : folder.getFiles()) {
+            // callback_data is capped at 64 bytes; ids from an id-less tree stay inert
+            String id = file.getId();
+            boolean tappable = id != null && !id.isEmpty() && id.length() <= 59;
+            kb.addRow(new InlineKeyboardButton("📄 " + file.getName()).callbackData(tappable ? "file:" + id : "noop"));
         }
 
-        // Upload
+        // Upload / export
         kb.addRow(new InlineKeyboardButton("⬆ Upload Here").callbackData("upload"));
+        kb.addRow(new InlineKeyboardButton("⬇ Download folder").callbackData("zip:" + folder.getId()));
 
         // Admin extras
         if (admin) {
@@ -433,6 +859,9 @@ public class FileUploaderBot {
             kb.addRow(new InlineKeyboardButton("👁 Get Folder Password").callbackData("admin:getpwd:" + folder.getId()));
             kb.addRow(new InlineKeyboardButton("➕ Add Direct Code").callbackData("admin:adddirect:" + folder.getId()));
             kb.addRow(new InlineKeyboardButton("📜 List Direct Codes").callbackData("admin:listdirect:" + folder.getId()));
+            kb.addRow(new InlineKeyboardButton("🛡 Encrypt uploads: " + (securityStore.isFolderEncrypted(folder.getId()) ? "on" : "off"))
+                    .callbackData("admin:encrypt:" + folder.getId()));
+            kb.addRow(new InlineKeyboardButton("☑ Select items").callbackData("sel:start"));
         }
 
         // Back button:
@@ -445,6 +874,18 @@ public class FileUploaderBot {
     }
 
 
+    /** Which keyboard a session gets for a folder: "admin", "direct" (no way out of the granted folder) or "regular". */
+    private static String viewVariant(UserSession s) {
+        if (s.getMode() == UserSession.Mode.ADMIN && s.isAdminAuthenticated()) return "admin";
+        return s.getMode() == UserSession.Mode.DIRECT_ACCESS ? "direct" : "regular";
+    }
+
+    private FolderView renderFolder(Folder folder, String variant) {
+        boolean admin = "admin".equals(variant);
+        return new FolderView(folderTitle(folder, admin),
+                buildFolderKeyboard(folder, admin, "direct".equals(variant), null));
+    }
+
     private Folder findFolderById(List<Folder> folders, String id) {
         for (Folder f : folders) {
             if (f.getId().equals(id)) return f;
@@ -454,18 +895,6 @@ public class FileUploaderBot {
         return null;
     }
 
-    private java.io.File downloadTelegramFile(com.pengrad.telegrambot.model.File file) throws IOException {
-        String url = bot.getFullFilePath(file);
-        java.io.File temp = java.io.File.createTempFile("tgfile", null);
-
-        try (InputStream in = new URL(url).openStream();
-             FileOutputStream out = new FileOutputStream(temp)) {
-            in.transferTo(out);
-        }
-        return temp;
-    }
-
-
     private void sendWelcomeMessage(long chatId) {
         InlineKeyboardMarkup kb = new InlineKeyboardMarkup(
                 new InlineKeyboardButton[]{ new InlineKeyboardButton("📁 Browse").callbackData("welcome:browse") },
@@ -485,22 +914,49 @@ public class FileUploaderBot {
         return new InlineKeyboardMarkup(
                 new InlineKeyboardButton[]{ new InlineKeyboardButton("📁 Browse (Admin)").callbackData("admin:browse") },
                 new InlineKeyboardButton[]{ new InlineKeyboardButton("🔒 Change Admin Password").callbackData("admin:change_pwd") },
+                new InlineKeyboardButton[]{ new InlineKeyboardButton("📜 Audit Log").callbackData("admin:audit") },
                 new InlineKeyboardButton[]{ new InlineKeyboardButton("⬅ Back to Welcome").callbackData("admin:back") },
                 new InlineKeyboardButton[]{ new InlineKeyboardButton("❌ Finish Session").callbackData("finish") }
         );
     }
 
-    private boolean folderRequiresPassword(UserSession s, String folderId) {
+    /**
+     * The protected folder (the folder itself or its nearest locked ancestor) the session must unlock
+     * before opening the folder, or null if it may open it.
+     */
+    private String lockedFolderFor(UserSession s, String folderId) {
         // ✅ Admins never need passwords
-        if (s != null && s.getMode() == UserSession.Mode.ADMIN && s.isAdminAuthenticated()) {
-            return false;
+        if (s.getMode() == UserSession.Mode.ADMIN && s.isAdminAuthenticated()) {
+            return null;
         }
+        // A direct-access code grants its subtree: locks above the granted folder do not apply
+        Folder directRoot = s.getMode() == UserSession.Mode.DIRECT_ACCESS ? s.getDirectAccessRoot() : null;
+        return protectionIndex.firstLocked(folderId, s.getUnlockedFolderIds(),
+                directRoot != null ? directRoot.getId() : null);
+    }
 
-        String required = securityStore.getFolderPassword(folderId);
-        if (required == null || required.isBlank()) return false;
+    /**
+     * Whether a folder needs a password the session has not given, as {@link #lockedFolderFor}; the session's
+     * unlocked folders are copied now, so the check can run off the update lane.
+     */
+    private Predicate<Folder> lockedFor(UserSession s) {
+        if (s.getMode() == UserSession.Mode.ADMIN && s.isAdminAuthenticated()) return f -> false;
+        Set<String> unlocked = Set.copyOf(s.getUnlockedFolderIds());
+        Folder directRoot = s.getMode() == UserSession.Mode.DIRECT_ACCESS ? s.getDirectAccessRoot() : null;
+        String boundary = directRoot != null ? directRoot.getId() : null;
+        return f -> protectionIndex.firstLocked(f.getId(), unlocked, boundary) != null;
+    }
 
-        // If not unlocked in this session, require password
-        return !s.getUnlockedFolderIds().contains(folderId);
+    /** Prompts for the password of the lock guarding the folder; false if the folder is open to the session. */
+    private boolean askForFolderPassword(long chatId, UserSession session, String folderId) {
+        String locked = lockedFolderFor(session, folderId);
+        if (locked == null) return false;
+        session.setAwaitingWhat("FOLDER_PWD:" + locked);
+        session.setPendingFolderId(folderId);
+        bot.execute(new SendMessage(chatId, locked.equals(folderId)
+                ? "🔐 This folder is protected. Enter password:"
+                : "🔐 This folder is inside a protected folder. Enter its password:"));
+        return true;
     }
 
 
@@ -508,10 +964,11 @@ public class FileUploaderBot {
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
 
         try {
-            // Refresh root folders and store in the session
+            // Shared tree, kept current in the background
             var session = sessionManager.getSession(chatId);
-            var roots = driveService.scanTopLevelFolders();
-            if (session != null) session.setRootFolders(roots);
+            var roots = treeCache.getRoots();
+            if (session != null && session.getRootFolders() != roots) moveToTree(session, roots);
+            liveViews.closed(chatId);
 
             for (Folder folder : roots) {
                 keyboard.addRow(new InlineKeyboardButton("📂 " + folder.getName())
@@ -519,6 +976,7 @@ public class FileUploaderBot {
             }
 
             keyboard.addRow(new InlineKeyboardButton("❌ Finish Session").callbackData("finish"));
+            if (session != null) prefetcher.visited(null, null, roots, viewVariant(session));
 
             if (maybeMessageIdToEdit != null) {
                 bot.execute(new EditMessageText(chatId, maybeMessageIdToEdit, "📂 Choose a folder:")
@@ -559,66 +1017,175 @@ public class FileUploaderBot {
         return null;
     }
 
-    // Replace your current helper with this one
-    private void uploadIncomingTelegramFile(Message msg, UserSession session) throws Exception {
-        String fileId;
-        String originalName;
+    /** Uploads into the folder are encrypted when it or a folder above it is marked; O(depth). */
+    private boolean isEncrypted(Folder folder) {
+        for (Folder f = folder; f != null; f = f.getParent()) {
+            if (securityStore.isFolderEncrypted(f.getId())) return true;
+        }
+        return false;
+    }
 
-        if (msg.document() != null) {
-            Document d = msg.document();
-            fileId = d.fileId();
-            originalName = (d.fileName() != null && !d.fileName().isBlank())
-                    ? d.fileName()
-                    : ("document_" + d.fileUniqueId());
-        } else if (msg.photo() != null && msg.photo().length > 0) {
-            // Pick the largest photo variant
-            PhotoSize p = msg.photo()[msg.photo().length - 1];
-            fileId = p.fileId();
-            originalName = "photo_" + p.fileUniqueId() + ".jpg";
-        } else {
-            throw new IllegalStateException("No file content to upload.");
+    /** The open folder, where uploads go; null (and the user is told why) when there is none or Drive is not ready. */
+    private Folder uploadTarget(long chatId, UserSession session) {
+        if (session.getCurrentFolder() == null) {
+            bot.execute(new SendMessage(chatId, "Please choose a folder first (📁 Browse) and then try again."));
+            return null;
+        }
+        if (!driveService.isReady()) {
+            // check before fetching the file only to fail on the upload
+            bot.execute(new SendMessage(chatId, "⏳ " + new DriveNotReadyException().getMessage()));
+            return null;
         }
+        return session.getCurrentFolder();
+    }
 
-        // Get Telegram file bytes
-        GetFileResponse getFileResp = bot.execute(new GetFile(fileId));
-        if (!getFileResp.isOk() || getFileResp.file() == null) {
-            throw new IllegalStateException("Telegram GetFile failed.");
+    private void replyWhenUploaded(long chatId, Folder folder, java.util.concurrent.CompletableFuture<FileEntry> upload) {
+        upload.whenComplete((entry, error) -> {
+            if (error == null) {
+                uploaded(folder, entry);
+                bot.execute(new SendMessage(chatId, "✅ File uploaded to: " + folder.getName()));
+            } else {
+                error.printStackTrace();
+                bot.execute(new SendMessage(chatId, "❌ Upload failed: " + error.getMessage()));
+            }
+        });
+    }
+
+    private void uploaded(Folder folder, FileEntry entry) {
+        // Visible (and counted in the folder rollups) right away; the next tree sync brings the same entry
+        if (!folder.isReadOnly()) folder.addFile(entry);
+        liveViews.changed(); // shows up for everyone looking at the folder
+    }
+
+    /** Sends a new message showing a folder and keeps it up to date. */
+    private void sendFolderView(long chatId, String text, Folder folder, String variant, InlineKeyboardMarkup kb) {
+        SendResponse resp = bot.execute(new SendMessage(chatId, text).replyMarkup(kb));
+        if (resp.isOk() && resp.message() != null) {
+            liveViews.opened(chatId, resp.message().messageId(), folder, variant, new FolderView(text, kb));
+        }
+    }
+
+
+    private interface BulkAction {
+        boolean run() throws Exception; // true when the tree must be reloaded
+    }
+
+    private void runBulk(long chatId, UserSession session, BulkAction action) {
+        boolean reload = false;
+        try {
+            reload = action.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            bot.execute(new SendMessage(chatId, "❌ Bulk operation failed: " + e.getMessage()));
         }
-        com.pengrad.telegrambot.model.File tgFile = getFileResp.file();
-        byte[] content = bot.getFileContent(tgFile);
+        session.setSelecting(false);
+        Folder current = session.getCurrentFolder();
+        if (reload) {
+            try {
+                treeCache.refreshNow();
+            } catch (IOException e) {
+                System.err.println("Folder tree refresh failed: " + e.getMessage());
+            }
+            ensureRootsLoaded(session);
+            current = session.getCurrentFolder();
+        }
+        liveViews.changed(); // other chats may be looking at the changed folders
+        if (current != null) {
+            FolderView view = renderFolder(current, "admin");
+            sendFolderView(chatId, view.title(), current, "admin", view.keyboard());
+        }
+    }
 
-        // Write to a temp file for your DriveService API
-        java.io.File tmp = java.io.File.createTempFile(
-                "tg_", "_" + originalName.replaceAll("[^a-zA-Z0-9._-]", "_"));
-        try (java.io.FileOutputStream fos = new java.io.FileOutputStream(tmp)) {
-            fos.write(content);
+    // Admins also see usage; the rollups kept in the tree make this O(1)
+    private static String folderTitle(Folder f, UserSession session) {
+        return folderTitle(f, session.getMode() == UserSession.Mode.ADMIN && session.isAdminAuthenticated());
+    }
+
+    private static String folderTitle(Folder f, boolean admin) {
+        String title = "📂 Folder: " + f.getName();
+        if (!admin) return title;
+        title += "\n📊 " + f.getFileCount() + " files, " + formatBytes(f.getTotalBytes());
+        if (f.getLastModified() > 0) {
+            title += ", last change " + AUDIT_TIME.format(java.time.Instant.ofEpochMilli(f.getLastModified()));
         }
+        return title;
+    }
 
-        // ✅ Correct order: (localFile, fileName, folderId)
-        String folderId = session.getCurrentFolder().getId();
-        String driveId = driveService.uploadFile(tmp, originalName, folderId);
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format(java.util.Locale.ROOT, "%.1f %sB", bytes / (double) (1L << (unit * 10)), " KMGTPE".charAt(unit));
+    }
 
-        // Optional: you can log/confirm with driveId
-        System.out.println("Uploaded to Drive. ID=" + driveId);
+    private void audit(Message msg, AuditLog.Type type, String folderId, String detail) {
+        auditLog.record(type, msg.chat().id(), userName(msg), folderId, detail);
+    }
 
-        // Cleanup temp
-        //noinspection ResultOfMethodCallIgnored
-        tmp.delete();
+    private static String userName(Message msg) {
+        User from = msg.from();
+        return from == null ? null : from.username() != null ? "@" + from.username() : from.firstName();
     }
 
+    private static final java.time.format.DateTimeFormatter AUDIT_TIME =
+            java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(java.time.ZoneId.systemDefault());
+
+    // Latest 20 events for a chat id, a folder, or everything
+    private void showAuditEvents(long chatId, UserSession session, String text) {
+        Long chatFilter = null;
+        String folderFilter = null;
+        if (text.matches("-?\\d+")) {
+            chatFilter = Long.parseLong(text);
+        } else if (!"all".equalsIgnoreCase(text)) {
+            ensureRootsLoaded(session);
+            Folder f = resolveFolderByInput(session.getRootFolders(), text);
+            folderFilter = f != null ? f.getId() : text; // deleted folders are still in the log by id
+        }
+        List<AuditLog.Event> events;
+        try {
+            events = auditLog.query(chatFilter, folderFilter, 20);
+        } catch (IOException e) {
+            bot.execute(new SendMessage(chatId, "❌ Could not read the audit log: " + e.getMessage()));
+            return;
+        }
+        StringBuilder sb = new StringBuilder("📜 " + (events.isEmpty() ? "No matching events." : "Latest events:"));
+        for (AuditLog.Event e : events) {
+            Folder f = e.folderId() == null ? null : findFolderById(session.getRootFolders(), e.folderId());
+            sb.append("\n\n").append(AUDIT_TIME.format(java.time.Instant.ofEpochMilli(e.time())))
+                    .append(" ").append(e.type())
+                    .append("\nchat ").append(e.chatId()).append(e.user() != null ? " (" + e.user() + ")" : "");
+            if (e.folderId() != null) sb.append("\n📂 ").append(f != null ? f.getName() : e.folderId());
+            if (e.detail() != null) sb.append("\n").append(e.detail().length() > 200 ? e.detail().substring(0, 200) + "…" : e.detail());
+        }
+        bot.execute(new SendMessage(chatId, sb.toString()).replyMarkup(adminHomeKeyboard()));
+    }
 
     // Load roots into session if not already present or empty
     private void ensureRootsLoaded(UserSession session) {
         try {
-            if (session.getRootFolders() == null || session.getRootFolders().isEmpty()) {
-                var roots = driveService.scanTopLevelFolders();
-                session.setRootFolders(roots);
+            List<Folder> roots = treeCache.getRoots();
+            if (session.getRootFolders() != roots) {
+                moveToTree(session, roots);
             }
         } catch (Exception e) {
             throw new RuntimeException("Failed to load root folders", e);
         }
     }
 
+    // Re-points the session's folder references at a newer version of the shared tree
+    private void moveToTree(UserSession session, List<Folder> roots) {
+        boolean hadTree = session.getRootFolders() != null && !session.getRootFolders().isEmpty();
+        session.setRootFolders(roots);
+        if (!hadTree) return;
+        if (session.getCurrentFolder() != null) {
+            Folder f = findFolderById(roots, session.getCurrentFolder().getId());
+            if (f != null) session.setCurrentFolder(f);
+        }
+        if (session.getDirectAccessRoot() != null) {
+            Folder f = findFolderById(roots, session.getDirectAccessRoot().getId());
+            if (f != null) session.setDirectAccessRoot(f);
+        }
+    }
+
     // Resolve by id, name (case-insensitive), or path "A/B/C"
     private Folder resolveFolderByInput(java.util.List<Folder> roots, String inputRaw) {
         if (roots == null) return null;
@@ -0,0 +1,249 @@
+package bot;
+
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.request.SendMessage;
+import config.AppConfig;
+import model.FileEntry;
+import model.Folder;
+import security.FolderCrypto;
+import service.DriveService;
+import service.SpoolManager;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Sends a whole folder subtree to a chat as ZIP archives.
+ *
+ * Files are downloaded into the spool by up to "export.parallelDownloads" (default 4) workers, but always
+ * consumed in tree order through a sliding window of futures, so at most that many files sit on disk and
+ * memory use is independent of the folder size. The ZIP is streamed into a spool file; when the next file
+ * would push it past the bot's upload limit, the archive is closed and sent, and a new volume is started.
+ * Every volume is a complete archive on its own. Subfolders behind a password the user has not given are left
+ * out and reported, like Google Docs.
+ */
+public class FolderExporter {
+
+    record Item(String path, FileEntry file) {}
+
+    // Room for an entry's local header, data descriptor and central directory record, plus the
+    // worst case of deflate growing incompressible data (a few bytes per 16 KB block)
+    private static long entryBound(long size) {
+        return size + size / 1000 + 1024;
+    }
+
+    private final TelegramBot bot;
+    private final DriveService driveService;
+    private final FileDelivery delivery;
+    private final SpoolManager spool;
+    private final int window;
+    private final ExecutorService exports;
+    private final ExecutorService downloads;
+
+    public FolderExporter(TelegramBot bot, DriveService driveService, FileDelivery delivery, SpoolManager spool) {
+        this.bot = bot;
+        this.driveService = driveService;
+        this.delivery = delivery;
+        this.spool = spool;
+        this.window = Math.max(1, AppConfig.getInt("export.parallelDownloads", 4));
+        this.exports = Executors.newFixedThreadPool(AppConfig.getInt("export.concurrentExports", 2), daemon("zip-export"));
+        this.downloads = Executors.newFixedThreadPool(window, daemon("zip-download"));
+    }
+
+    private static java.util.concurrent.ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Queues the export; runs off the update lanes so the chat's other updates are not held up.
+     *
+     * @param locked whether a subfolder needs a password the user has not given (checked from the export thread)
+     */
+    public void exportAsync(long chatId, Folder folder, Predicate<Folder> locked) {
+        bot.execute(new SendMessage(chatId, "📦 Preparing " + folder.getName() + ".zip ..."));
+        exports.submit(() -> {
+            try {
+                export(chatId, folder, locked);
+            } catch (Exception e) {
+                e.printStackTrace();
+                bot.execute(new SendMessage(chatId, "❌ Export of " + folder.getName() + " failed: " + e.getMessage()));
+            }
+        });
+    }
+
+    private void export(long chatId, Folder folder, Predicate<Folder> locked) throws Exception {
+        List<Item> items = new ArrayList<>();
+        List<String> skipped = new ArrayList<>();
+        collect(folder, "", locked, items, skipped);
+
+        long limit = delivery.getUploadLimit();
+        Deque<Future<SpoolManager.SpoolFile>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        int volumes = 0;
+        int added = 0;
+        Volume volume = null;
+        try {
+            while (next < items.size() && inFlight.size() < window) inFlight.add(download(items.get(next++)));
+            for (Item item : items) {
+                try (SpoolManager.SpoolFile file = await(inFlight.poll())) {
+                    if (next < items.size()) inFlight.add(download(items.get(next++)));
+                    if (file == null) {
+                        skipped.add(item.path());
+                        continue;
+                    }
+                    long needed = entryBound(file.size());
+                    if (needed + 22 > limit) {
+                        skipped.add(item.path() + " (too large)");
+                        continue;
+                    }
+                    if (volume != null && volume.bytes() + needed > limit) {
+                        volume.finishAndSend(chatId, folder.getName() + "-" + (++volumes) + ".zip");
+                        volume = null;
+                    }
+                    if (volume == null) volume = new Volume(spool.create(folder.getName() + ".zip", limit));
+                    volume.add(item.path(), file);
+                    added++;
+                }
+            }
+            if (volume != null) {
+                volume.finishAndSend(chatId, folder.getName() + (volumes == 0 ? "" : "-" + (volumes + 1)) + ".zip");
+                volumes++;
+            }
+        } finally {
+            if (volume != null) volume.discard();
+            for (Future<SpoolManager.SpoolFile> f : inFlight) {
+                SpoolManager.SpoolFile leftover = await(f);
+                if (leftover != null) leftover.close();
+            }
+        }
+
+        StringBuilder msg = new StringBuilder(added == 0 ? "📭 Nothing to export in " + folder.getName() + "."
+                : "✅ Sent " + added + " file(s) in " + volumes + " archive(s).");
+        if (!skipped.isEmpty()) {
+            msg.append("\nSkipped ").append(skipped.size()).append(":");
+            for (int i = 0; i < Math.min(10, skipped.size()); i++) msg.append("\n• ").append(skipped.get(i));
+            if (skipped.size() > 10) msg.append("\n…");
+        }
+        bot.execute(new SendMessage(chatId, msg.toString()));
+    }
+
+    static void collect(Folder folder, String prefix, Predicate<Folder> locked, List<Item> out, List<String> skipped) {
+        for (FileEntry f : folder.getFiles()) {
+            String path = prefix + f.getName().replace('/', '_');
+            // Google Docs have no binary content; id-less entries cannot be fetched
+            if (f.isGoogleDoc() || f.getId() == null || f.getId().isEmpty()) skipped.add(path);
+            else out.add(new Item(path, f));
+        }
+        for (Folder sub : folder.getSubFolders()) {
+            String path = prefix + sub.getName().replace('/', '_') + "/";
+            if (locked.test(sub)) skipped.add(path + " (locked, open it first)");
+            else collect(sub, path, locked, out, skipped);
+        }
+    }
+
+    private Future<SpoolManager.SpoolFile> download(Item item) {
+        return downloads.submit(() -> {
+            FileEntry f = item.file();
+            long size = f.isEncrypted() ? FolderCrypto.plainLength(f.getSize()) : f.getSize();
+            SpoolManager.SpoolFile file = spool.create(f.getName(), Math.max(0, size));
+            try (InputStream raw = driveService.openFileStream(f.getId());
+                 InputStream in = content(f, raw, FolderCrypto::getDefault)) {
+                file.writeFrom(in);
+                return file;
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * The file's content, decrypted when it is stored encrypted. The header is checked as well as the MIME type,
+     * so an entry that lost its type on the way (an old tree snapshot) is not archived as ciphertext.
+     */
+    static InputStream content(FileEntry f, InputStream raw, Supplier<FolderCrypto> crypto) throws IOException {
+        InputStream in = new BufferedInputStream(raw);
+        return f.isEncrypted() || FolderCrypto.hasHeader(in) ? crypto.get().decrypt(in) : in;
+    }
+
+    /** @return the downloaded file, or null when that one download failed */
+    private static SpoolManager.SpoolFile await(Future<SpoolManager.SpoolFile> f) throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            System.err.println("Export download failed: " + e.getCause());
+            return null;
+        }
+    }
+
+    /** One archive being written into a spool file. */
+    private final class Volume {
+        private final SpoolManager.SpoolFile target;
+        private final OutputStream raw;
+        private final ZipOutputStream zip;
+        private final Set<String> names = new HashSet<>();
+        private long centralDirectory = 22; // end record
+
+        Volume(SpoolManager.SpoolFile target) {
+            this.target = target;
+            this.raw = Channels.newOutputStream(target.channel());
+            this.zip = new ZipOutputStream(raw);
+        }
+
+        /** Size the archive would have if finished now (entries are flushed to the channel as they close). */
+        long bytes() throws IOException {
+            return target.channel().size() + centralDirectory;
+        }
+
+        void add(String path, SpoolManager.SpoolFile file) throws IOException {
+            String name = path;
+            for (int i = 2; !names.add(name); i++) name = withSuffix(path, i);
+            zip.putNextEntry(new ZipEntry(name));
+            Files.copy(file.path(), zip);
+            zip.closeEntry();
+            centralDirectory += 46 + name.getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
+        }
+
+        void finishAndSend(long chatId, String fileName) throws IOException {
+            try {
+                zip.finish();
+                raw.flush();
+                delivery.sendLocalFile(chatId, target.path(), fileName, "application/zip");
+            } finally {
+                target.close();
+            }
+        }
+
+        void discard() {
+            target.close();
+        }
+    }
+
+    private static String withSuffix(String path, int n) {
+        int dot = path.lastIndexOf('.');
+        int slash = path.lastIndexOf('/');
+        return dot > slash + 1 ? path.substring(0, dot) + " (" + n + ")" + path.substring(dot) : path + " (" + n + ")";
+    }
+}
@@ -0,0 +1,6 @@
+package bot;
+
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
+
+/** What the bot shows for a folder: the message text and its keyboard. */
+record FolderView(String title, InlineKeyboardMarkup keyboard) {}
@@ -0,0 +1,152 @@
+package bot;
+
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.request.EditMessageText;
+import com.pengrad.telegrambot.response.BaseResponse;
+import config.AppConfig;
+import model.Folder;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/**
+ * Keeps the folder views open in chats up to date, so nobody has to leave and re-open a folder to see a new file.
+ *
+ * Each chat has at most one live view: the last message that shows a folder keyboard. Uploads, bulk changes and
+ * tree syncs only call {@link #changed()} or {@link #treePublished}; "view.refreshDelayMs" (default 1500) later
+ * a single pass re-renders the views whose folder changed meanwhile and edits those that now look different.
+ * However many changes arrive in that window, a view gets at most one edit. Edits are paced to
+ * "view.editsPerSecond" (default 20) to stay below Telegram's flood limits. "view.liveRefresh=false" turns
+ * this off.
+ */
+class LiveFolderViews {
+
+    private record Viewer(int messageId, Folder folder, int version, String variant, FolderView shown) {}
+
+    private final TelegramBot bot;
+    private final BiFunction<Folder, String, FolderView> render;
+    private final boolean enabled;
+    private final long delayMs;
+    private final long editIntervalMs;
+    private final Map<Long, Viewer> viewers = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicReference<List<Folder>> publishedRoots = new AtomicReference<>();
+    private final AtomicLong edits = new AtomicLong();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "live-views");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** @param render builds the view of a folder for a keyboard variant, as the bot shows it */
+    LiveFolderViews(TelegramBot bot, BiFunction<Folder, String, FolderView> render) {
+        this.bot = bot;
+        this.render = render;
+        this.enabled = AppConfig.getBoolean("view.liveRefresh", true);
+        this.delayMs = Math.max(0, AppConfig.getLong("view.refreshDelayMs", 1500));
+        this.editIntervalMs = 1000 / Math.max(1, AppConfig.getInt("view.editsPerSecond", 20));
+    }
+
+    /** A message in the chat now shows this folder view; replaces the chat's previous live view. */
+    void opened(long chatId, int messageId, Folder folder, String variant, FolderView shown) {
+        if (!enabled) return;
+        viewers.put(chatId, new Viewer(messageId, folder, folder.getVersion(), variant, shown));
+    }
+
+    /** The chat's last message no longer shows a plain folder view (root list, selection mode, session end). */
+    void closed(long chatId) {
+        viewers.remove(chatId);
+    }
+
+    /** Something in the open tree changed in place (upload, bulk action); views are checked after the delay. */
+    void changed() {
+        if (!enabled || viewers.isEmpty()) return;
+        if (scheduled.compareAndSet(false, true)) timer.schedule(this::refresh, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** A sync replaced the tree: views move to the new copy of their folder. */
+    void treePublished(List<Folder> roots) {
+        if (!enabled) return;
+        publishedRoots.set(roots);
+        changed();
+    }
+
+    int size() {
+        return viewers.size();
+    }
+
+    long edits() {
+        return edits.get();
+    }
+
+    private void refresh() {
+        scheduled.set(false); // changes from here on schedule the next pass
+        try {
+            List<Folder> roots = publishedRoots.getAndSet(null);
+            Map<String, Folder> moved = roots == null ? Map.of() : locate(roots);
+            for (Map.Entry<Long, Viewer> e : viewers.entrySet()) {
+                Viewer v = e.getValue();
+                Folder folder = moved.getOrDefault(v.folder().getId(), v.folder());
+                int version = folder.getVersion(); // read first: a change while rendering shows up in the next pass
+                if (folder == v.folder() && version == v.version()) continue;
+                FolderView view = render.apply(folder, v.variant());
+                Viewer next = new Viewer(v.messageId(), folder, version, v.variant(), view);
+                if (view.equals(v.shown())) {
+                    viewers.replace(e.getKey(), v, next);
+                    continue;
+                }
+                BaseResponse resp = bot.execute(new EditMessageText(e.getKey(), v.messageId(), view.title())
+                        .replyMarkup(view.keyboard()));
+                if (resp.isOk() || isNotModified(resp)) {
+                    edits.incrementAndGet();
+                    viewers.replace(e.getKey(), v, next);
+                } else if (resp.errorCode() == 429) {
+                    // flood limit: the rest keep their old version and are retried after the wait
+                    int wait = resp.parameters() != null && resp.parameters().retryAfter() != null
+                            ? resp.parameters().retryAfter() : 5;
+                    if (roots != null) publishedRoots.compareAndSet(null, roots);
+                    if (scheduled.compareAndSet(false, true)) timer.schedule(this::refresh, wait, TimeUnit.SECONDS);
+                    return;
+                } else {
+                    viewers.remove(e.getKey(), v); // message deleted, chat blocked, ...: stop following it
+                }
+                if (editIntervalMs > 0) Thread.sleep(editIntervalMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean isNotModified(BaseResponse resp) {
+        return resp.description() != null && resp.description().contains("message is not modified");
+    }
+
+    // The watched folders in a newly published tree, in one pass that stops once all are found
+    private Map<String, Folder> locate(List<Folder> roots) {
+        Set<String> wanted = new HashSet<>();
+        for (Viewer v : viewers.values()) wanted.add(v.folder().getId());
+        Map<String, Folder> found = new HashMap<>();
+        Deque<Folder> stack = new ArrayDeque<>(roots);
+        while (!stack.isEmpty() && found.size() < wanted.size()) {
+            Folder f = stack.pop();
+            if (wanted.contains(f.getId())) found.put(f.getId(), f);
+            f.getSubFolders().forEach(stack::push);
+        }
+        return found;
+    }
+}
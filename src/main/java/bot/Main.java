@@ -1,30 +1,49 @@
 package bot;
 
+import config.AppConfig;
 import service.DriveService;
+import service.FolderSync;
 import session.SessionCleanupTask;
 import session.SessionManager;
 import security.SecurityStore;
 
+import java.io.File;
+import java.util.List;
+
 public class Main {
     public static void main(String[] args) {
         try {
-            // Initialize Google Drive service (OAuth-based)
+            long t0 = System.nanoTime();
+            // Google Drive (OAuth-based) connects in the background; the bot starts answering right away
             DriveService driveService = new DriveService();
 
-            // Initialize session management
-            SessionManager sessionManager = new SessionManager();
+            // Several bots ("bots=sales,support") share Drive, the folder tree and the workers of one host
+            BotHost host = new BotHost(driveService);
+            List<String> names = BotHost.configuredBots();
+            if (names.isEmpty()) names = List.of("");
+            for (String name : names) {
+                // Initialize session management
+                SessionManager sessionManager = new SessionManager(name);
+
+                // Start background session cleanup task
+                SessionCleanupTask.start(sessionManager);
 
-            // Start background session cleanup task
-            SessionCleanupTask.start(sessionManager);
+                //Initializing securityStore
+                SecurityStore securityStore = new SecurityStore(new File(AppConfig.forBot("security.json", name)));
 
-            //Initializing securityStore
-            SecurityStore securityStore = new SecurityStore();
+                // Start Telegram bot
+                FileUploaderBot bot = new FileUploaderBot(host, name, sessionManager, securityStore);
+                bot.start();
+                if (!name.isEmpty()) System.out.println("Started bot " + name);
+            }
 
-            // Start Telegram bot
-            FileUploaderBot bot = new FileUploaderBot(driveService, sessionManager, securityStore);
-            bot.start();
+            // Local directories kept in step with Drive folders ("sync.pairs"), once Drive is connected
+            for (FolderSync sync : FolderSync.configured(driveService)) {
+                driveService.whenReady().thenRun(sync::start);
+            }
 
-            System.out.println("✅ Telegram Drive Bot is running...");
+            System.out.println("✅ Telegram Drive Bot is running (started in " + (System.nanoTime() - t0) / 1_000_000
+                    + " ms" + (driveService.isReady() ? ")" : ", Google Drive still connecting)"));
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("❌ Failed to start bot: " + e.getMessage());
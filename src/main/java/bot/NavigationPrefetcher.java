@@ -0,0 +1,217 @@
+package bot;
+
+import config.AppConfig;
+import model.Folder;
+import service.DriveService;
+import service.FileMetadataCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Prepares the folders a user is likely to open next, while they are still looking at the current one.
+ *
+ * Every "folder:" and "back" tap is counted in {@link NavigationStats}. After each view, a background thread
+ * takes the most frequent next folders from there (up to "prefetch.candidates", default 3, each taken at least
+ * "prefetch.minShare" of the time, default 0.1), builds their title and keyboard, and lists their files on
+ * Drive into the {@link FileMetadataCache}, so the next folder tap skips the tree search and the file tap after
+ * it skips files.get. Drive listings are limited to "prefetch.driveCallsPerSecond" (default 2) for the whole
+ * bot; predictions over that budget only get their keyboard. "prefetch.enabled=false" turns all of this off.
+ * Bots hosted together share one {@link Listings} budget, so they neither exceed it together nor list a folder
+ * another bot has just listed.
+ *
+ * A prepared view is only used while its folder's {@link Folder#getVersion() version} and the published tree
+ * are unchanged, so a rename, upload or refresh in between is never shown stale.
+ */
+class NavigationPrefetcher {
+
+    /** A prepared view and the folder it shows. */
+    record Prepared(Folder folder, int version, List<Folder> roots, FolderView view) {}
+
+    /** The Drive listing budget and what was listed when, for all prefetchers on the same Drive. */
+    static final class Listings {
+        private final Map<String, Long> listedAt = new ConcurrentHashMap<>(); // folder id -> System.nanoTime()
+        private final long relistNanos;
+        private final double callsPerSecond;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        Listings() {
+            this.callsPerSecond = Math.max(0, Double.parseDouble(AppConfig.get("prefetch.driveCallsPerSecond", "2")));
+            this.tokens = Math.max(1, callsPerSecond);
+            // listings stay in the metadata cache for its TTL: list again only in its second half
+            this.relistNanos = TimeUnit.SECONDS.toNanos(AppConfig.getLong("prefetch.metadataTtlSeconds", 30)) / 2;
+        }
+
+        boolean fresh(String folderId) {
+            Long last = listedAt.get(folderId);
+            return last != null && System.nanoTime() - last < relistNanos;
+        }
+
+        void listed(String folderId) {
+            if (listedAt.size() > MAX_PREPARED) listedAt.clear(); // rare; only costs a repeated listing
+            listedAt.put(folderId, System.nanoTime());
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            double max = Math.max(1, callsPerSecond);
+            tokens = Math.min(max, tokens + (now - lastRefill) / 1e9 * callsPerSecond);
+            lastRefill = now;
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+    }
+
+    private static final int MAX_PREPARED = 20_000;
+
+    private final DriveService driveService;
+    private final FileMetadataCache metadata;
+    private final BiFunction<Folder, String, FolderView> render;
+    private final NavigationStats stats = new NavigationStats();
+    private final Map<String, Prepared> prepared = new ConcurrentHashMap<>();
+    private final Listings listings;
+    private final boolean enabled;
+    private final int candidates;
+    private final double minShare;
+    private final ThreadPoolExecutor worker;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong listed = new AtomicLong();
+    private final AtomicLong skippedForBudget = new AtomicLong();
+
+    /**
+     * @param listings the Drive listing budget, shared with the other bots on the same Drive
+     * @param render   builds the view of a folder for a variant (see {@link #take})
+     */
+    NavigationPrefetcher(DriveService driveService, FileMetadataCache metadata, Listings listings,
+                         BiFunction<Folder, String, FolderView> render) {
+        this.driveService = driveService;
+        this.metadata = metadata;
+        this.listings = listings;
+        this.render = render;
+        this.enabled = AppConfig.getBoolean("prefetch.enabled", true);
+        this.candidates = Math.max(1, AppConfig.getInt("prefetch.candidates", 3));
+        this.minShare = Double.parseDouble(AppConfig.get("prefetch.minShare", "0.1"));
+        // One thread is plenty; when it falls behind, newer predictions are simply dropped
+        this.worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(64), r -> {
+            Thread t = new Thread(r, "nav-prefetch");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Records a tap from one view to another and prepares the likely next views from there.
+     *
+     * @param fromId  folder the tap was made in, or {@link NavigationStats#ROOT} for the top-level list
+     * @param to      folder now shown, or null for the top-level list
+     * @param variant which keyboard the user gets (admin, direct access, regular)
+     */
+    void visited(String fromId, Folder to, List<Folder> roots, String variant) {
+        if (!enabled || roots == null) return;
+        String toId = to == null ? NavigationStats.ROOT : to.getId();
+        if (fromId != null) stats.record(fromId, toId);
+        worker.execute(() -> {
+            try {
+                prepareNext(toId, to, roots, variant);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /** Records a tap without preparing anything, for views shown elsewhere. */
+    void moved(String fromId, String toId) {
+        if (enabled) stats.record(fromId, toId);
+    }
+
+    /** The prepared view of a folder, or null when there is none or it is out of date. */
+    Prepared take(String folderId, String variant, List<Folder> roots) {
+        if (!enabled) return null;
+        Prepared p = prepared.get(folderId + "|" + variant);
+        if (p != null && p.roots() == roots && p.version() == p.folder().getVersion() && attached(p.folder(), roots)) {
+            hits.incrementAndGet();
+            return p;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /** One line for the health endpoint and the load test report. */
+    String describe() {
+        long h = hits.get(), m = misses.get();
+        long fh = metadata.hits(), fm = metadata.misses();
+        return String.format(java.util.Locale.ROOT,
+                "prefetch: folders %d/%d hit (%.0f%%), files %d/%d hit (%.0f%%), %d listings, %d over budget",
+                h, h + m, pct(h, m), fh, fh + fm, pct(fh, fm), listed.get(), skippedForBudget.get());
+    }
+
+    private static double pct(long hits, long misses) {
+        return hits + misses == 0 ? 0 : 100.0 * hits / (hits + misses);
+    }
+
+    private void prepareNext(String fromId, Folder from, List<Folder> roots, String variant) {
+        List<Folder> next = new ArrayList<>();
+        for (String id : stats.likelyNext(fromId, candidates, minShare)) {
+            Folder f = neighbour(from, roots, id);
+            if (f != null) next.add(f);
+        }
+        if (prepared.size() > MAX_PREPARED) prepared.clear(); // rare; rebuilt by the next taps
+        for (Folder f : next) {
+            int version = f.getVersion(); // read first: a change while rendering then fails the check in take
+            prepared.put(f.getId() + "|" + variant, new Prepared(f, version, roots, render.apply(f, variant)));
+        }
+        if (!driveService.isReady()) return;
+        for (Folder f : next) {
+            if (f.getFiles().isEmpty()) continue;
+            if (listings.fresh(f.getId())) continue;
+            if (!listings.tryAcquire()) {
+                skippedForBudget.incrementAndGet();
+                continue;
+            }
+            // The listings run side by side on Drive's async pool; this thread moves on to the next prediction
+            driveService.async().listFolderFilesAsync(f.getId()).whenComplete((files, e) -> {
+                if (e != null) {
+                    System.err.println("Prefetch of " + f.getName() + " failed: " + e.getMessage());
+                    return;
+                }
+                metadata.putAll(files);
+                listings.listed(f.getId());
+                listed.incrementAndGet();
+            });
+        }
+    }
+
+    // Folders reachable in one tap from a view: its subfolders, its parent, or the top-level folders
+    private static Folder neighbour(Folder from, List<Folder> roots, String id) {
+        if (from == null) return byId(roots, id);
+        Folder f = byId(from.getSubFolders(), id);
+        if (f == null && from.getParent() != null && from.getParent().getId().equals(id)) f = from.getParent();
+        return f;
+    }
+
+    private static Folder byId(List<Folder> folders, String id) {
+        for (Folder f : folders) {
+            if (f.getId().equals(id)) return f;
+        }
+        return null;
+    }
+
+    // Still in the tree, i.e. not trashed or moved out since it was prepared; O(depth)
+    private static boolean attached(Folder folder, List<Folder> roots) {
+        Folder f = folder;
+        for (Folder parent = f.getParent(); parent != null; f = parent, parent = parent.getParent()) {
+            if (!parent.getSubFolders().contains(f)) return false;
+        }
+        return roots.contains(f);
+    }
+}
@@ -0,0 +1,83 @@
+package bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How often users move from one folder view to another ("folder:" taps and "back"), shared by all chats.
+ *
+ * Each folder keeps at most {@value #SLOTS} destination counters. A new destination takes over the smallest one
+ * and starts just above it ("space saving"), so memory per folder is fixed however wide the folder is, and
+ * frequent destinations are never lost. A folder's counters are halved once they add up to {@value #DECAY_AT},
+ * so a change in habits shows within a few thousand taps.
+ */
+class NavigationStats {
+
+    /** Stands for the list of top-level folders. */
+    static final String ROOT = "";
+
+    private static final int SLOTS = 8;
+    private static final int DECAY_AT = 4096;
+    private static final int MAX_FOLDERS = 100_000;
+
+    private static final class Counters {
+        final String[] to = new String[SLOTS];
+        final int[] count = new int[SLOTS];
+        int total;
+    }
+
+    private final ConcurrentHashMap<String, Counters> byFolder = new ConcurrentHashMap<>();
+
+    void record(String from, String to) {
+        Counters c = byFolder.get(from);
+        if (c == null) {
+            if (byFolder.size() >= MAX_FOLDERS) return; // a huge tree: keep what we have
+            c = byFolder.computeIfAbsent(from, k -> new Counters());
+        }
+        synchronized (c) {
+            int slot = -1;
+            int smallest = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (to.equals(c.to[i])) {
+                    slot = i;
+                    break;
+                }
+                if (c.to[i] == null || c.count[i] < c.count[smallest] && c.to[smallest] != null) smallest = i;
+            }
+            if (slot < 0) {
+                slot = smallest;
+                c.to[slot] = to;
+            }
+            c.count[slot]++;
+            c.total++;
+            if (c.total >= DECAY_AT) {
+                c.total = 0;
+                for (int i = 0; i < SLOTS; i++) {
+                    c.count[i] >>= 1;
+                    c.total += c.count[i];
+                }
+            }
+        }
+    }
+
+    /** Up to limit destinations taken at least minShare of the time from this view, most frequent first. */
+    List<String> likelyNext(String from, int limit, double minShare) {
+        Counters c = byFolder.get(from);
+        List<String> out = new ArrayList<>();
+        if (c == null) return out;
+        synchronized (c) {
+            boolean[] taken = new boolean[SLOTS];
+            while (out.size() < limit) {
+                int best = -1;
+                for (int i = 0; i < SLOTS; i++) {
+                    if (!taken[i] && c.to[i] != null && (best < 0 || c.count[i] > c.count[best])) best = i;
+                }
+                if (best < 0 || c.count[best] < minShare * c.total) break;
+                taken[best] = true;
+                out.add(c.to[best]);
+            }
+        }
+        return out;
+    }
+}
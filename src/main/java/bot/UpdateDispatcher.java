@@ -0,0 +1,287 @@
+package bot;
+
+import com.pengrad.telegrambot.model.Update;
+import config.AppConfig;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Hands updates to worker lanes so the receiving thread (poller or webhook) never waits for a handler.
+ * Updates of the same chat always land on the same single-threaded lane, so they are processed in order;
+ * different chats run in parallel.
+ *
+ * Several bots can share the lanes, each as a {@link Tenant}. A lane keeps one queue per bot and takes from
+ * them in turn, one update each, so a bot flooded with updates only delays the others by one handler per round.
+ *
+ * Within a bot, updates are classed by {@link Priority}. Each chat's updates are still handled strictly in order
+ * (an upload is stored where the chat was when it was sent, a prompt's answer follows the prompt), but between
+ * chats waiting on a lane the class of their next update counts, by weight ("updates.weight.callback" 8,
+ * ".command" 4, ".admin" 2, ".upload" 1): one chat's burst of uploads does not hold up the taps of others. Each class
+ * holds at most "updates.maxQueued.&lt;class&gt;" updates per bot (1000, 1000, 200, 300); more are refused
+ * ({@link Admission#SHED}). While taps and prompts wait longer than "updates.targetMs" (default 1000, as the
+ * 99th percentile of the last 10 seconds), admin actions and uploads are still queued but reported as
+ * {@link Admission#DEFERRED}, so the bot can tell the user.
+ */
+public class UpdateDispatcher {
+
+    /** Classes of updates, from the most to the least latency-sensitive. */
+    public enum Priority {
+        CALLBACK(8, 1000), COMMAND(4, 1000), ADMIN(2, 200), UPLOAD(1, 300);
+
+        final int weight;
+        final int maxQueued;
+
+        Priority(int weight, int maxQueued) {
+            String key = name().toLowerCase(Locale.ROOT);
+            this.weight = Math.max(1, AppConfig.getInt("updates.weight." + key, weight));
+            this.maxQueued = Math.max(1, AppConfig.getInt("updates.maxQueued." + key, maxQueued));
+        }
+
+        boolean interactive() {
+            return this == CALLBACK || this == COMMAND;
+        }
+    }
+
+    /** What became of a dispatched update. */
+    public enum Admission { QUEUED, DEFERRED, SHED }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+    private static final long WAIT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /** One bot's share of the lanes. */
+    public final class Tenant {
+        private final int index;
+        private final Consumer<Update> handler;
+        private final AtomicInteger[] queued = new AtomicInteger[PRIORITIES.length];
+        private final AtomicLong shed = new AtomicLong();
+        private final AtomicLong deferred = new AtomicLong();
+        private final Waits waits = new Waits();
+
+        private Tenant(int index, Consumer<Update> handler) {
+            this.index = index;
+            this.handler = handler;
+            for (int i = 0; i < queued.length; i++) queued[i] = new AtomicInteger();
+        }
+
+        /** Queues the update in its class and returns immediately. */
+        public Admission dispatch(Update update, Priority priority) {
+            if (update == null) return Admission.QUEUED;
+            AtomicInteger count = queued[priority.ordinal()];
+            if (count.incrementAndGet() > priority.maxQueued) {
+                count.decrementAndGet();
+                shed.incrementAndGet();
+                return Admission.SHED;
+            }
+            long chatId = chatIdOf(update);
+            lanes[laneOf(chatId * 31 + index)].add(this, new Item(update, chatId, priority, System.nanoTime()));
+            if (!priority.interactive() && overloaded()) {
+                deferred.incrementAndGet();
+                return Admission.DEFERRED;
+            }
+            return Admission.QUEUED;
+        }
+
+        /** Updates received and not yet taken up by a lane. */
+        public int queued() {
+            int sum = 0;
+            for (AtomicInteger q : queued) sum += q.get();
+            return sum;
+        }
+
+        /** Taps and prompts currently wait longer than the target. */
+        public boolean overloaded() {
+            return waits.p99Nanos() > targetNanos;
+        }
+
+        /** Queue lengths by class, refused and deferred updates and the recent interactive wait. */
+        public String describe() {
+            StringBuilder sb = new StringBuilder("updates queued: ").append(queued()).append(" (");
+            for (Priority p : PRIORITIES) {
+                sb.append(p.ordinal() == 0 ? "" : ", ").append(p.name().toLowerCase(Locale.ROOT)).append(' ')
+                        .append(queued[p.ordinal()].get());
+            }
+            return sb.append("), ").append(shed.get()).append(" shed, ").append(deferred.get())
+                    .append(" deferred, interactive p99 wait ").append(waits.p99Nanos() / 1_000_000).append(" ms").toString();
+        }
+    }
+
+    private record Item(Update update, long chatId, Priority priority, long enqueuedNanos) {}
+
+    private final Lane[] lanes;
+    private final AtomicInteger tenants = new AtomicInteger();
+    private final long targetNanos = TimeUnit.MILLISECONDS.toNanos(AppConfig.getLong("updates.targetMs", 1000));
+
+    /** Lanes shared by the bots that {@link #register} with them. */
+    public UpdateDispatcher(int laneCount) {
+        this.lanes = new Lane[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+            Thread t = new Thread(lanes[i], "update-lane-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public Tenant register(Consumer<Update> handler) {
+        return new Tenant(tenants.getAndIncrement(), handler);
+    }
+
+    public void shutdown() {
+        for (Lane lane : lanes) lane.stop();
+    }
+
+    private int laneOf(long key) {
+        return (int) Math.floorMod(key ^ (key >>> 32), (long) lanes.length);
+    }
+
+    /** A worker thread with a queue per bot, served round-robin. */
+    private static final class Lane implements Runnable {
+        private final Map<Tenant, Chats> queues = new HashMap<>();
+        private final Deque<Tenant> ready = new ArrayDeque<>(); // bots with queued updates, in serving order
+        private boolean stopped;
+
+        synchronized void add(Tenant tenant, Item item) {
+            Chats q = queues.computeIfAbsent(tenant, t -> new Chats());
+            if (q.isEmpty()) ready.add(tenant);
+            q.add(item);
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Tenant tenant;
+                Item item;
+                synchronized (this) {
+                    while (ready.isEmpty() && !stopped) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (ready.isEmpty()) return;
+                    tenant = ready.poll();
+                    Chats q = queues.get(tenant);
+                    item = q.next();
+                    if (!q.isEmpty()) ready.add(tenant); // back of the line behind the other bots
+                }
+                tenant.queued[item.priority().ordinal()].decrementAndGet();
+                if (item.priority().interactive()) tenant.waits.add(System.nanoTime() - item.enqueuedNanos());
+                try {
+                    tenant.handler.accept(item.update());
+                } catch (Exception e) {
+                    // A failing handler must not kill the lane
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * One bot's updates on a lane: a queue per chat, so each chat's updates stay in order whatever their class.
+     * Priority is between chats: a chat is filed under the class of its next update, and the classes are served
+     * by smooth weighted round-robin.
+     */
+    private static final class Chats {
+        private final Map<Long, Deque<Item>> byChat = new HashMap<>();
+        private final List<Deque<Long>> ready = new ArrayList<>(); // per class: chats whose next update has it
+        private final int[] credit = new int[PRIORITIES.length];
+        private int size;
+
+        Chats() {
+            for (int i = 0; i < PRIORITIES.length; i++) ready.add(new ArrayDeque<>());
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(Item item) {
+            Deque<Item> q = byChat.computeIfAbsent(item.chatId(), c -> new ArrayDeque<>());
+            q.add(item);
+            if (q.size() == 1) ready.get(item.priority().ordinal()).add(item.chatId());
+            size++;
+        }
+
+        // Every waiting class gains its weight, the richest is served and pays the total: over a round each class
+        // is served in proportion to its weight, spread out rather than in runs
+        Item next() {
+            int best = -1;
+            int total = 0;
+            for (int i = 0; i < PRIORITIES.length; i++) {
+                if (ready.get(i).isEmpty()) continue;
+                credit[i] += PRIORITIES[i].weight;
+                total += PRIORITIES[i].weight;
+                if (best < 0 || credit[i] > credit[best]) best = i;
+            }
+            credit[best] -= total;
+            long chat = ready.get(best).poll();
+            if (ready.get(best).isEmpty()) credit[best] = 0; // an emptied class starts afresh next time
+            Deque<Item> q = byChat.get(chat);
+            Item item = q.poll();
+            if (q.isEmpty()) byChat.remove(chat);
+            else ready.get(q.peek().priority().ordinal()).add(chat); // refiled by its next update
+            size--;
+            return item;
+        }
+    }
+
+    /** Recent waits of interactive updates, for the 99th percentile over the last few seconds. */
+    private static final class Waits {
+        private final long[] at = new long[512];
+        private final long[] wait = new long[512];
+        private int next;
+        private int filled;
+        private long cachedAt = System.nanoTime() - WAIT_WINDOW_NANOS;
+        private long cachedP99;
+
+        synchronized void add(long waitNanos) {
+            at[next] = System.nanoTime();
+            wait[next] = waitNanos;
+            next = (next + 1) % at.length;
+            filled = Math.max(filled, next == 0 ? at.length : next);
+        }
+
+        synchronized long p99Nanos() {
+            long now = System.nanoTime();
+            if (now - cachedAt < TimeUnit.MILLISECONDS.toNanos(100)) return cachedP99; // asked on every dispatch
+            long[] recent = new long[at.length];
+            int n = 0;
+            for (int i = 0; i < filled; i++) {
+                if (now - at[i] < WAIT_WINDOW_NANOS) recent[n++] = wait[i];
+            }
+            Arrays.sort(recent, 0, n);
+            cachedP99 = n == 0 ? 0 : recent[Math.min(n - 1, (int) Math.ceil(n * 0.99) - 1)];
+            cachedAt = now;
+            return cachedP99;
+        }
+    }
+
+    static long chatIdOf(Update u) {
+        if (u.message() != null && u.message().chat() != null) return u.message().chat().id();
+        if (u.callbackQuery() != null) {
+            if (u.callbackQuery().message() != null && u.callbackQuery().message().chat() != null) {
+                return u.callbackQuery().message().chat().id();
+            }
+            if (u.callbackQuery().from() != null) return u.callbackQuery().from().id();
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,60 @@
+package bot;
+
+import com.pengrad.telegrambot.model.Update;
+import session.ChatRouter;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * Sends webhook updates for chats owned by another local worker process to that worker's webhook server.
+ * Forwarding does not hold up the answer to Telegram. If the owner cannot be reached this worker handles the
+ * update itself; the shared session store keeps that safe, just without the per-chat ordering guarantee for
+ * that one update.
+ */
+public class UpdateForwarder {
+
+    static final String FORWARDED_HEADER = "X-Forwarded-By-Worker";
+
+    private final ChatRouter router;
+    private final long selfId;
+    private final String path;
+    private final String secret;
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+    public UpdateForwarder(ChatRouter router, long selfId, String path, String secret) {
+        this.router = router;
+        this.selfId = selfId;
+        this.path = path;
+        this.secret = secret;
+    }
+
+    /**
+     * Starts sending the update to the worker owning its chat and returns without waiting for it.
+     * If that worker does not take the update, it is handed to {@code fallback} instead.
+     *
+     * @return false if this worker owns the chat (nothing was sent)
+     */
+    public boolean forward(Update update, byte[] rawJson, Consumer<Update> fallback) {
+        ChatRouter.Worker owner = router.ownerOf(UpdateDispatcher.chatIdOf(update));
+        if (owner == null || owner.id() == selfId) return false;
+        HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + owner.port() + path))
+                .timeout(Duration.ofSeconds(5))
+                .header("Content-Type", "application/json")
+                .header(WebhookServer.SECRET_HEADER, secret)
+                .header(FORWARDED_HEADER, String.valueOf(selfId))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(rawJson))
+                .build();
+        http.sendAsync(req, HttpResponse.BodyHandlers.discarding()).whenComplete((resp, e) -> {
+            if (e == null && resp.statusCode() == 200) return;
+            System.err.println("Forwarding to worker " + owner.id() + " failed: "
+                    + (e != null ? e.getMessage() : "HTTP " + resp.statusCode()));
+            fallback.accept(update);
+        });
+        return true;
+    }
+}
@@ -0,0 +1,249 @@
+package bot;
+
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.model.Document;
+import com.pengrad.telegrambot.model.Message;
+import com.pengrad.telegrambot.model.PhotoSize;
+import com.pengrad.telegrambot.request.GetFile;
+import com.pengrad.telegrambot.request.SendMessage;
+import com.pengrad.telegrambot.response.GetFileResponse;
+import config.AppConfig;
+import model.FileEntry;
+import model.Folder;
+import security.AuditLog;
+import security.FolderCrypto;
+import service.DriveService;
+import service.SpoolManager;
+import service.UploadJournal;
+import service.UrlDownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads files sent to the bot into Drive without losing any to a restart.
+ *
+ * Every upload is recorded in the {@link UploadJournal} before the file is fetched from Telegram, and marked
+ * done or failed when it ends; the transfers themselves run on the {@link UploadScheduler}. Jobs still pending
+ * at startup were cut off by a deploy or crash: once Drive is connected, {@link #resumePending()} queues them
+ * again and tells each chat when its file is in. Telegram file ids stay valid, so nobody has to send the file again, and the job id stored
+ * on the Drive file avoids a second copy when the upload had completed just before the stop.
+ *
+ * Links sent with /url run on the same workers: the {@link UrlDownloader} stream goes straight into Drive.
+ */
+public class UploadQueue {
+
+    static final long CLOUD_API_DOWNLOAD_LIMIT = 20L * 1024 * 1024;
+    static final long LOCAL_API_DOWNLOAD_LIMIT = 2000L * 1024 * 1024;
+    private static final int RESUME_ATTEMPTS = 3;
+
+    /** The file a message carries. */
+    record Source(String fileId, String fileUniqueId, String name, Long size) {
+
+        static Source of(Message msg) {
+            if (msg.document() != null) {
+                Document d = msg.document();
+                String name = (d.fileName() != null && !d.fileName().isBlank())
+                        ? d.fileName()
+                        : ("document_" + d.fileUniqueId());
+                return new Source(d.fileId(), d.fileUniqueId(), name, d.fileSize());
+            }
+            if (msg.photo() != null && msg.photo().length > 0) {
+                // Pick the largest photo variant
+                PhotoSize p = msg.photo()[msg.photo().length - 1];
+                return new Source(p.fileId(), p.fileUniqueId(), "photo_" + p.fileUniqueId() + ".jpg", p.fileSize());
+            }
+            throw new IllegalStateException("No file content to upload.");
+        }
+    }
+
+    private final TelegramBot bot;
+    private final String botName;
+    private final DriveService driveService;
+    private final SpoolManager spool;
+    private final UploadJournal journal;
+    private final UploadScheduler scheduler;
+    private final UrlDownloader urls;
+    private final FolderCrypto crypto = FolderCrypto.getDefault();
+    private final AuditLog auditLog;
+
+    /** @param scheduler and urls may be shared with other bots in the process; botName tells them apart */
+    public UploadQueue(TelegramBot bot, String botName, DriveService driveService, SpoolManager spool, UploadJournal journal,
+                       UploadScheduler scheduler, UrlDownloader urls) {
+        this.bot = bot;
+        this.botName = botName;
+        this.driveService = driveService;
+        this.spool = spool;
+        this.journal = journal;
+        this.scheduler = scheduler;
+        this.urls = urls;
+        this.auditLog = AuditLog.forBot(botName);
+    }
+
+    /**
+     * Journals the upload of a message's file; null when that file is already on its way to the folder.
+     *
+     * @param encrypt store it encrypted with the {@link FolderCrypto}
+     */
+    UploadJournal.Job begin(long chatId, String user, Source source, Folder folder, boolean encrypt) throws IOException {
+        return journal.begin(chatId, user, source.fileId(), source.fileUniqueId(), source.name(),
+                source.size() == null ? -1 : source.size(), folder.getId(), folder.getName(), encrypt);
+    }
+
+    /** Queues a journaled job; the future completes with the uploaded file, or the upload's exception. */
+    CompletableFuture<FileEntry> submit(UploadJournal.Job job) {
+        CompletableFuture<FileEntry> result = new CompletableFuture<>();
+        scheduler.submit(botName, job.chatId(), job.size(), () -> {
+            try {
+                result.complete(run(job));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /** Checks a link before queueing it: reachable, allowed, within the size limit. Runs on the fetch pool. */
+    CompletableFuture<UrlDownloader.Probe> probeUrl(String url) {
+        return urls.probeAsync(url);
+    }
+
+    /**
+     * Queues the download of a link straight into a Drive upload, without a local copy. Not journaled: a
+     * restart drops it, and the user sends the link again.
+     */
+    CompletableFuture<FileEntry> submitUrl(long chatId, String user, UrlDownloader.Probe probe, Folder folder,
+                                           boolean encrypt) {
+        CompletableFuture<FileEntry> result = new CompletableFuture<>();
+        scheduler.submit(botName, chatId, probe.length(), () -> {
+            try (InputStream in = urls.open(probe)) {
+                FileEntry entry = encrypt
+                        ? uploadEncrypted(in, probe.length(), probe.name(), folder.getId(), null)
+                        : driveService.upload(in, probe.length(), probe.mimeType(), probe.name(), folder.getId(), null);
+                String driveLink = "https://drive.google.com/uc?id=" + entry.getId();
+                System.out.println("Uploaded " + probe.uri() + " to Drive. ID=" + driveLink);
+                auditLog.record(AuditLog.Type.UPLOAD, chatId, user, folder.getId(), entry.getName() + " " + driveLink);
+                result.complete(entry);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /** Transfers a journaled job and records the outcome. */
+    private FileEntry run(UploadJournal.Job job) throws Exception {
+        FileEntry entry;
+        try {
+            entry = transfer(job);
+        } catch (Exception e) {
+            journal.failed(job, e.getMessage());
+            throw e;
+        }
+        return completed(job, entry);
+    }
+
+    private FileEntry completed(UploadJournal.Job job, FileEntry entry) throws IOException {
+        journal.done(job, entry.getId());
+        String driveLink = "https://drive.google.com/uc?id=" + entry.getId();
+        System.out.println("Uploaded to Drive. ID=" + driveLink);
+        auditLog.record(AuditLog.Type.UPLOAD, job.chatId(), job.user(), job.folderId(), entry.getName() + " " + driveLink);
+        return entry;
+    }
+
+    /** Finishes the uploads a previous run left pending; call once Drive is connected. */
+    public void resumePending() {
+        for (UploadJournal.Job job : journal.pending()) {
+            scheduler.submit(botName, job.chatId(), job.size(), () -> resume(job, 1));
+        }
+    }
+
+    private void resume(UploadJournal.Job job, int attempt) {
+        try {
+            // The transfer may have finished just before the stop, with only the "done" line missing
+            FileEntry existing = driveService.findUpload(job.folderId(), job.id());
+            completed(job, existing != null ? existing : transfer(job));
+            bot.execute(new SendMessage(job.chatId(),
+                    "✅ " + job.name() + " uploaded to: " + job.folderName() + " (finished after a restart)"));
+        } catch (Exception e) {
+            if (attempt < RESUME_ATTEMPTS) {
+                System.err.println("Resuming upload of " + job.name() + " failed, retrying: " + e.getMessage());
+                // back in the queue later, without holding a worker meanwhile
+                CompletableFuture.delayedExecutor(10L * attempt, TimeUnit.SECONDS).execute(
+                        () -> scheduler.submit(botName, job.chatId(), job.size(), () -> resume(job, attempt + 1)));
+                return;
+            }
+            e.printStackTrace();
+            try {
+                journal.failed(job, e.getMessage());
+            } catch (IOException ignored) {
+                // stays pending and is tried again at the next start
+            }
+            bot.execute(new SendMessage(job.chatId(), "❌ Upload of " + job.name() + " to " + job.folderName()
+                    + " could not be finished after a restart: " + e.getMessage() + ". Please send it again."));
+        }
+    }
+
+    private FileEntry transfer(UploadJournal.Job job) throws Exception {
+        boolean localApi = AppConfig.getBoolean("telegram.localApi", false);
+        long limit = localApi ? LOCAL_API_DOWNLOAD_LIMIT : CLOUD_API_DOWNLOAD_LIMIT;
+        if (job.size() > limit) {
+            throw new IllegalStateException("File is larger than the " + (limit >> 20) + " MB bot download limit.");
+        }
+
+        GetFileResponse getFileResp = bot.execute(new GetFile(job.telegramFileId()));
+        if (!getFileResp.isOk() || getFileResp.file() == null) {
+            throw new IllegalStateException("Telegram GetFile failed.");
+        }
+        com.pengrad.telegrambot.model.File tgFile = getFileResp.file();
+
+        // A local Bot API server (--local) has already stored the file on this machine and returns
+        // its absolute path: upload it in place instead of downloading a second copy
+        if (localApi && tgFile.filePath() != null) {
+            java.nio.file.Path local = java.nio.file.Path.of(tgFile.filePath());
+            if (local.isAbsolute() && java.nio.file.Files.isReadable(local)) {
+                return upload(job, local);
+            }
+        }
+
+        // Spooled to disk rather than held as byte[]; the spool file is deleted even if the upload fails
+        try (SpoolManager.SpoolFile spooled = downloadTelegramFile(tgFile, job.name(), job.size() >= 0 ? job.size() : limit)) {
+            return upload(job, spooled.path());
+        }
+    }
+
+    private FileEntry upload(UploadJournal.Job job, java.nio.file.Path file) throws IOException {
+        if (!job.encrypt()) return driveService.upload(file.toFile(), job.name(), job.folderId(), job.id());
+        try (InputStream in = java.nio.file.Files.newInputStream(file)) {
+            return uploadEncrypted(in, java.nio.file.Files.size(file), job.name(), job.folderId(), job.id());
+        }
+    }
+
+    /** Encrypts while uploading and logs how much of the upload time went to encryption. */
+    private FileEntry uploadEncrypted(InputStream plain, long length, String name, String folderId, String jobId) throws IOException {
+        long t0 = System.nanoTime();
+        try (FolderCrypto.CryptoStream in = crypto.encrypt(plain)) {
+            FileEntry entry = driveService.upload(in, FolderCrypto.encryptedLength(length), FolderCrypto.ENCRYPTED_MIME,
+                    name, folderId, jobId);
+            long total = System.nanoTime() - t0;
+            System.out.printf("Encrypted %s: waited %d ms for encryption in a %d ms upload (%.1f%%)%n", name,
+                    in.waitedNanos() / 1_000_000, total / 1_000_000, 100.0 * in.waitedNanos() / Math.max(1, total));
+            return entry;
+        }
+    }
+
+    private SpoolManager.SpoolFile downloadTelegramFile(com.pengrad.telegrambot.model.File file, String name, long expectedSize) throws IOException {
+        String url = bot.getFullFilePath(file);
+        SpoolManager.SpoolFile spooled = spool.create(name, expectedSize);
+        try (InputStream in = new URL(url).openStream()) {
+            spooled.writeFrom(in);
+        } catch (IOException | RuntimeException e) {
+            spooled.close();
+            throw e;
+        }
+        return spooled;
+    }
+}
@@ -0,0 +1,159 @@
+package bot;
+
+import config.AppConfig;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Runs uploads on a fixed pool of "upload.workers" (default 4) threads, shortest job first.
+ *
+ * Every job gets a virtual deadline: its arrival time plus its size at "upload.agingKBps" (default 1024 KB per
+ * second). The queued job with the earliest deadline runs next, so a photo overtakes a waiting video at once.
+ * The video's deadline does not move, though, so every later arrival eventually queues behind it: large files
+ * wait longer but never starve.
+ *
+ * Files over "upload.smallFileMb" (default 8) go to the large lane. At most "upload.largeWorkers" (default half
+ * of the workers) run at once, so the other workers always stay free for small files. A chat has at most
+ * "upload.perChat" (default 2) uploads running; its further files wait without holding up other chats.
+ * "upload.scheduling=fifo" turns all of this off (arrival order, no lanes or caps), for comparison.
+ *
+ * Bots hosted in one process share the workers. While several of them have uploads waiting or running, each
+ * gets an equal share of the workers first; a share a bot cannot use goes to the others rather than idling.
+ */
+public class UploadScheduler {
+
+    private record Task(long deadline, long seq, String tenant, long chatId, boolean large, Runnable work) {
+        Owner owner() {
+            return new Owner(tenant, chatId);
+        }
+    }
+
+    // the same user talks to several bots under one chat id
+    private record Owner(String tenant, long chatId) {}
+
+    private static final Comparator<Task> BY_DEADLINE =
+            Comparator.comparingLong(Task::deadline).thenComparingLong(Task::seq);
+
+    private final boolean fifo;
+    private final int workers;
+    private final long smallBytes;
+    private final double agingBytesPerMs;
+    private final int largeWorkers;
+    private final int perChat;
+
+    private final Object lock = new Object();
+    private final TreeSet<Task> small = new TreeSet<>(BY_DEADLINE);
+    private final TreeSet<Task> large = new TreeSet<>(BY_DEADLINE);
+    private final Map<Owner, Integer> runningPerChat = new HashMap<>();
+    private final Map<String, Integer> activePerTenant = new HashMap<>(); // queued + running
+    private final Map<String, Integer> runningPerTenant = new HashMap<>();
+    private int largeRunning;
+    private long seq;
+
+    public UploadScheduler() {
+        this.workers = Math.max(1, AppConfig.getInt("upload.workers", 4));
+        this.fifo = "fifo".equalsIgnoreCase(AppConfig.get("upload.scheduling", "sjf"));
+        this.smallBytes = AppConfig.getLong("upload.smallFileMb", 8) * 1024 * 1024;
+        this.agingBytesPerMs = Math.max(1, AppConfig.getLong("upload.agingKBps", 1024)) * 1024 / 1000.0;
+        this.largeWorkers = Math.max(1, Math.min(workers, AppConfig.getInt("upload.largeWorkers", Math.max(1, workers / 2))));
+        this.perChat = Math.max(1, AppConfig.getInt("upload.perChat", 2));
+        for (int i = 0; i < workers; i++) {
+            Thread t = new Thread(this::workLoop, "upload-worker-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Queues an upload; sizeBytes is Telegram's declared size, or -1 if unknown. */
+    public void submit(long chatId, long sizeBytes, Runnable work) {
+        submit("", chatId, sizeBytes, work);
+    }
+
+    /** Queues an upload for one of several bots sharing the workers. */
+    public void submit(String tenant, long chatId, long sizeBytes, Runnable work) {
+        long now = System.currentTimeMillis();
+        long size = sizeBytes >= 0 ? sizeBytes : smallBytes; // unknown: rank it like a large small file
+        synchronized (lock) {
+            if (fifo) {
+                small.add(new Task(now, seq++, tenant, chatId, false, work));
+            } else {
+                boolean isLarge = size > smallBytes;
+                Task task = new Task(now + (long) (size / agingBytesPerMs), seq++, tenant, chatId, isLarge, work);
+                (isLarge ? large : small).add(task);
+            }
+            activePerTenant.merge(tenant, 1, Integer::sum);
+            lock.notifyAll();
+        }
+    }
+
+    /** Uploads waiting for a worker. */
+    public int queued() {
+        synchronized (lock) {
+            return small.size() + large.size();
+        }
+    }
+
+    private void workLoop() {
+        while (true) {
+            Task task;
+            synchronized (lock) {
+                while ((task = next()) == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                runningPerChat.merge(task.owner(), 1, Integer::sum);
+                runningPerTenant.merge(task.tenant(), 1, Integer::sum);
+                if (task.large()) largeRunning++;
+            }
+            try {
+                task.work().run();
+            } catch (RuntimeException e) {
+                // A failing upload must not kill the worker
+                e.printStackTrace();
+            } finally {
+                synchronized (lock) {
+                    runningPerChat.merge(task.owner(), -1, UploadScheduler::decrement);
+                    runningPerTenant.merge(task.tenant(), -1, UploadScheduler::decrement);
+                    activePerTenant.merge(task.tenant(), -1, UploadScheduler::decrement);
+                    if (task.large()) largeRunning--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static Integer decrement(Integer a, Integer b) {
+        return a + b == 0 ? null : a + b;
+    }
+
+    // Earliest deadline among jobs whose chat and lane have room, preferring bots below their share of the
+    // workers; removes it from its queue
+    private Task next() {
+        int share = activePerTenant.size() <= 1 ? workers : (workers + activePerTenant.size() - 1) / activePerTenant.size();
+        Task pick = pick(share);
+        if (pick == null && share < workers) pick = pick(workers);
+        if (pick != null) (pick.large() ? large : small).remove(pick);
+        return pick;
+    }
+
+    private Task pick(int share) {
+        Task s = firstAllowed(small, share);
+        Task l = largeRunning < largeWorkers ? firstAllowed(large, share) : null;
+        return s == null ? l : l == null ? s : BY_DEADLINE.compare(s, l) <= 0 ? s : l;
+    }
+
+    private Task firstAllowed(TreeSet<Task> queue, int share) {
+        for (Task t : queue) {
+            if (fifo) return t;
+            if (runningPerChat.getOrDefault(t.owner(), 0) < perChat
+                    && runningPerTenant.getOrDefault(t.tenant(), 0) < share) return t;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,130 @@
+package bot;
+
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.Update;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Embedded HTTP endpoint for Telegram webhook delivery.
+ *
+ *  POST /webhook   one Update as JSON; must carry X-Telegram-Bot-Api-Secret-Token. Bots sharing the server
+ *                  each have their own path and secret (see {@link #addEndpoint})
+ *  GET  /health    200 "ok" (for load balancers), plus a "drive: ..." line once a detail source is set;
+ *                  stays 200 while Drive is connecting, since navigation is still served from the cached tree
+ *
+ * The request is answered as soon as the update is parsed, then the update is queued on the
+ * {@link UpdateDispatcher} or forwarded to the worker owning its chat; handlers never run on the HTTP threads.
+ */
+public class WebhookServer {
+
+    static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    /** Where one bot's updates arrive. */
+    public static final class Endpoint {
+        private final byte[] secret;
+        private final Consumer<Update> sink;
+        private volatile UpdateForwarder forwarder;
+
+        private Endpoint(String secret, Consumer<Update> sink) {
+            this.secret = secret.getBytes(StandardCharsets.UTF_8);
+            this.sink = sink;
+        }
+
+        /** Routes updates of chats owned by other worker processes to them (multi-process mode). */
+        public void setForwarder(UpdateForwarder forwarder) {
+            this.forwarder = forwarder;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService httpThreads;
+    private volatile Supplier<String> healthDetail;
+
+    public WebhookServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        // The JDK server multiplexes connections with NIO; these threads only parse and enqueue
+        this.httpThreads = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "webhook-http");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(httpThreads);
+        server.createContext("/health", this::handleHealth);
+    }
+
+    /** Accepts updates carrying the secret on the path and hands them to the sink (also while running). */
+    public Endpoint addEndpoint(String path, String secret, Consumer<Update> sink) {
+        Endpoint endpoint = new Endpoint(secret, sink);
+        server.createContext(path, ex -> handleUpdate(ex, endpoint));
+        return endpoint;
+    }
+
+    public void removeEndpoint(String path) {
+        server.removeContext(path);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        httpThreads.shutdown();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /** Extra line appended to the /health response, e.g. Drive connection state. */
+    public void setHealthDetail(Supplier<String> healthDetail) {
+        this.healthDetail = healthDetail;
+    }
+
+    private void handleUpdate(HttpExchange ex, Endpoint endpoint) throws IOException {
+        try (ex) {
+            if (!"POST".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            String header = ex.getRequestHeaders().getFirst(SECRET_HEADER);
+            if (header == null || !MessageDigest.isEqual(endpoint.secret, header.getBytes(StandardCharsets.UTF_8))) {
+                ex.sendResponseHeaders(401, -1);
+                return;
+            }
+            byte[] body = ex.getRequestBody().readAllBytes();
+            Update update;
+            try {
+                update = BotUtils.parseUpdate(new String(body, StandardCharsets.UTF_8));
+            } catch (RuntimeException e) {
+                ex.sendResponseHeaders(400, -1);
+                return;
+            }
+            ex.sendResponseHeaders(200, -1);
+            UpdateForwarder fw = endpoint.forwarder;
+            boolean forwarded = ex.getRequestHeaders().containsKey(UpdateForwarder.FORWARDED_HEADER);
+            if (fw == null || forwarded || !fw.forward(update, body, endpoint.sink)) {
+                endpoint.sink.accept(update);
+            }
+        }
+    }
+
+    private void handleHealth(HttpExchange ex) throws IOException {
+        try (ex) {
+            Supplier<String> detail = healthDetail;
+            byte[] ok = (detail == null ? "ok" : "ok\n" + detail.get()).getBytes(StandardCharsets.UTF_8);
+            ex.sendResponseHeaders(200, ok.length);
+            ex.getResponseBody().write(ok);
+        }
+    }
+}
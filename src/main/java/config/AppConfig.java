@@ -0,0 +1,57 @@
+package config;
+
+/**
+ * Tiny configuration lookup.
+ * A key like "telegram.apiUrl" is read from the JVM system property of the same name
+ * (-Dtelegram.apiUrl=...) and then from the environment variable TELEGRAM_APIURL.
+ */
+public final class AppConfig {
+
+    private AppConfig() {}
+
+    public static String get(String key, String def) {
+        String v = System.getProperty(key);
+        if (v == null || v.isBlank()) {
+            v = System.getenv(key.replace('.', '_').toUpperCase(java.util.Locale.ROOT));
+        }
+        return (v == null || v.isBlank()) ? def : v.trim();
+    }
+
+    public static String get(String key) {
+        return get(key, null);
+    }
+
+    public static int getInt(String key, int def) {
+        String v = get(key);
+        try {
+            return v == null ? def : Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static long getLong(String key, long def) {
+        String v = get(key);
+        try {
+            return v == null ? def : Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        String v = get(key);
+        return v == null ? def : Boolean.parseBoolean(v);
+    }
+
+    /**
+     * A file or directory of one of several bots in the process: "sessions.dat" for bot "sales" becomes
+     * "sessions-sales.dat". The unnamed bot (empty name) keeps the path as it is.
+     */
+    public static String forBot(String path, String botName) {
+        if (botName == null || botName.isEmpty()) return path;
+        int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        int dot = path.lastIndexOf('.');
+        return dot > slash + 1 ? path.substring(0, dot) + "-" + botName + path.substring(dot) : path + "-" + botName;
+    }
+}
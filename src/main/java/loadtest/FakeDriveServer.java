@@ -0,0 +1,666 @@
+package loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Embedded stand-in for the Drive v3 REST API, used by the load-test driver.
+ *
+ * Supported: files.list (q on parents / mimeType / trashed / appProperties, paging), files.get (metadata and alt=media),
+ * files.create (metadata only and resumable uploads), files.update (name, trashed, add/removeParents, and new
+ * content as a resumable upload),
+ * files.copy, batch requests of those, permissions.create, changes.getStartPageToken, changes.list and about.get. Point the bot at it with -Ddrive.rootUrl={@link #rootUrl()}.
+ * With {@link #setAccountQps(int)} each account (X-Drive-Account header) is rate limited like a real Drive user.
+ */
+public class FakeDriveServer {
+
+    public static final String FOLDER_MIME = "application/vnd.google-apps.folder";
+
+    private static final Pattern PARENT_Q = Pattern.compile("'([^']+)'\\s+in\\s+parents");
+    private static final Pattern APP_PROPERTY_Q =
+            Pattern.compile("appProperties\\s+has\\s*\\{\\s*key\\s*=\\s*'([^']+)'\\s+and\\s+value\\s*=\\s*'([^']+)'\\s*\\}");
+    private static final Pattern MIME_Q = Pattern.compile("mimeType\\s*(!?=)\\s*'([^']+)'");
+    private static final Pattern RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    static class Node {
+        String id;
+        String name;
+        String mimeType;
+        List<String> parents = new ArrayList<>();
+        long size;
+        String md5;
+        long modifiedTime = System.currentTimeMillis();
+        boolean trashed;
+        Map<String, String> appProperties = Map.of();
+    }
+
+    static class Upload {
+        Node meta;
+        long received;
+        MessageDigest md5 = md5();
+    }
+
+    private record Change(long seq, String fileId, boolean removed) {}
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final FaultInjector faults;
+    private volatile long uploadBytesPerSecond;                                 // 0 = unlimited
+    private volatile int accountQps;                                            // 0 = unlimited
+    private final Map<String, long[]> accountWindows = new ConcurrentHashMap<>(); // account -> {second, count}
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fake-drive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, Node> files = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final List<Change> changes = new ArrayList<>();
+    private final AtomicLong ids = new AtomicLong(1);
+    private final AtomicLong uploadedFiles = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    public FakeDriveServer(int port, FaultInjector faults) throws IOException {
+        this.faults = faults;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public void start() { server.start(); }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int port() { return server.getAddress().getPort(); }
+
+    public String rootUrl() { return "http://127.0.0.1:" + port() + "/"; }
+
+    public long uploadedFiles() { return uploadedFiles.get(); }
+
+    public long uploadedBytes() { return uploadedBytes.get(); }
+
+    /** Caps each upload request's body to this rate, like a slow uplink per connection. */
+    public void setUploadBandwidth(long bytesPerSecond) { this.uploadBytesPerSecond = bytesPerSecond; }
+
+    /** Requests per second each account may make before getting 429 userRateLimitExceeded. */
+    public void setAccountQps(int qps) { this.accountQps = qps; }
+
+    public long rateLimitedRequests() { return rateLimited.get(); }
+
+    private boolean overAccountQuota(HttpExchange ex) {
+        int qps = accountQps;
+        if (qps <= 0) return false;
+        String account = ex.getRequestHeaders().getFirst("X-Drive-Account");
+        long[] w = accountWindows.computeIfAbsent(account == null ? "" : account, k -> new long[2]);
+        long second = System.nanoTime() / 1_000_000_000L;
+        synchronized (w) {
+            if (w[0] != second) {
+                w[0] = second;
+                w[1] = 0;
+            }
+            return ++w[1] > qps;
+        }
+    }
+
+    /** Ids of the regular files directly inside a folder. */
+    public List<String> fileIdsIn(String folderId) {
+        List<String> out = new ArrayList<>();
+        synchronized (files) {
+            for (Node n : files.values()) {
+                if (!n.trashed && !FOLDER_MIME.equals(n.mimeType) && n.parents.contains(folderId)) out.add(n.id);
+            }
+        }
+        return out;
+    }
+
+    // =====================
+    // Seeding
+    // =====================
+
+    /**
+     * Creates a synthetic tree under My Drive.
+     *
+     * @return ids of the top-level folders
+     */
+    public List<String> seed(int topFolders, int depth, int subFoldersPerFolder, int filesPerFolder) {
+        List<String> topIds = new ArrayList<>();
+        for (int i = 0; i < topFolders; i++) {
+            topIds.add(seedFolder("root", "Folder " + i, depth, subFoldersPerFolder, filesPerFolder));
+        }
+        return topIds;
+    }
+
+    private String seedFolder(String parent, String name, int depth, int fanout, int fileCount) {
+        Node folder = addNode(parent, name, FOLDER_MIME, 0);
+        for (int f = 0; f < fileCount; f++) {
+            addNode(folder.id, name + " file " + f + ".bin", "application/octet-stream", 1024L * (f + 1));
+        }
+        if (depth > 1) {
+            for (int s = 0; s < fanout; s++) {
+                seedFolder(folder.id, name + "." + s, depth - 1, fanout, fileCount);
+            }
+        }
+        return folder.id;
+    }
+
+    private Node addNode(String parent, String name, String mimeType, long size) {
+        Node n = new Node();
+        n.id = "fake" + ids.getAndIncrement();
+        n.name = name;
+        n.mimeType = mimeType;
+        n.parents.add(parent);
+        n.size = size;
+        if (!FOLDER_MIME.equals(mimeType)) n.md5 = Integer.toHexString(Objects.hash(n.id, size));
+        files.put(n.id, n);
+        recordChange(n.id, false);
+        return n;
+    }
+
+    private void recordChange(String fileId, boolean removed) {
+        synchronized (changes) {
+            changes.add(new Change(changes.size() + 1L, fileId, removed));
+        }
+    }
+
+    // =====================
+    // Routing
+    // =====================
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            String method = ex.getRequestMethod();
+            String path = ex.getRequestURI().getPath();
+            // executeMediaAsInputStream() fetches alt=media through the download endpoint
+            if (path.startsWith("/download/drive/v3/")) path = path.substring("/download".length());
+            Map<String, String> q = query(ex);
+
+            faults.delay();
+            if (faults.shouldFail()) {
+                error(ex, 503, "backendError");
+                return;
+            }
+            if (overAccountQuota(ex)) {
+                rateLimited.incrementAndGet();
+                ObjectNode body = errorJson(429, "User rate limit exceeded");
+                ((ObjectNode) body.get("error")).putArray("errors").addObject()
+                        .put("reason", "userRateLimitExceeded").put("domain", "usageLimits");
+                send(ex, 429, body);
+                return;
+            }
+            if (path.startsWith("/upload/drive/v3/files/") && "resumable".equals(q.get("uploadType"))) {
+                Node target = files.get(path.substring("/upload/drive/v3/files/".length()));
+                if (target == null) error(ex, 404, "File not found");
+                else {
+                    body(ex).readAllBytes(); // metadata changes are not needed here
+                    startUpload(ex, target); // new content for an existing file
+                }
+                return;
+            }
+            if (path.equals("/upload/drive/v3/files")) {
+                if ("POST".equals(method) && "resumable".equals(q.get("uploadType"))) startUpload(ex);
+                else if ("PUT".equals(method) && q.get("upload_id") != null) continueUpload(ex, q.get("upload_id"));
+                else error(ex, 400, "Only resumable uploads are supported");
+                return;
+            }
+            if (path.equals("/batch/drive/v3") && "POST".equals(method)) {
+                batch(ex);
+                return;
+            }
+            if (!path.startsWith("/drive/v3/")) {
+                error(ex, 404, "notFound");
+                return;
+            }
+            String[] parts = path.substring("/drive/v3/".length()).split("/");
+
+            switch (parts[0]) {
+                case "about" -> {
+                    ObjectNode about = mapper.createObjectNode();
+                    about.putObject("user").put("displayName", "Fake Drive").put("emailAddress", "fake@example.com");
+                    send(ex, 200, about);
+                }
+                case "changes" -> {
+                    if (parts.length > 1 && "startPageToken".equals(parts[1])) {
+                        ObjectNode r = mapper.createObjectNode();
+                        synchronized (changes) {
+                            r.put("startPageToken", String.valueOf(changes.size() + 1L));
+                        }
+                        send(ex, 200, r);
+                    } else {
+                        listChanges(ex, q);
+                    }
+                }
+                case "files" -> {
+                    // NetHttpTransport cannot send PATCH and tunnels it through POST
+                    String override = ex.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+                    if (override != null) method = override;
+                    if (parts.length == 1) {
+                        if ("GET".equals(method)) listFiles(ex, q);
+                        else if ("POST".equals(method)) createMetadataOnly(ex);
+                        else error(ex, 405, "methodNotAllowed");
+                    } else if ("PATCH".equals(method) || (parts.length == 3 && "copy".equals(parts[2]))) {
+                        Result r = modify(method, parts, q, body(ex).readAllBytes());
+                        send(ex, r.status(), r.body());
+                    } else if (parts.length == 3 && "permissions".equals(parts[2])) {
+                        body(ex).readAllBytes();
+                        ObjectNode perm = mapper.createObjectNode();
+                        perm.put("id", "anyoneWithLink");
+                        perm.put("type", "anyone");
+                        perm.put("role", "reader");
+                        send(ex, 200, perm);
+                    } else {
+                        getFile(ex, parts[1], q);
+                    }
+                }
+                default -> error(ex, 404, "notFound");
+            }
+        }
+    }
+
+    // =====================
+    // files.*
+    // =====================
+
+    private void listFiles(HttpExchange ex, Map<String, String> q) throws IOException {
+        String query = q.getOrDefault("q", "");
+        Matcher pm = PARENT_Q.matcher(query);
+        String parent = pm.find() ? pm.group(1) : null;
+        Matcher mm = MIME_Q.matcher(query);
+        String mimeOp = null, mime = null;
+        if (mm.find()) {
+            mimeOp = mm.group(1);
+            mime = mm.group(2);
+        }
+        boolean excludeTrashed = query.replace(" ", "").contains("trashed=false");
+        Matcher am = APP_PROPERTY_Q.matcher(query);
+        String propKey = am.find() ? am.group(1) : null;
+        String propValue = propKey != null ? am.group(2) : null;
+
+        List<Node> matches = new ArrayList<>();
+        synchronized (files) {
+            for (Node n : files.values()) {
+                if (parent != null && !n.parents.contains(parent)) continue;
+                if (excludeTrashed && n.trashed) continue;
+                if (mime != null && ("=".equals(mimeOp) != mime.equals(n.mimeType))) continue;
+                if (propKey != null && !propValue.equals(n.appProperties.get(propKey))) continue;
+                matches.add(n);
+            }
+        }
+
+        int pageSize = Math.max(1, Math.min(1000, (int) parseLong(q.get("pageSize"), 100)));
+        int offset = (int) parseLong(q.get("pageToken"), 0);
+        int end = Math.min(matches.size(), offset + pageSize);
+
+        ObjectNode r = mapper.createObjectNode();
+        r.put("kind", "drive#fileList");
+        ArrayNode arr = r.putArray("files");
+        for (int i = offset; i < end; i++) arr.add(toJson(matches.get(i)));
+        if (end < matches.size()) r.put("nextPageToken", String.valueOf(end));
+        send(ex, 200, r);
+    }
+
+    private void getFile(HttpExchange ex, String id, Map<String, String> q) throws IOException {
+        if ("root".equals(id)) {
+            // My Drive's real id is "root" here
+            send(ex, 200, mapper.createObjectNode().put("id", "root").put("name", "My Drive").put("mimeType", FOLDER_MIME));
+            return;
+        }
+        Node n = files.get(id);
+        if (n == null) {
+            error(ex, 404, "File not found: " + id);
+            return;
+        }
+        if ("media".equals(q.get("alt"))) {
+            ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            ex.sendResponseHeaders(200, n.size == 0 ? -1 : n.size);
+            FakeTelegramServer.writeFiller(ex.getResponseBody(), n.size);
+            return;
+        }
+        send(ex, 200, toJson(n));
+    }
+
+    private void createMetadataOnly(HttpExchange ex) throws IOException {
+        Node meta = readMetadata(body(ex));
+        files.put(meta.id, meta);
+        recordChange(meta.id, false);
+        send(ex, 200, toJson(meta));
+    }
+
+    private record Result(int status, ObjectNode body) {}
+
+    /** files.update / files.copy / files.create on parsed input, shared by plain and batch requests. */
+    private Result modify(String method, String[] parts, Map<String, String> q, byte[] body) throws IOException {
+        Map<String, Object> json = body.length == 0
+                ? Map.of()
+                : mapper.readValue(body, new com.fasterxml.jackson.core.type.TypeReference<>() {});
+        if (parts.length == 1 && "POST".equals(method)) {
+            Node meta = readMetadata(new java.io.ByteArrayInputStream(body));
+            files.put(meta.id, meta);
+            recordChange(meta.id, false);
+            return new Result(200, toJson(meta));
+        }
+        Node n = files.get(parts[1]);
+        if (n == null) return new Result(404, errorJson(404, "File not found: " + parts[1]));
+        if (parts.length == 3 && "copy".equals(parts[2])) {
+            if (FOLDER_MIME.equals(n.mimeType)) return new Result(403, errorJson(403, "Folders cannot be copied"));
+            Node c = new Node();
+            c.id = "fake" + ids.getAndIncrement();
+            c.name = json.containsKey("name") ? String.valueOf(json.get("name")) : "Copy of " + n.name;
+            c.mimeType = n.mimeType;
+            c.size = n.size;
+            c.md5 = n.md5;
+            if (json.get("parents") instanceof List<?> l && !l.isEmpty()) l.forEach(p -> c.parents.add(String.valueOf(p)));
+            else c.parents.addAll(n.parents);
+            files.put(c.id, c);
+            recordChange(c.id, false);
+            return new Result(200, toJson(c));
+        }
+        synchronized (files) {
+            if (json.containsKey("name")) n.name = String.valueOf(json.get("name"));
+            if (json.get("trashed") instanceof Boolean t) n.trashed = t;
+            if (q.get("removeParents") != null) n.parents.removeAll(Arrays.asList(q.get("removeParents").split(",")));
+            if (q.get("addParents") != null) n.parents.addAll(Arrays.asList(q.get("addParents").split(",")));
+            n.modifiedTime = System.currentTimeMillis();
+        }
+        recordChange(n.id, false);
+        return new Result(200, toJson(n));
+    }
+
+    /**
+     * multipart/mixed batch: every part is an "application/http" request; answers come back in order
+     * as "response-<Content-ID>" parts.
+     */
+    private void batch(HttpExchange ex) throws IOException {
+        String ct = ex.getRequestHeaders().getFirst("Content-Type");
+        String boundary = ct.substring(ct.indexOf("boundary=") + "boundary=".length()).replace("\"", "");
+        byte[] raw = body(ex).readAllBytes();
+        // ISO-8859-1 keeps one char per byte so offsets can be used on the byte array
+        String text = new String(raw, StandardCharsets.ISO_8859_1);
+        String delimiter = "--" + boundary;
+        String outBoundary = "batch_" + UUID.randomUUID().toString().replace("-", "");
+        StringBuilder out = new StringBuilder();
+
+        int pos = text.indexOf(delimiter);
+        while (pos >= 0 && !text.startsWith("--", pos + delimiter.length())) {
+            int next = text.indexOf(delimiter, pos + delimiter.length());
+            if (next < 0) break;
+            String part = text.substring(pos + delimiter.length(), next);
+            pos = next;
+
+            int partHeadersEnd = part.indexOf("\r\n\r\n");
+            String contentId = headerValue(part.substring(0, partHeadersEnd), "content-id");
+            String request = part.substring(partHeadersEnd + 4);
+            int headEnd = request.indexOf("\r\n\r\n");
+            String head = headEnd < 0 ? request : request.substring(0, headEnd);
+            String payload = headEnd < 0 ? "" : request.substring(headEnd + 4);
+            if (payload.endsWith("\r\n")) payload = payload.substring(0, payload.length() - 2);
+            byte[] bodyBytes = payload.getBytes(StandardCharsets.ISO_8859_1);
+            if ("gzip".equalsIgnoreCase(headerValue(head, "content-encoding"))) {
+                bodyBytes = new GZIPInputStream(new java.io.ByteArrayInputStream(bodyBytes)).readAllBytes();
+            }
+
+            String[] line = head.substring(0, head.indexOf("\r\n") < 0 ? head.length() : head.indexOf("\r\n")).split(" ");
+            String method = line[0];
+            java.net.URI uri = java.net.URI.create(line[1]);
+            Map<String, String> q = new HashMap<>();
+            if (uri.getRawQuery() != null) {
+                for (String pair : uri.getRawQuery().split("&")) {
+                    int eq = pair.indexOf('=');
+                    if (eq > 0) q.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+            String override = headerValue(head, "x-http-method-override");
+            if (override != null) method = override;
+            String path = uri.getPath();
+            Result r = path.startsWith("/drive/v3/files")
+                    ? modify(method, path.substring("/drive/v3/".length()).split("/"), q, bodyBytes)
+                    : new Result(404, errorJson(404, "notFound"));
+
+            out.append("--").append(outBoundary).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: response-").append(contentId == null ? "" : contentId.replaceAll("[<>]", "")).append("\r\n\r\n")
+                    .append("HTTP/1.1 ").append(r.status()).append(r.status() == 200 ? " OK" : " Error").append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                    .append(mapper.writeValueAsString(r.body())).append("\r\n");
+        }
+        out.append("--").append(outBoundary).append("--\r\n");
+
+        byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + outBoundary);
+        ex.sendResponseHeaders(200, bytes.length);
+        ex.getResponseBody().write(bytes);
+    }
+
+    private static String headerValue(String headers, String name) {
+        for (String h : headers.split("\r\n")) {
+            int colon = h.indexOf(':');
+            if (colon > 0 && h.substring(0, colon).trim().equalsIgnoreCase(name)) return h.substring(colon + 1).trim();
+        }
+        return null;
+    }
+
+    private void startUpload(HttpExchange ex) throws IOException {
+        startUpload(ex, readMetadata(body(ex)));
+    }
+
+    private void startUpload(HttpExchange ex, Node meta) throws IOException {
+        Upload u = new Upload();
+        u.meta = meta;
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, u);
+        ex.getResponseHeaders().set("Location",
+                rootUrl() + "upload/drive/v3/files?uploadType=resumable&upload_id=" + uploadId);
+        ex.sendResponseHeaders(200, -1);
+    }
+
+    private void continueUpload(HttpExchange ex, String uploadId) throws IOException {
+        Upload u = uploads.get(uploadId);
+        if (u == null) {
+            error(ex, 404, "Upload session not found");
+            return;
+        }
+        long total = -1;
+        String range = ex.getRequestHeaders().getFirst("Content-Range");
+        if (range != null) {
+            Matcher m = RANGE.matcher(range);
+            if (m.find() && !"*".equals(m.group(3))) total = Long.parseLong(m.group(3));
+            else if (range.startsWith("bytes */") && !range.endsWith("*")) total = Long.parseLong(range.substring(8));
+        }
+
+        byte[] buf = new byte[64 * 1024];
+        long bandwidth = uploadBytesPerSecond;
+        long t0 = System.nanoTime();
+        long read = 0;
+        try (InputStream in = body(ex)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                u.md5.update(buf, 0, n);
+                u.received += n;
+                read += n;
+                if (bandwidth > 0) pace(t0, read, bandwidth);
+            }
+        }
+
+        if (total >= 0 && u.received >= total) {
+            uploads.remove(uploadId);
+            Node meta = u.meta;
+            meta.size = u.received;
+            meta.md5 = HexFormat.of().formatHex(u.md5.digest());
+            meta.modifiedTime = System.currentTimeMillis();
+            files.put(meta.id, meta);
+            recordChange(meta.id, false);
+            uploadedFiles.incrementAndGet();
+            uploadedBytes.addAndGet(meta.size);
+            send(ex, 200, toJson(meta));
+        } else {
+            // Resume Incomplete
+            if (u.received > 0) ex.getResponseHeaders().set("Range", "bytes=0-" + (u.received - 1));
+            ex.sendResponseHeaders(308, -1);
+        }
+    }
+
+    private static void pace(long startNanos, long bytes, long bytesPerSecond) {
+        long aheadNanos = bytes * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - startNanos);
+        if (aheadNanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Node readMetadata(InputStream body) throws IOException {
+        byte[] bytes = body.readAllBytes();
+        Map<String, Object> json = bytes.length == 0
+                ? Map.of()
+                : mapper.readValue(bytes, new com.fasterxml.jackson.core.type.TypeReference<>() {});
+        Node n = new Node();
+        n.id = "fake" + ids.getAndIncrement();
+        n.name = String.valueOf(json.getOrDefault("name", "Untitled"));
+        n.mimeType = String.valueOf(json.getOrDefault("mimeType", "application/octet-stream"));
+        Object parents = json.get("parents");
+        if (parents instanceof List<?> l && !l.isEmpty()) {
+            for (Object p : l) n.parents.add(String.valueOf(p));
+        } else {
+            n.parents.add("root");
+        }
+        if (json.get("appProperties") instanceof Map<?, ?> props) {
+            Map<String, String> copy = new HashMap<>();
+            props.forEach((k, v) -> copy.put(String.valueOf(k), String.valueOf(v)));
+            n.appProperties = copy;
+        }
+        return n;
+    }
+
+    // =====================
+    // changes.list
+    // =====================
+
+    private void listChanges(HttpExchange ex, Map<String, String> q) throws IOException {
+        long from = parseLong(q.get("pageToken"), 1);
+        int pageSize = Math.max(1, Math.min(1000, (int) parseLong(q.get("pageSize"), 100)));
+
+        ObjectNode r = mapper.createObjectNode();
+        r.put("kind", "drive#changeList");
+        ArrayNode arr = r.putArray("changes");
+        synchronized (changes) {
+            long end = Math.min(changes.size(), from - 1 + pageSize);
+            for (long i = from - 1; i < end; i++) {
+                Change c = changes.get((int) i);
+                ObjectNode cj = arr.addObject();
+                cj.put("kind", "drive#change");
+                cj.put("changeType", "file");
+                cj.put("fileId", c.fileId());
+                Node n = files.get(c.fileId());
+                cj.put("removed", c.removed() || n == null);
+                if (n != null && !c.removed()) cj.set("file", toJson(n));
+            }
+            if (end < changes.size()) r.put("nextPageToken", String.valueOf(end + 1));
+            else r.put("newStartPageToken", String.valueOf(changes.size() + 1L));
+        }
+        send(ex, 200, r);
+    }
+
+    // =====================
+    // Helpers
+    // =====================
+
+    private ObjectNode toJson(Node n) {
+        ObjectNode o = mapper.createObjectNode();
+        o.put("kind", "drive#file");
+        o.put("id", n.id);
+        o.put("name", n.name);
+        o.put("mimeType", n.mimeType);
+        ArrayNode parents = o.putArray("parents");
+        n.parents.forEach(parents::add);
+        o.put("trashed", n.trashed);
+        o.put("modifiedTime", Instant.ofEpochMilli(n.modifiedTime).toString());
+        if (!FOLDER_MIME.equals(n.mimeType)) {
+            o.put("size", String.valueOf(n.size)); // Drive encodes int64 as a string
+            if (n.md5 != null) o.put("md5Checksum", n.md5);
+        }
+        return o;
+    }
+
+    private Map<String, String> query(HttpExchange ex) {
+        Map<String, String> q = new HashMap<>();
+        String raw = ex.getRequestURI().getRawQuery();
+        if (raw == null) return q;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) continue;
+            q.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return q;
+    }
+
+    /** Request body, un-gzipped when the client compressed it (the Google client does for JSON). */
+    private static InputStream body(HttpExchange ex) throws IOException {
+        InputStream in = ex.getRequestBody();
+        if (!"gzip".equalsIgnoreCase(ex.getRequestHeaders().getFirst("Content-Encoding"))) return in;
+        // Drain the raw body first so the connection is left in a clean state
+        return new GZIPInputStream(new java.io.ByteArrayInputStream(in.readAllBytes()));
+    }
+
+    private void error(HttpExchange ex, int status, String message) throws IOException {
+        send(ex, status, errorJson(status, message));
+    }
+
+    private ObjectNode errorJson(int status, String message) {
+        ObjectNode r = mapper.createObjectNode();
+        ObjectNode err = r.putObject("error");
+        err.put("code", status);
+        err.put("message", message);
+        return r;
+    }
+
+    private void send(HttpExchange ex, int status, ObjectNode body) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        ex.getResponseBody().write(bytes);
+    }
+
+    private static long parseLong(String s, long def) {
+        try {
+            return s == null ? def : Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
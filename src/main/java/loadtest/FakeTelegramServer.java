@@ -0,0 +1,443 @@
+package loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded stand-in for the Telegram Bot API, used by the load-test driver.
+ *
+ * Supported methods: getMe, getUpdates (with long polling), sendMessage, editMessageText,
+ * answerCallbackQuery, getFile, setWebhook, deleteWebhook, plus file downloads under /file/bot.
+ * Once a webhook is registered, injected updates are POSTed to it instead of being queued for getUpdates.
+ * Point the bot at it with -Dtelegram.apiUrl={@link #apiUrl()} -Dtelegram.fileApiUrl={@link #fileApiUrl()}.
+ */
+public class FakeTelegramServer {
+
+    /** Called for every bot → user message (sendMessage, editMessageText, ...). */
+    public interface ReplyListener {
+        void onReply(long chatId, String method, Map<String, String> params);
+    }
+
+    private static final long MAX_POLL_WAIT_MS = 10_000;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final FaultInjector faults;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fake-telegram");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Deque<ObjectNode> pending = new ArrayDeque<>();
+    private final AtomicLong updateIds = new AtomicLong(1);
+    private final AtomicInteger messageIds = new AtomicInteger(1);
+    private final AtomicLong fileIds = new AtomicLong(1);
+    private final Map<String, Long> fileSizes = new ConcurrentHashMap<>();
+    private final AtomicLong receivedDocuments = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private volatile ReplyListener replyListener = (chatId, method, params) -> {};
+    private final HttpClient webhookClient = HttpClient.newHttpClient();
+    private volatile String webhookUrl;
+    private volatile String webhookSecret;
+    private volatile Path localFileDir;
+
+    public FakeTelegramServer(int port, FaultInjector faults) throws IOException {
+        this.faults = faults;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(executor);
+        server.createContext("/bot", this::handleApi);
+        server.createContext("/file/bot", this::handleFile);
+    }
+
+    public void start() { server.start(); }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int port() { return server.getAddress().getPort(); }
+
+    public String apiUrl() { return "http://127.0.0.1:" + port() + "/bot"; }
+
+    public String fileApiUrl() { return "http://127.0.0.1:" + port() + "/file/bot"; }
+
+    public void setReplyListener(ReplyListener listener) { this.replyListener = listener; }
+
+    /**
+     * Behave like a local Bot API server started with --local: getFile materialises the file in
+     * this directory and returns its absolute path instead of a download path.
+     */
+    public void setLocalFileDir(Path dir) { this.localFileDir = dir; }
+
+    /** Documents uploaded by the bot as multipart bodies (re-sends by file_id are not counted). */
+    public long receivedDocuments() { return receivedDocuments.get(); }
+
+    public long receivedBytes() { return receivedBytes.get(); }
+
+    // =====================
+    // Update injection
+    // =====================
+
+    public void pushText(long chatId, String text) {
+        ObjectNode msg = baseMessage(chatId, messageIds.getAndIncrement());
+        msg.put("text", text);
+        enqueue("message", msg);
+    }
+
+    public void pushCallback(long chatId, int messageId, String data) {
+        ObjectNode cb = mapper.createObjectNode();
+        cb.put("id", String.valueOf(updateIds.get()));
+        cb.set("from", user(chatId));
+        cb.put("chat_instance", String.valueOf(chatId));
+        cb.put("data", data);
+        cb.set("message", baseMessage(chatId, messageId));
+        enqueue("callback_query", cb);
+    }
+
+    /** Sends a document of the given size; its bytes are served by the file endpoint. */
+    public void pushDocument(long chatId, String fileName, long size) {
+        String fileId = "file" + fileIds.getAndIncrement();
+        fileSizes.put(fileId, size);
+        ObjectNode doc = mapper.createObjectNode();
+        doc.put("file_id", fileId);
+        doc.put("file_unique_id", "u" + fileId);
+        doc.put("file_name", fileName);
+        doc.put("file_size", size);
+        ObjectNode msg = baseMessage(chatId, messageIds.getAndIncrement());
+        msg.set("document", doc);
+        enqueue("message", msg);
+    }
+
+    private void enqueue(String kind, ObjectNode payload) {
+        ObjectNode update = mapper.createObjectNode();
+        update.put("update_id", updateIds.getAndIncrement());
+        update.set(kind, payload);
+        String url = webhookUrl;
+        if (url != null) {
+            deliver(url, update);
+            return;
+        }
+        synchronized (pending) {
+            pending.addLast(update);
+            pending.notifyAll();
+        }
+    }
+
+    /** Webhook delivery, like Telegram: POST the update, retry until the bot answers 200. */
+    private void deliver(String url, ObjectNode update) {
+        executor.execute(() -> {
+            for (int attempt = 0; attempt < 5; attempt++) {
+                try {
+                    faults.delay();
+                    HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(url))
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(update)));
+                    if (webhookSecret != null) req.header("X-Telegram-Bot-Api-Secret-Token", webhookSecret);
+                    if (webhookClient.send(req.build(), HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    // retry
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+    }
+
+    private ObjectNode baseMessage(long chatId, int messageId) {
+        ObjectNode msg = mapper.createObjectNode();
+        msg.put("message_id", messageId);
+        msg.put("date", System.currentTimeMillis() / 1000);
+        ObjectNode chat = mapper.createObjectNode();
+        chat.put("id", chatId);
+        chat.put("type", "private");
+        msg.set("chat", chat);
+        msg.set("from", user(chatId));
+        return msg;
+    }
+
+    private ObjectNode user(long id) {
+        ObjectNode u = mapper.createObjectNode();
+        u.put("id", id);
+        u.put("is_bot", false);
+        u.put("first_name", "user" + id);
+        return u;
+    }
+
+    // =====================
+    // HTTP handlers
+    // =====================
+
+    private void handleApi(HttpExchange ex) throws IOException {
+        try (ex) {
+            // path: /bot<token>/<method>
+            String path = ex.getRequestURI().getPath();
+            String method = path.substring(path.lastIndexOf('/') + 1);
+            Map<String, String> params = readParams(ex);
+
+            faults.delay();
+            if (!"getUpdates".equals(method) && faults.shouldFail()) {
+                ObjectNode err = mapper.createObjectNode();
+                err.put("ok", false);
+                err.put("error_code", 429);
+                err.put("description", "Too Many Requests: retry after 1");
+                send(ex, 429, err);
+                return;
+            }
+
+            Object result = switch (method) {
+                case "getMe" -> user(0).put("is_bot", true).put("username", "fake_bot");
+                case "getUpdates" -> getUpdates(params);
+                case "sendMessage", "editMessageText", "sendDocument" -> reply(method, params);
+                case "answerCallbackQuery", "sendChatAction" -> Boolean.TRUE;
+                case "setWebhook" -> {
+                    webhookSecret = params.get("secret_token");
+                    webhookUrl = params.get("url");
+                    yield Boolean.TRUE;
+                }
+                case "deleteWebhook" -> {
+                    webhookUrl = null;
+                    yield Boolean.TRUE;
+                }
+                case "getFile" -> getFile(params.get("file_id"));
+                default -> null;
+            };
+
+            ObjectNode body = mapper.createObjectNode();
+            if (result == null) {
+                body.put("ok", false);
+                body.put("error_code", 404);
+                body.put("description", "Not Found: method " + method);
+                send(ex, 404, body);
+                return;
+            }
+            body.put("ok", true);
+            body.set("result", mapper.valueToTree(result));
+            send(ex, 200, body);
+        }
+    }
+
+    private List<ObjectNode> getUpdates(Map<String, String> params) {
+        long offset = parseLong(params.get("offset"), 0);
+        int limit = (int) parseLong(params.get("limit"), 100);
+        long waitMs = Math.min(parseLong(params.get("timeout"), 0) * 1000, MAX_POLL_WAIT_MS);
+        long deadline = System.currentTimeMillis() + waitMs;
+
+        synchronized (pending) {
+            // Confirm everything below the offset
+            while (!pending.isEmpty() && pending.peekFirst().get("update_id").asLong() < offset) {
+                pending.pollFirst();
+            }
+            while (pending.isEmpty()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) break;
+                try {
+                    pending.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            List<ObjectNode> out = new ArrayList<>();
+            for (ObjectNode u : pending) {
+                if (out.size() >= limit) break;
+                out.add(u);
+            }
+            return out;
+        }
+    }
+
+    private ObjectNode reply(String method, Map<String, String> params) {
+        long chatId = parseLong(params.get("chat_id"), 0);
+        int messageId = params.containsKey("message_id")
+                ? (int) parseLong(params.get("message_id"), 0)
+                : messageIds.getAndIncrement();
+        ObjectNode msg = baseMessage(chatId, messageId);
+        if (params.get("text") != null) msg.put("text", params.get("text"));
+        if ("sendDocument".equals(method)) msg.set("document", document(params));
+        replyListener.onReply(chatId, method, params);
+        return msg;
+    }
+
+    /** Either an upload (multipart "document" part) or a re-send of a known file_id. */
+    private ObjectNode document(Map<String, String> params) {
+        String fileId = params.get("document");
+        String sizeParam = params.get("document.size");
+        if (sizeParam != null) {
+            long size = parseLong(sizeParam, 0);
+            fileId = "doc" + fileIds.getAndIncrement();
+            fileSizes.put(fileId, size);
+            receivedDocuments.incrementAndGet();
+            receivedBytes.addAndGet(size);
+        }
+        ObjectNode doc = mapper.createObjectNode();
+        doc.put("file_id", fileId);
+        doc.put("file_unique_id", "u" + fileId);
+        if (params.get("document.filename") != null) doc.put("file_name", params.get("document.filename"));
+        Long size = fileSizes.get(fileId);
+        if (size != null) doc.put("file_size", size);
+        return doc;
+    }
+
+    private ObjectNode getFile(String fileId) {
+        Long size = fileId == null ? null : fileSizes.get(fileId);
+        if (size == null) return null;
+        ObjectNode f = mapper.createObjectNode();
+        f.put("file_id", fileId);
+        f.put("file_unique_id", "u" + fileId);
+        f.put("file_size", size);
+        Path dir = localFileDir;
+        if (dir == null) {
+            f.put("file_path", "documents/" + fileId);
+            return f;
+        }
+        Path local = dir.resolve(fileId);
+        try {
+            if (!Files.exists(local)) {
+                try (OutputStream out = Files.newOutputStream(local)) {
+                    writeFiller(out, size);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        f.put("file_path", local.toAbsolutePath().toString());
+        return f;
+    }
+
+    private void handleFile(HttpExchange ex) throws IOException {
+        try (ex) {
+            String path = ex.getRequestURI().getPath();
+            String fileId = path.substring(path.lastIndexOf('/') + 1);
+            Long size = fileSizes.get(fileId);
+            faults.delay();
+            if (size == null || faults.shouldFail()) {
+                ex.sendResponseHeaders(size == null ? 404 : 500, -1);
+                return;
+            }
+            ex.sendResponseHeaders(200, size);
+            writeFiller(ex.getResponseBody(), size);
+        }
+    }
+
+    /** Streams deterministic filler bytes without materialising the whole file. */
+    static void writeFiller(OutputStream out, long size) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        for (int i = 0; i < chunk.length; i++) chunk[i] = (byte) (i * 31);
+        long left = size;
+        while (left > 0) {
+            int n = (int) Math.min(chunk.length, left);
+            out.write(chunk, 0, n);
+            left -= n;
+        }
+    }
+
+    // =====================
+    // Helpers
+    // =====================
+
+    private Map<String, String> readParams(HttpExchange ex) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        String query = ex.getRequestURI().getRawQuery();
+        if (query != null) parseForm(query, params);
+
+        byte[] body = ex.getRequestBody().readAllBytes();
+        if (body.length == 0) return params;
+        String ct = Optional.ofNullable(ex.getRequestHeaders().getFirst("Content-Type")).orElse("");
+        if (ct.startsWith("application/json")) {
+            Map<String, Object> json = mapper.readValue(body, new com.fasterxml.jackson.core.type.TypeReference<>() {});
+            json.forEach((k, v) -> params.put(k, String.valueOf(v)));
+        } else if (ct.startsWith("application/x-www-form-urlencoded")) {
+            parseForm(new String(body, StandardCharsets.UTF_8), params);
+        } else if (ct.startsWith("multipart/form-data")) {
+            parseMultipart(body, ct.substring(ct.indexOf("boundary=") + "boundary=".length()), params);
+        }
+        return params;
+    }
+
+    /** Text parts become params; a file part "x" becomes "x.size" and "x.filename" (the bytes are dropped). */
+    private static void parseMultipart(byte[] body, String boundary, Map<String, String> into) {
+        // ISO-8859-1 maps bytes 1:1 to chars, so indices stay byte offsets
+        String raw = new String(body, StandardCharsets.ISO_8859_1);
+        String delimiter = "--" + boundary.replace("\"", "");
+        int pos = raw.indexOf(delimiter);
+        while (pos >= 0) {
+            int headerStart = pos + delimiter.length();
+            if (raw.startsWith("--", headerStart)) break;
+            int headerEnd = raw.indexOf("\r\n\r\n", headerStart);
+            int next = raw.indexOf("\r\n" + delimiter, headerEnd);
+            if (headerEnd < 0 || next < 0) break;
+            String headers = new String(body, headerStart, headerEnd - headerStart, StandardCharsets.UTF_8);
+            String name = dispositionValue(headers, "name");
+            String fileName = dispositionValue(headers, "filename");
+            int dataStart = headerEnd + 4;
+            if (name != null && fileName != null) {
+                into.put(name + ".size", String.valueOf(next - dataStart));
+                into.put(name + ".filename", fileName);
+            } else if (name != null) {
+                into.put(name, new String(body, dataStart, next - dataStart, StandardCharsets.UTF_8));
+            }
+            pos = next + 2;
+        }
+    }
+
+    private static String dispositionValue(String headers, String key) {
+        String marker = " " + key + "=\"";
+        int i = headers.indexOf(marker);
+        if (i < 0) i = headers.indexOf(";" + key + "=\"");
+        if (i < 0) return null;
+        int start = i + marker.length();
+        int end = headers.indexOf('"', start);
+        return end < 0 ? null : headers.substring(start, end);
+    }
+
+    private static void parseForm(String form, Map<String, String> into) {
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String k = eq < 0 ? pair : pair.substring(0, eq);
+            String v = eq < 0 ? "" : pair.substring(eq + 1);
+            into.put(URLDecoder.decode(k, StandardCharsets.UTF_8), URLDecoder.decode(v, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void send(HttpExchange ex, int status, ObjectNode body) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        ex.getResponseBody().write(bytes);
+    }
+
+    private static long parseLong(String s, long def) {
+        try {
+            return s == null ? def : Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
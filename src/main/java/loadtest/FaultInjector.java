@@ -0,0 +1,46 @@
+package loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency and error injection shared by the fake servers.
+ * Every request sleeps latencyMs ± jitterMs and fails with the given probability.
+ */
+public class FaultInjector {
+
+    private volatile long latencyMs;
+    private volatile long jitterMs;
+    private volatile double errorRate;
+
+    public FaultInjector(long latencyMs, long jitterMs, double errorRate) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.errorRate = errorRate;
+    }
+
+    public static FaultInjector none() {
+        return new FaultInjector(0, 0, 0);
+    }
+
+    /** Sleeps for the configured latency. */
+    public void delay() {
+        long d = latencyMs;
+        if (jitterMs > 0) d += ThreadLocalRandom.current().nextLong(-jitterMs, jitterMs + 1);
+        if (d <= 0) return;
+        try {
+            Thread.sleep(d);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** True when this request should fail. */
+    public boolean shouldFail() {
+        double r = errorRate;
+        return r > 0 && ThreadLocalRandom.current().nextDouble() < r;
+    }
+
+    public void setLatencyMs(long latencyMs) { this.latencyMs = latencyMs; }
+    public void setJitterMs(long jitterMs) { this.jitterMs = jitterMs; }
+    public void setErrorRate(double errorRate) { this.errorRate = errorRate; }
+}
@@ -0,0 +1,311 @@
+package loadtest;
+
+import bot.FileUploaderBot;
+import com.pengrad.telegrambot.TelegramBot;
+import security.SecurityStore;
+import service.DriveService;
+import service.GoogleDriveUploader;
+import session.SessionManager;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Offline load test: starts the fake Telegram and Drive servers, runs the real bot against them
+ * and replays synthetic user sessions (/start → Browse → folder → Upload → document → Finish).
+ *
+ * Options (all --key=value):
+ *   rate=5             new sessions per second
+ *   duration=30        seconds to keep starting sessions
+ *   tgLatency=20       fake Telegram latency in ms (jitter = latency / 2)
+ *   driveLatency=50    fake Drive latency in ms (jitter = latency / 2)
+ *   errorRate=0.0      probability of an injected error per request, on both servers
+ *   fileSize=65536     bytes per uploaded document
+ *   largeFraction=0    share of sessions that upload a large document instead (reported as upload-large)
+ *   largeFileSize=16777216  bytes per large document
+ *   driveUploadKBps=0  fake Drive upload speed per request in KB/s (0 = unlimited)
+ *   uploadScheduling=sjf  the bot's upload order: sjf (small files first, with aging) or fifo
+ *   folders=5 depth=3 fanout=3 files=5   shape of the seeded Drive tree
+ *   webhook=false      deliver updates through the bot's webhook server instead of getUpdates
+ *   localApi=false     fake a local Bot API server: getFile returns absolute paths of files on disk
+ *   driveConnectMs=0   delay before Drive counts as connected (simulates the OAuth start-up)
+ *   driveAccounts=1    Drive accounts in the bot's pool
+ *   accountQps=0       per-account request limit of the fake Drive (0 = none), answered with 429
+ *   serversOnly=false  only start the fake servers and print their URLs
+ *
+ * Reports end-to-end latency (update injected → bot reply received) p50/p95/p99 per step and overall,
+ * plus throughput.
+ */
+public class LoadTestDriver {
+
+    private static final long STEP_TIMEOUT_MS = 30_000;
+    private static final String TOKEN = "123456:LOADTEST";
+    private static final java.util.Set<String> NAVIGATION_STEPS = java.util.Set.of("browse", "open-folder");
+
+    private final FakeTelegramServer telegram;
+    private final FakeDriveServer drive;
+    private final List<String> topFolderIds;
+    private final long fileSize;
+    private double largeFraction;
+    private long largeFileSize;
+    private java.util.function.Supplier<String> botStatus;
+
+    private final Map<Long, BlockingQueue<Long>> replies = new ConcurrentHashMap<>();
+    private final Map<Long, String> currentStep = new ConcurrentHashMap<>();
+    private final AtomicInteger liveRefreshes = new AtomicInteger();
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    private final AtomicInteger completedSessions = new AtomicInteger();
+    private final AtomicInteger failedSessions = new AtomicInteger();
+
+    public LoadTestDriver(FakeTelegramServer telegram, FakeDriveServer drive, List<String> topFolderIds, long fileSize) {
+        this.telegram = telegram;
+        this.drive = drive;
+        this.topFolderIds = topFolderIds;
+        this.fileSize = fileSize;
+        telegram.setReplyListener((chatId, method, params) -> {
+            // Only navigation steps are answered by an edit; any other edit is the bot refreshing an open folder
+            if ("editMessageText".equals(method) && !NAVIGATION_STEPS.contains(currentStep.get(chatId))) {
+                liveRefreshes.incrementAndGet();
+                return;
+            }
+            replies.computeIfAbsent(chatId, k -> new LinkedBlockingQueue<>()).offer(System.nanoTime());
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        double rate = Double.parseDouble(opts.getOrDefault("rate", "5"));
+        int duration = Integer.parseInt(opts.getOrDefault("duration", "30"));
+        long tgLatency = Long.parseLong(opts.getOrDefault("tgLatency", "20"));
+        long driveLatency = Long.parseLong(opts.getOrDefault("driveLatency", "50"));
+        double errorRate = Double.parseDouble(opts.getOrDefault("errorRate", "0"));
+        long fileSize = Long.parseLong(opts.getOrDefault("fileSize", "65536"));
+        if (opts.containsKey("uploadScheduling")) System.setProperty("upload.scheduling", opts.get("uploadScheduling"));
+
+        FakeTelegramServer telegram = new FakeTelegramServer(
+                Integer.parseInt(opts.getOrDefault("tgPort", "0")),
+                new FaultInjector(tgLatency, tgLatency / 2, errorRate));
+        FakeDriveServer drive = new FakeDriveServer(
+                Integer.parseInt(opts.getOrDefault("drivePort", "0")),
+                new FaultInjector(driveLatency, driveLatency / 2, errorRate));
+
+        List<String> topIds = drive.seed(Integer.parseInt(opts.getOrDefault("folders", "5")),
+                Integer.parseInt(opts.getOrDefault("depth", "3")),
+                Integer.parseInt(opts.getOrDefault("fanout", "3")),
+                Integer.parseInt(opts.getOrDefault("files", "5")));
+        if (Boolean.parseBoolean(opts.getOrDefault("localApi", "false"))) {
+            java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("loadtest-localapi");
+            telegram.setLocalFileDir(dir);
+            System.setProperty("telegram.localApi", "true");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                File[] left = dir.toFile().listFiles();
+                if (left != null) for (File f : left) f.delete();
+                dir.toFile().delete();
+            }));
+        }
+        telegram.start();
+        drive.start();
+
+        System.out.println("Fake Telegram: -Dtelegram.apiUrl=" + telegram.apiUrl()
+                + " -Dtelegram.fileApiUrl=" + telegram.fileApiUrl());
+        System.out.println("Fake Drive:    -Ddrive.rootUrl=" + drive.rootUrl());
+        if (Boolean.parseBoolean(opts.getOrDefault("serversOnly", "false"))) {
+            Thread.currentThread().join();
+        }
+
+        if (Boolean.parseBoolean(opts.getOrDefault("webhook", "false"))) {
+            int port;
+            try (java.net.ServerSocket probe = new java.net.ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            System.setProperty("telegram.webhookPort", String.valueOf(port));
+            System.setProperty("telegram.webhookUrl", "http://127.0.0.1:" + port + "/webhook");
+        }
+
+        // Bot under test, wired to the fakes
+        TelegramBot tg = new TelegramBot.Builder(TOKEN)
+                .apiUrl(telegram.apiUrl())
+                .fileApiUrl(telegram.fileApiUrl())
+                .updateListenerSleep(10)
+                .build();
+        File securityFile = File.createTempFile("loadtest-security", ".json");
+        securityFile.deleteOnExit();
+        // Streamed document uploads bypass the pengrad client and read these directly
+        System.setProperty("telegram.apiUrl", telegram.apiUrl());
+        File fileIdCache = File.createTempFile("loadtest-fileids", ".json");
+        fileIdCache.deleteOnExit();
+        System.setProperty("telegram.fileIdCache", fileIdCache.getPath());
+        if (System.getProperty("tree.snapshot") == null) {
+            // A snapshot of an earlier run's (differently seeded) fake drive must not be picked up
+            File snapshot = File.createTempFile("loadtest-tree", ".snapshot");
+            snapshot.delete();
+            snapshot.deleteOnExit();
+            System.setProperty("tree.snapshot", snapshot.getPath());
+        }
+        if (System.getProperty("upload.journalDir") == null) {
+            System.setProperty("upload.journalDir", new File(System.getProperty("java.io.tmpdir"), "loadtest-uploads").getPath());
+        }
+        if (System.getProperty("audit.dir") == null) {
+            System.setProperty("audit.dir", new File(System.getProperty("java.io.tmpdir"), "loadtest-audit").getPath());
+        }
+        if (System.getProperty("spool.dir") == null) {
+            System.setProperty("spool.dir", new File(System.getProperty("java.io.tmpdir"), "loadtest-spool").getPath());
+        }
+        drive.setAccountQps(Integer.parseInt(opts.getOrDefault("accountQps", "0")));
+        drive.setUploadBandwidth(Long.parseLong(opts.getOrDefault("driveUploadKBps", "0")) * 1024);
+        int accounts = Integer.parseInt(opts.getOrDefault("driveAccounts", "1"));
+        long connectMs = Long.parseLong(opts.getOrDefault("driveConnectMs", "0"));
+        DriveService driveService;
+        if (accounts > 1) {
+            List<GoogleDriveUploader> uploaders = new ArrayList<>();
+            for (int i = 1; i <= accounts; i++) uploaders.add(new GoogleDriveUploader(drive.rootUrl(), "user" + i));
+            driveService = new DriveService(uploaders);
+        } else {
+            GoogleDriveUploader uploader = new GoogleDriveUploader(drive.rootUrl());
+            driveService = new DriveService(connectMs == 0
+                    ? CompletableFuture.completedFuture(uploader)
+                    : CompletableFuture.supplyAsync(() -> uploader,
+                            CompletableFuture.delayedExecutor(connectMs, TimeUnit.MILLISECONDS)));
+        }
+        FileUploaderBot bot = new FileUploaderBot(tg,
+                driveService,
+                new SessionManager(),
+                new SecurityStore(securityFile));
+        bot.start();
+
+        LoadTestDriver driver = new LoadTestDriver(telegram, drive, topIds, fileSize);
+        driver.largeFraction = Double.parseDouble(opts.getOrDefault("largeFraction", "0"));
+        driver.largeFileSize = Long.parseLong(opts.getOrDefault("largeFileSize", String.valueOf(16L << 20)));
+        driver.botStatus = bot::statusSummary;
+        driver.run(rate, duration);
+
+        tg.removeGetUpdatesListener();
+        tg.shutdown();
+        telegram.stop();
+        drive.stop();
+        System.exit(0);
+    }
+
+    /** Starts sessions at the target rate for the given duration and prints the report. */
+    public void run(double sessionsPerSecond, int durationSeconds) throws InterruptedException {
+        ExecutorService workers = Executors.newCachedThreadPool();
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger nextChat = new AtomicInteger(1000);
+        List<Future<?>> running = Collections.synchronizedList(new ArrayList<>());
+
+        long periodMicros = (long) (1_000_000 / sessionsPerSecond);
+        long startNs = System.nanoTime();
+        ScheduledFuture<?> tick = ticker.scheduleAtFixedRate(
+                () -> running.add(workers.submit(() -> runSession(nextChat.getAndIncrement()))),
+                0, periodMicros, TimeUnit.MICROSECONDS);
+
+        Thread.sleep(durationSeconds * 1000L);
+        tick.cancel(false);
+        ticker.shutdown();
+
+        for (Future<?> f : new ArrayList<>(running)) {
+            try {
+                f.get();
+            } catch (ExecutionException ignored) {
+                // counted as a failed session
+            }
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        workers.shutdown();
+        report(elapsedNs);
+    }
+
+    private void runSession(long chatId) {
+        Random rnd = ThreadLocalRandom.current();
+        try {
+            step(chatId, "start", () -> telegram.pushText(chatId, "/start"));
+            step(chatId, "browse", () -> telegram.pushCallback(chatId, 1, "welcome:browse"));
+            String folderId = topFolderIds.get(rnd.nextInt(topFolderIds.size()));
+            step(chatId, "open-folder", () -> telegram.pushCallback(chatId, 1, "folder:" + folderId));
+            List<String> fileIds = drive.fileIdsIn(folderId);
+            if (!fileIds.isEmpty()) {
+                String fileId = fileIds.get(rnd.nextInt(fileIds.size()));
+                step(chatId, "get-file", () -> telegram.pushCallback(chatId, 1, "file:" + fileId));
+            }
+            step(chatId, "upload-tap", () -> telegram.pushCallback(chatId, 1, "upload"));
+            boolean large = rnd.nextDouble() < largeFraction;
+            long size = large ? largeFileSize : fileSize;
+            step(chatId, large ? "upload-large" : "upload-file",
+                    () -> telegram.pushDocument(chatId, "load_" + chatId + ".bin", size));
+            step(chatId, "finish", () -> telegram.pushCallback(chatId, 1, "finish"));
+            completedSessions.incrementAndGet();
+        } catch (Exception e) {
+            failedSessions.incrementAndGet();
+        } finally {
+            replies.remove(chatId);
+            currentStep.remove(chatId);
+        }
+    }
+
+    private void step(long chatId, String name, Runnable send) throws InterruptedException, TimeoutException {
+        BlockingQueue<Long> q = replies.computeIfAbsent(chatId, k -> new LinkedBlockingQueue<>());
+        q.clear();
+        currentStep.put(chatId, name);
+        long t0 = System.nanoTime();
+        send.run();
+        Long t1 = q.poll(STEP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (t1 == null) throw new TimeoutException(name + " timed out for chat " + chatId);
+        latencies.computeIfAbsent(name, k -> Collections.synchronizedList(new ArrayList<>())).add(t1 - t0);
+    }
+
+    private void report(long elapsedNs) {
+        double seconds = elapsedNs / 1e9;
+        List<Long> all = new ArrayList<>();
+        System.out.println();
+        System.out.println("=== Load test report ===");
+        System.out.printf("Sessions: %d completed, %d failed in %.1fs (%.2f sessions/s)%n",
+                completedSessions.get(), failedSessions.get(), seconds, completedSessions.get() / seconds);
+        System.out.printf("%-12s %8s %10s %10s %10s %10s%n", "step", "count", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (String name : List.of("start", "browse", "open-folder", "get-file", "upload-tap", "upload-file", "upload-large", "finish")) {
+            List<Long> l = latencies.get(name);
+            if (l == null) continue;
+            List<Long> copy;
+            synchronized (l) {
+                copy = new ArrayList<>(l);
+            }
+            all.addAll(copy);
+            printRow(name, copy);
+        }
+        printRow("all", all);
+        System.out.printf("Throughput: %.1f steps/s, Drive uploads: %d files / %.1f MB%n",
+                all.size() / seconds, drive.uploadedFiles(), drive.uploadedBytes() / 1048576.0);
+        if (drive.rateLimitedRequests() > 0) {
+            System.out.println("Drive requests answered 429: " + drive.rateLimitedRequests());
+        }
+        System.out.printf("Telegram document uploads: %d / %.1f MB (the rest were re-sent by file_id)%n",
+                telegram.receivedDocuments(), telegram.receivedBytes() / 1048576.0);
+        if (liveRefreshes.get() > 0) System.out.println("Live folder refreshes received: " + liveRefreshes.get());
+        if (botStatus != null) System.out.println("Bot: " + botStatus.get());
+    }
+
+    private static void printRow(String name, List<Long> nanos) {
+        if (nanos.isEmpty()) return;
+        Collections.sort(nanos);
+        System.out.printf("%-12s %8d %10.1f %10.1f %10.1f %10.1f%n", name, nanos.size(),
+                percentile(nanos, 0.50) / 1e6, percentile(nanos, 0.95) / 1e6, percentile(nanos, 0.99) / 1e6,
+                nanos.get(nanos.size() - 1) / 1e6);
+    }
+
+    static long percentile(List<Long> sorted, double p) {
+        int idx = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, idx)));
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> m = new HashMap<>();
+        for (String a : args) {
+            String s = a.startsWith("--") ? a.substring(2) : a;
+            int eq = s.indexOf('=');
+            if (eq > 0) m.put(s.substring(0, eq), s.substring(eq + 1));
+            else m.put(s, "true");
+        }
+        return m;
+    }
+}
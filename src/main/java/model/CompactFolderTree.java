@@ -0,0 +1,627 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory-compact, read-only folder tree for very large drives.
+ *
+ * Nodes (folders and files) are int indexes into parallel arrays: parent / firstChild / nextSibling / flags.
+ * Names are UTF-8 in one byte pool (identical names stored once), Drive ids in a second pool with an
+ * open-addressing hash index for id → node lookups. Node 0 is a synthetic "My Drive" root; top-level folders
+ * are its children. Pools can live off-heap (direct or memory-mapped buffers).
+ *
+ * Each folder also carries rollups of everything below it (bytes, file count, newest modification),
+ * computed in one pass over the arrays whenever a tree is built or loaded.
+ *
+ * Bot code keeps using {@link Folder}: {@link #roots()} and {@link #view(int)} return lightweight Folder
+ * views created on demand, so nothing per node is kept on the heap besides the arrays.
+ */
+public final class CompactFolderTree {
+
+    private static final int MAGIC_V1 = 0x43465431; // "CFT1"
+    private static final int MAGIC_V2 = 0x43465432; // "CFT2": adds the change-feed page token
+    private static final int MAGIC_V3 = 0x43465433; // "CFT3": adds file sizes and modified times
+    private static final int MAGIC = 0x43465434;    // "CFT4": adds the encrypted flag
+    private static final byte FOLDER = 1;
+    private static final byte GOOGLE_DOC = 2;
+    private static final byte ENCRYPTED = 4;
+    // Only the "is a Google Doc" bit is kept; any google-apps type satisfies FileEntry.isGoogleDoc()
+    private static final String GOOGLE_DOC_MIME = "application/vnd.google-apps.document";
+    private static final String ENCRYPTED_MIME = "application/x-tgdrive-encrypted"; // security.FolderCrypto
+    public static final int NONE = -1;
+
+    private final int size;
+    private final int[] parent;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final byte[] flags;
+    private final long[] fileSize;   // -1 = unknown (folders, Google Docs)
+    private final long[] modified;   // epoch ms, 0 = unknown
+    private final long[] totalBytes; // rollups over the subtree (a file's are its own values)
+    private final int[] fileCount;
+    private final long[] lastModified;
+    private final int[] nameOff;
+    private final int[] nameLen;
+    private final int[] idStart;     // size + 1 entries, ids are appended in node order
+    private final ByteBuffer names;
+    private final ByteBuffer ids;
+    private final int[] idIndex;     // open addressing: node + 1, 0 = empty
+    private String pageToken;        // Drive changes token the tree is current as of (null = unknown)
+
+    private CompactFolderTree(int size, int[] parent, int[] firstChild, int[] nextSibling, byte[] flags,
+                              long[] fileSize, long[] modified,
+                              int[] nameOff, int[] nameLen, int[] idStart, ByteBuffer names, ByteBuffer ids) {
+        this.size = size;
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.flags = flags;
+        this.fileSize = fileSize;
+        this.modified = modified;
+        this.nameOff = nameOff;
+        this.nameLen = nameLen;
+        this.idStart = idStart;
+        this.names = names;
+        this.ids = ids;
+        this.idIndex = new int[Integer.highestOneBit(Math.max(2, size) * 2) * 2];
+        for (int i = 0; i < size; i++) indexId(i);
+
+        // Every node is added after its parent, so one backwards pass sums children into parents
+        this.totalBytes = new long[size];
+        this.fileCount = new int[size];
+        this.lastModified = new long[size];
+        for (int n = size - 1; n >= 0; n--) {
+            if (!isFolder(n)) {
+                totalBytes[n] = Math.max(0, fileSize[n]);
+                fileCount[n] = 1;
+                lastModified[n] = modified[n];
+            }
+            int p = parent[n];
+            if (p != NONE) {
+                totalBytes[p] += totalBytes[n];
+                fileCount[p] += fileCount[n];
+                lastModified[p] = Math.max(lastModified[p], lastModified[n]);
+            }
+        }
+    }
+
+    // =====================
+    // Node access
+    // =====================
+
+    public int size() { return size; }
+
+    public int parent(int node) { return parent[node]; }
+
+    public int firstChild(int node) { return firstChild[node]; }
+
+    public int nextSibling(int node) { return nextSibling[node]; }
+
+    public boolean isFolder(int node) { return (flags[node] & FOLDER) != 0; }
+
+    public boolean isGoogleDoc(int node) { return (flags[node] & GOOGLE_DOC) != 0; }
+
+    /** Stored encrypted by the bot (see security.FolderCrypto). */
+    public boolean isEncrypted(int node) { return (flags[node] & ENCRYPTED) != 0; }
+
+    /** File size in bytes, -1 if unknown. */
+    public long fileSize(int node) { return fileSize[node]; }
+
+    /** Bytes of all files under a folder (or of the file itself). */
+    public long totalBytes(int node) { return totalBytes[node]; }
+
+    /** Files under a folder, at any depth. */
+    public int fileCount(int node) { return fileCount[node]; }
+
+    /** Newest file modification under a folder, epoch ms (0 = none known). */
+    public long lastModified(int node) { return lastModified[node]; }
+
+    /** Change-feed page token stored with the snapshot, or null. */
+    public String pageToken() { return pageToken; }
+
+    public void setPageToken(String pageToken) { this.pageToken = pageToken; }
+
+    private static byte flags(boolean folder, boolean googleDoc, boolean encrypted) {
+        return (byte) ((folder ? FOLDER : 0) | (googleDoc ? GOOGLE_DOC : 0) | (encrypted ? ENCRYPTED : 0));
+    }
+
+    private FileEntry fileEntry(int node) {
+        String mime = isGoogleDoc(node) ? GOOGLE_DOC_MIME : isEncrypted(node) ? ENCRYPTED_MIME : null;
+        return new FileEntry(id(node), name(node), mime,
+                fileSize[node], null, modified[node]);
+    }
+
+    public String name(int node) {
+        byte[] b = new byte[nameLen[node]];
+        names.get(nameOff[node], b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    public String id(int node) {
+        int from = idStart[node];
+        byte[] b = new byte[idStart[node + 1] - from];
+        ids.get(from, b);
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Node with the given Drive id, or {@link #NONE}. */
+    public int indexOf(String id) {
+        byte[] key = id.getBytes(StandardCharsets.ISO_8859_1);
+        int mask = idIndex.length - 1;
+        for (int h = hash(key) & mask; ; h = (h + 1) & mask) {
+            int slot = idIndex[h];
+            if (slot == 0) return NONE;
+            if (idEquals(slot - 1, key)) return slot - 1;
+        }
+    }
+
+    /** Folder views of the top-level folders. */
+    public List<Folder> roots() {
+        return view(0).getSubFolders();
+    }
+
+    public Folder view(int node) {
+        return new View(node);
+    }
+
+    /** Rough heap + off-heap footprint in bytes. */
+    public long estimatedBytes() {
+        return (long) size * (4 * 7 + 8 * 5 + 1) + 4L * idIndex.length + names.capacity() + ids.capacity();
+    }
+
+    private void indexId(int node) {
+        int from = idStart[node];
+        int len = idStart[node + 1] - from;
+        if (len == 0) return; // synthetic root / files without ids
+        int h = 0;
+        for (int i = 0; i < len; i++) h = 31 * h + ids.get(from + i);
+        int mask = idIndex.length - 1;
+        for (h = mix(h) & mask; idIndex[h] != 0; h = (h + 1) & mask) { }
+        idIndex[h] = node + 1;
+    }
+
+    private boolean idEquals(int node, byte[] key) {
+        int from = idStart[node];
+        if (idStart[node + 1] - from != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (ids.get(from + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(byte[] key) {
+        int h = 0;
+        for (byte b : key) h = 31 * h + b;
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    // =====================
+    // Folder view
+    // =====================
+
+    private final class View extends Folder {
+        private final int node;
+
+        View(int node) {
+            this.node = node;
+        }
+
+        @Override public String getId() { return node == 0 ? "root" : id(node); }
+        @Override public String getName() { return node == 0 ? "My Drive" : name(node); }
+
+        @Override
+        public Folder getParent() {
+            int p = parent[node];
+            return p <= 0 ? null : new View(p);
+        }
+
+        @Override
+        public void setParent(Folder parent) {
+            throw new UnsupportedOperationException("Compact folder trees are read-only");
+        }
+
+        @Override
+        public void setName(String name) {
+            throw new UnsupportedOperationException("Compact folder trees are read-only");
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        @Override public long getTotalBytes() { return totalBytes[node]; }
+        @Override public int getFileCount() { return fileCount[node]; }
+        @Override public long getLastModified() { return lastModified[node]; }
+
+        @Override
+        public List<Folder> getSubFolders() {
+            List<Folder> out = new ArrayList<>();
+            for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+                if (isFolder(c)) out.add(new View(c));
+            }
+            return java.util.Collections.unmodifiableList(out);
+        }
+
+        @Override
+        public List<FileEntry> getFiles() {
+            List<Integer> files = new ArrayList<>();
+            for (int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+                if (!isFolder(c)) files.add(c);
+            }
+            return new AbstractList<>() {
+                @Override public FileEntry get(int i) { return fileEntry(files.get(i)); }
+                @Override public int size() { return files.size(); }
+            };
+        }
+    }
+
+    // =====================
+    // Building
+    // =====================
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** Appends nodes; children keep insertion order. */
+    public static final class Builder {
+        private int size;
+        private int[] parent = new int[1024];
+        private int[] firstChild = new int[1024];
+        private int[] lastChild = new int[1024];
+        private int[] nextSibling = new int[1024];
+        private byte[] flags = new byte[1024];
+        private long[] fileSize = new long[1024];
+        private long[] modified = new long[1024];
+        private int[] nameOff = new int[1024];
+        private int[] nameLen = new int[1024];
+        private int[] idStart = new int[1025];
+        private final Map<String, Integer> nameDedup = new HashMap<>();
+        private final GrowableBytes names = new GrowableBytes();
+        private final GrowableBytes ids = new GrowableBytes();
+
+        private Builder() {
+            add(NONE, "", "", true); // node 0: My Drive
+        }
+
+        /** @return index of the new node */
+        public int add(int parentNode, String id, String name, boolean folder) {
+            return add(parentNode, id, name, folder, false);
+        }
+
+        public int add(int parentNode, String id, String name, boolean folder, boolean googleDoc) {
+            return add(parentNode, id, name, folder, googleDoc, -1, 0);
+        }
+
+        public int add(int parentNode, String id, String name, boolean folder, boolean googleDoc,
+                       long fileSize, long modifiedTime) {
+            return add(parentNode, id, name, folder, googleDoc, false, fileSize, modifiedTime);
+        }
+
+        /** @param fileSize bytes, -1 if unknown; @param modifiedTime epoch ms, 0 if unknown */
+        public int add(int parentNode, String id, String name, boolean folder, boolean googleDoc, boolean encrypted,
+                       long fileSize, long modifiedTime) {
+            return add(parentNode, id, name, flags(folder, googleDoc, encrypted), fileSize, modifiedTime);
+        }
+
+        private int add(int parentNode, String id, String name, byte nodeFlags, long fileSize, long modifiedTime) {
+            boolean folder = (nodeFlags & FOLDER) != 0;
+            ensureCapacity(size + 1);
+            int n = size++;
+            parent[n] = parentNode;
+            firstChild[n] = NONE;
+            lastChild[n] = NONE;
+            nextSibling[n] = NONE;
+            flags[n] = nodeFlags;
+            this.fileSize[n] = folder ? -1 : fileSize;
+            this.modified[n] = modifiedTime;
+
+            byte[] nb = name.getBytes(StandardCharsets.UTF_8);
+            Integer off = nameDedup.get(name);
+            if (off == null) {
+                off = names.append(nb);
+                nameDedup.put(name, off);
+            }
+            nameOff[n] = off;
+            nameLen[n] = nb.length;
+
+            ids.append(id.getBytes(StandardCharsets.ISO_8859_1));
+            idStart[n + 1] = ids.length;
+
+            if (parentNode != NONE) {
+                if (lastChild[parentNode] == NONE) firstChild[parentNode] = n;
+                else nextSibling[lastChild[parentNode]] = n;
+                lastChild[parentNode] = n;
+            }
+            return n;
+        }
+
+        public int root() {
+            return 0;
+        }
+
+        /** @param offHeap keep name and id pools in direct buffers */
+        public CompactFolderTree build(boolean offHeap) {
+            return new CompactFolderTree(size,
+                    Arrays.copyOf(parent, size), Arrays.copyOf(firstChild, size), Arrays.copyOf(nextSibling, size),
+                    Arrays.copyOf(flags, size), Arrays.copyOf(fileSize, size), Arrays.copyOf(modified, size),
+                    Arrays.copyOf(nameOff, size), Arrays.copyOf(nameLen, size),
+                    Arrays.copyOf(idStart, size + 1), names.toBuffer(offHeap), ids.toBuffer(offHeap));
+        }
+
+        private void ensureCapacity(int n) {
+            if (n <= parent.length) return;
+            int cap = Math.max(n, parent.length * 2);
+            parent = Arrays.copyOf(parent, cap);
+            firstChild = Arrays.copyOf(firstChild, cap);
+            lastChild = Arrays.copyOf(lastChild, cap);
+            nextSibling = Arrays.copyOf(nextSibling, cap);
+            flags = Arrays.copyOf(flags, cap);
+            fileSize = Arrays.copyOf(fileSize, cap);
+            modified = Arrays.copyOf(modified, cap);
+            nameOff = Arrays.copyOf(nameOff, cap);
+            nameLen = Arrays.copyOf(nameLen, cap);
+            idStart = Arrays.copyOf(idStart, cap + 1);
+        }
+    }
+
+    private static final class GrowableBytes {
+        byte[] data = new byte[8192];
+        int length;
+
+        int append(byte[] b) {
+            if (length + b.length > data.length) data = Arrays.copyOf(data, Math.max(length + b.length, data.length * 2));
+            System.arraycopy(b, 0, data, length, b.length);
+            int at = length;
+            length += b.length;
+            return at;
+        }
+
+        ByteBuffer toBuffer(boolean offHeap) {
+            ByteBuffer buf = offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+            buf.put(data, 0, length).flip();
+            return buf;
+        }
+    }
+
+    /** Converts an existing object tree (e.g. from {@code DriveService.scanTopLevelFolders()}). */
+    public static CompactFolderTree fromFolders(List<Folder> roots, boolean offHeap) {
+        Builder b = builder();
+        for (Folder f : roots) addRecursive(b, b.root(), f);
+        return b.build(offHeap);
+    }
+
+    private static void addRecursive(Builder b, int parent, Folder f) {
+        int n = b.add(parent, f.getId(), f.getName(), true);
+        for (Folder sub : f.getSubFolders()) addRecursive(b, n, sub);
+        for (FileEntry file : f.getFiles()) {
+            b.add(n, file.getId() == null ? "" : file.getId(), file.getName(), false, file.isGoogleDoc(),
+                    file.isEncrypted(), file.getSize(), file.getModifiedTime());
+        }
+    }
+
+    /**
+     * Materialises a mutable object tree (for code that edits folders in place).
+     * Child lists are CopyOnWriteArrayLists, so the tree can be shared by concurrent readers while being patched.
+     */
+    public List<Folder> toFolders() {
+        // Children before parents: reverse of a breadth-first order
+        int[] order = new int[size];
+        int head = 0, tail = 0;
+        order[tail++] = 0;
+        while (head < tail) {
+            for (int c = firstChild[order[head++]]; c != NONE; c = nextSibling[c]) {
+                if (isFolder(c)) order[tail++] = c;
+            }
+        }
+        Folder[] built = new Folder[size];
+        for (int i = tail - 1; i >= 0; i--) {
+            int n = order[i];
+            List<Folder> subs = new ArrayList<>();
+            List<FileEntry> files = new ArrayList<>();
+            for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+                if (isFolder(c)) subs.add(built[c]);
+                else files.add(fileEntry(c));
+            }
+            built[n] = new Folder(n == 0 ? "root" : id(n), n == 0 ? "My Drive" : name(n),
+                    new java.util.concurrent.CopyOnWriteArrayList<>(subs),
+                    new java.util.concurrent.CopyOnWriteArrayList<>(files));
+            built[n].setRollup(totalBytes[n], fileCount[n], lastModified[n]);
+            // top-level folders keep a null parent, as in a scanned tree
+            if (n != 0) for (Folder sub : subs) sub.setParent(built[n]);
+        }
+        return built[0].getSubFolders();
+    }
+
+    // =====================
+    // Change feed
+    // =====================
+
+    /** One entry of the Drive change feed, reduced to what the tree stores. */
+    public record Change(String id, boolean removed, String parentId, String name, boolean folder, boolean googleDoc,
+                         boolean encrypted, long size, long modifiedTime) {}
+
+    /**
+     * A new tree with the changes applied (the receiver is not modified). Removed folders take their subtree
+     * with them; items whose parent is not in the tree (shared drives, other owners) are left out.
+     * Existing children keep their order, new ones are appended.
+     */
+    public CompactFolderTree withChanges(List<Change> changes, boolean offHeap) {
+        record Rec(String parentId, String name, byte flags, long size, long modified) {}
+        Map<String, Rec> recs = new java.util.LinkedHashMap<>(size * 2);
+        for (int n = 1; n < size; n++) {
+            String id = id(n);
+            if (id.isEmpty()) continue;
+            recs.put(id, new Rec(parent[n] == 0 ? "root" : id(parent[n]), name(n), flags[n], fileSize[n], modified[n]));
+        }
+        for (Change c : changes) {
+            if (c.removed() || c.parentId() == null) {
+                recs.remove(c.id());
+            } else {
+                recs.put(c.id(), new Rec(c.parentId(), c.name(),
+                        flags(c.folder(), c.googleDoc(), c.encrypted()), c.size(), c.modifiedTime()));
+            }
+        }
+        Map<String, List<String>> children = new HashMap<>();
+        for (Map.Entry<String, Rec> e : recs.entrySet()) {
+            children.computeIfAbsent(e.getValue().parentId(), k -> new ArrayList<>()).add(e.getKey());
+        }
+
+        Builder b = builder();
+        java.util.ArrayDeque<String> queue = new java.util.ArrayDeque<>();
+        java.util.ArrayDeque<Integer> nodes = new java.util.ArrayDeque<>();
+        queue.add("root");
+        nodes.add(b.root());
+        while (!queue.isEmpty()) {
+            String pid = queue.poll();
+            int pnode = nodes.poll();
+            for (String cid : children.getOrDefault(pid, List.of())) {
+                Rec r = recs.get(cid);
+                boolean folder = (r.flags() & FOLDER) != 0;
+                int n = b.add(pnode, cid, r.name(), r.flags(), r.size(), r.modified());
+                if (folder) {
+                    queue.add(cid);
+                    nodes.add(n);
+                }
+            }
+            children.remove(pid); // a folder reachable twice (cycle) is only expanded once
+        }
+        return b.build(offHeap);
+    }
+
+    // =====================
+    // Persistence
+    // =====================
+
+    /**
+     * Writes the tree in a flat binary layout (native byte order):
+     * magic, size, namesLen, idsLen, tokenLen, page token bytes, the int arrays, the size and modified-time
+     * long arrays, flags, then the two pools. Rollups are not stored; they are recomputed on load.
+     */
+    public void save(Path file) throws IOException {
+        byte[] token = pageToken == null ? new byte[0] : pageToken.getBytes(StandardCharsets.UTF_8);
+        long bytes = 20 + token.length + (long) size * (4 * 5 + 8 * 2 + 1) + 4L * (size + 1) + names.capacity() + ids.capacity();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            out.order(ByteOrder.nativeOrder());
+            out.putInt(MAGIC).putInt(size).putInt(names.capacity()).putInt(ids.capacity());
+            out.putInt(token.length).put(token);
+            out.asIntBuffer().put(parent, 0, size);
+            out.position(out.position() + 4 * size);
+            out.asIntBuffer().put(firstChild, 0, size);
+            out.position(out.position() + 4 * size);
+            out.asIntBuffer().put(nextSibling, 0, size);
+            out.position(out.position() + 4 * size);
+            out.asIntBuffer().put(nameOff, 0, size);
+            out.position(out.position() + 4 * size);
+            out.asIntBuffer().put(nameLen, 0, size);
+            out.position(out.position() + 4 * size);
+            out.asIntBuffer().put(idStart, 0, size + 1);
+            out.position(out.position() + 4 * (size + 1));
+            out.asLongBuffer().put(fileSize, 0, size);
+            out.position(out.position() + 8 * size);
+            out.asLongBuffer().put(modified, 0, size);
+            out.position(out.position() + 8 * size);
+            out.put(flags, 0, size);
+            out.put(names.duplicate().clear());
+            out.put(ids.duplicate().clear());
+            out.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a tree written by {@link #save(Path)} with bulk array copies.
+     *
+     * @param offHeap leave the name and id pools in the memory-mapped file instead of copying them to the heap
+     */
+    public static CompactFolderTree load(Path file, boolean offHeap) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            in.order(ByteOrder.nativeOrder());
+            int magic = in.getInt();
+            if (magic != MAGIC && magic != MAGIC_V3 && magic != MAGIC_V2 && magic != MAGIC_V1) throw new IOException("Not a compact folder tree: " + file);
+            int size = in.getInt();
+            int namesLen = in.getInt();
+            int idsLen = in.getInt();
+            String token = null;
+            if (magic != MAGIC_V1) {
+                byte[] t = new byte[in.getInt()];
+                in.get(t);
+                if (t.length > 0) token = new String(t, StandardCharsets.UTF_8);
+            }
+            int[] parent = readInts(in, size);
+            int[] firstChild = readInts(in, size);
+            int[] nextSibling = readInts(in, size);
+            int[] nameOff = readInts(in, size);
+            int[] nameLen = readInts(in, size);
+            int[] idStart = readInts(in, size + 1);
+            long[] fileSize;
+            long[] modified;
+            if (magic == MAGIC || magic == MAGIC_V3) {
+                fileSize = readLongs(in, size);
+                modified = readLongs(in, size);
+            } else {
+                fileSize = new long[size];
+                Arrays.fill(fileSize, -1);
+                modified = new long[size];
+            }
+            byte[] flags = new byte[size];
+            in.get(flags);
+            ByteBuffer names = slice(in, namesLen, offHeap);
+            ByteBuffer ids = slice(in, idsLen, offHeap);
+            CompactFolderTree tree = new CompactFolderTree(size, parent, firstChild, nextSibling, flags, fileSize, modified,
+                    nameOff, nameLen, idStart, names, ids);
+            // Older snapshots never set the encrypted flag; without a token the cache rescans instead of trusting them
+            tree.pageToken = magic == MAGIC ? token : null;
+            return tree;
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in, int n) {
+        int[] a = new int[n];
+        in.asIntBuffer().get(a);
+        in.position(in.position() + 4 * n);
+        return a;
+    }
+
+    private static long[] readLongs(ByteBuffer in, int n) {
+        long[] a = new long[n];
+        in.asLongBuffer().get(a);
+        in.position(in.position() + 8 * n);
+        return a;
+    }
+
+    private static ByteBuffer slice(ByteBuffer in, int len, boolean offHeap) {
+        ByteBuffer s = in.slice(in.position(), len);
+        in.position(in.position() + len);
+        if (offHeap) return s; // stays valid after the channel is closed
+        ByteBuffer copy = ByteBuffer.allocate(len);
+        copy.put(s).flip();
+        return copy;
+    }
+}
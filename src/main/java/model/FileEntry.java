@@ -0,0 +1,47 @@
+package model;
+
+/** A regular (non-folder) Drive file inside a {@link Folder}. */
+public class FileEntry {
+    private final String id;
+    private final String name;
+    private final String mimeType;
+    private final long size;            // -1 when unknown (e.g. Google Docs)
+    private final String md5Checksum;   // null for Google Docs
+    private final long modifiedTime;    // epoch millis, 0 when unknown
+
+    public FileEntry(String id, String name, String mimeType, long size, String md5Checksum, long modifiedTime) {
+        this.id = id;
+        this.name = name;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.md5Checksum = md5Checksum;
+        this.modifiedTime = modifiedTime;
+    }
+
+    public FileEntry(String id, String name) {
+        this(id, name, null, -1, null, 0);
+    }
+
+    // Getters
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public String getMimeType() { return mimeType; }
+    public long getSize() { return size; }
+    public String getMd5Checksum() { return md5Checksum; }
+    public long getModifiedTime() { return modifiedTime; }
+
+    /** Stored encrypted by the bot (see security.FolderCrypto); the size is that of the encrypted form. */
+    public boolean isEncrypted() {
+        return "application/x-tgdrive-encrypted".equals(mimeType);
+    }
+
+    /** A Drive folder, as returned by listings that include folders. */
+    public boolean isFolder() {
+        return "application/vnd.google-apps.folder".equals(mimeType);
+    }
+
+    /** Google Docs/Sheets/... have no binary content to download. */
+    public boolean isGoogleDoc() {
+        return mimeType != null && mimeType.startsWith("application/vnd.google-apps.");
+    }
+}
@@ -8,7 +8,16 @@ public class Folder {
     private String name;
     private Folder parent;
     private List<Folder> subFolders;
-    private List<String> files;
+    private List<FileEntry> files;
+
+    // Rollups over the whole subtree, kept current by the add/remove methods below
+    private volatile long totalBytes;
+    private volatile int fileCount;
+    private volatile long lastModified;
+    private volatile int version; // bumped on every change to this folder's view or its rollups
+
+    // for views that override every getter (see CompactFolderTree)
+    Folder() {}
 
     public Folder(String id, String name) {
         this.id = id;
@@ -17,11 +26,103 @@ public class Folder {
         this.files = new ArrayList<>();
     }
 
+    /** With caller-supplied child lists (e.g. concurrent ones for a shared tree). */
+    public Folder(String id, String name, List<Folder> subFolders, List<FileEntry> files) {
+        this.id = id;
+        this.name = name;
+        this.subFolders = subFolders;
+        this.files = files;
+    }
+
     // Getters and setters
     public String getId() { return id; }
     public String getName() { return name; }
+    public void setName(String name) {
+        this.name = name;
+        version++;
+        if (parent != null) parent.version++; // its keyboard shows this name
+    }
     public Folder getParent() { return parent; }
     public void setParent(Folder parent) { this.parent = parent; }
     public List<Folder> getSubFolders() { return subFolders; }
-    public List<String> getFiles() { return files; }
+    public List<FileEntry> getFiles() { return files; }
+
+    /** Read-only views cannot be edited in place; reload the tree instead. */
+    public boolean isReadOnly() { return false; }
+
+    /** Bytes of all files in this folder and its subfolders (unknown sizes count as 0). */
+    public long getTotalBytes() { return totalBytes; }
+
+    /** Files in this folder and its subfolders. */
+    public int getFileCount() { return fileCount; }
+
+    /** Newest file modification below this folder, epoch ms; not lowered when files are removed. */
+    public long getLastModified() { return lastModified; }
+
+    /** Changes whenever what a view of this folder shows changes, so derived data can tell it is stale. */
+    public int getVersion() { return version; }
+
+    /** Marks the folder's view as changed by something kept outside the tree (e.g. a security setting). */
+    public void touch() { version++; }
+
+    void setRollup(long totalBytes, int fileCount, long lastModified) {
+        this.totalBytes = totalBytes;
+        this.fileCount = fileCount;
+        this.lastModified = lastModified;
+    }
+
+    /** Adds a file, replacing one with the same id, and updates the rollups up to the top-level folder. */
+    public void addFile(FileEntry file) {
+        if (file.getId() != null) removeFile(file.getId());
+        files.add(file);
+        adjustRollups(Math.max(0, file.getSize()), 1, file.getModifiedTime());
+    }
+
+    /** @return the removed file, or null if there was none with that id */
+    public FileEntry removeFile(String fileId) {
+        for (FileEntry f : files) {
+            if (fileId.equals(f.getId()) && files.remove(f)) {
+                adjustRollups(-Math.max(0, f.getSize()), -1, 0);
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /** Attaches a folder (with whatever it already contains) and adds its rollups to this folder's ancestors. */
+    public void addSubFolder(Folder sub) {
+        subFolders.add(sub);
+        sub.setParent(this);
+        adjustRollups(sub.getTotalBytes(), sub.getFileCount(), sub.getLastModified());
+    }
+
+    /** Replaces the file with the same id (e.g. after a rename); false if there is none. */
+    public boolean replaceFile(FileEntry file) {
+        for (int i = 0; i < files.size(); i++) {
+            if (files.get(i).getId().equals(file.getId())) {
+                files.set(i, file);
+                version++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean removeSubFolder(Folder sub) {
+        if (!subFolders.remove(sub)) return false;
+        adjustRollups(-sub.getTotalBytes(), -sub.getFileCount(), 0);
+        return true;
+    }
+
+    // O(depth): only the ancestor path changes
+    private void adjustRollups(long bytes, int count, long modifiedTime) {
+        for (Folder f = this; f != null; f = f.getParent()) {
+            synchronized (f) {
+                f.totalBytes += bytes;
+                f.fileCount += count;
+                if (modifiedTime > f.lastModified) f.lastModified = modifiedTime;
+                f.version++;
+            }
+        }
+    }
 }
@@ -0,0 +1,390 @@
+package security;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import config.AppConfig;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only record of uploads and access grants (folder unlocks, direct codes, admin logins).
+ *
+ * {@link #record} never blocks: events go into a lock-free ring buffer ("audit.bufferSize", default 8192) and
+ * are dropped, and counted, if it is full. One "audit-writer" thread drains the buffer every
+ * "audit.flushMillis" (default 200) and appends each batch as JSON lines to the current segment in "audit.dir"
+ * (default audit), with an fsync at most every "audit.fsyncMillis" (default 1000).
+ *
+ * A segment is sealed at "audit.segmentMb" (default 16). Sealing writes a small .idx file with the segment's
+ * time range and the chat and folder ids it mentions, so {@link #query} opens only segments that can match.
+ * Segment names contain the writer's pid, so several bot processes can share the directory.
+ */
+public class AuditLog {
+
+    public enum Type { UPLOAD, FOLDER_UNLOCK, FOLDER_UNLOCK_FAILED, DIRECT_CODE, DIRECT_CODE_FAILED, ADMIN_LOGIN, ADMIN_LOGIN_FAILED }
+
+    public record Event(long time, long chatId, String user, Type type, String folderId, String detail) {}
+
+    /** What a sealed segment contains; chats and folders are exact sets. */
+    record Index(long minTime, long maxTime, long count, Set<Long> chats, Set<String> folders) {
+        boolean mayContain(Long chatId, String folderId) {
+            return (chatId == null || chats.contains(chatId)) && (folderId == null || folders.contains(folderId));
+        }
+    }
+
+    private static final int MAX_BATCH = 1024;
+    private static volatile AuditLog defaultInstance;
+    private static final Map<String, AuditLog> botInstances = new ConcurrentHashMap<>();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path dir;
+    private final long segmentBytes;
+    private final long flushNanos;
+    private final long fsyncNanos;
+
+    // Multi-producer ring: producers claim a slot by CAS on head, the writer frees it by advancing tail
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Map<Path, Index> sealed = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Writer-thread state
+    private Path activePath;
+    private FileChannel active;
+    private long activeMin, activeMax, activeCount;
+    private final Set<Long> activeChats = ConcurrentHashMap.newKeySet();
+    private final Set<String> activeFolders = ConcurrentHashMap.newKeySet();
+    private long lastSync = System.nanoTime();
+    private boolean unsynced;
+
+    /** The process-wide log configured by the "audit.*" properties. */
+    public static AuditLog getDefault() {
+        AuditLog a = defaultInstance;
+        if (a == null) {
+            synchronized (AuditLog.class) {
+                a = defaultInstance;
+                if (a == null) {
+                    a = configured(Path.of(AppConfig.get("audit.dir", "audit")));
+                    defaultInstance = a;
+                }
+            }
+        }
+        return a;
+    }
+
+    /** The log of one of several bots in the process, in its own directory; the unnamed bot gets the default. */
+    public static AuditLog forBot(String botName) {
+        if (botName.isEmpty()) return getDefault();
+        return botInstances.computeIfAbsent(botName,
+                n -> configured(Path.of(AppConfig.forBot(AppConfig.get("audit.dir", "audit"), n))));
+    }
+
+    private static AuditLog configured(Path dir) {
+        return new AuditLog(dir,
+                AppConfig.getInt("audit.bufferSize", 8192),
+                AppConfig.getLong("audit.segmentMb", 16) * 1024 * 1024,
+                AppConfig.getLong("audit.flushMillis", 200),
+                AppConfig.getLong("audit.fsyncMillis", 1000));
+    }
+
+    public AuditLog(Path dir, int bufferSize, long segmentBytes, long flushMillis, long fsyncMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        try {
+            Files.createDirectories(dir);
+            recoverUnsealed();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to prepare audit directory " + dir, e);
+        }
+        writer = new Thread(this::writeLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "audit-close"));
+    }
+
+    /** Queues an event; returns immediately and drops the event if the buffer is full. */
+    public void record(Type type, long chatId, String user, String folderId, String detail) {
+        Event e = new Event(System.currentTimeMillis(), chatId, user, type, folderId, detail);
+        long h;
+        do {
+            h = head.get();
+            if (h - tail >= ring.length()) {
+                if (dropped.incrementAndGet() % 1000 == 1) {
+                    System.err.println("Audit buffer full, dropped " + dropped.get() + " events so far");
+                }
+                return;
+            }
+        } while (!head.compareAndSet(h, h + 1));
+        ring.lazySet((int) (h & mask), e);
+    }
+
+    public long droppedEvents() {
+        return dropped.get();
+    }
+
+    /** Writes what is buffered, seals the current segment and stops the writer. */
+    public void close() {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // =====================
+    // Writer thread
+    // =====================
+
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64 * 1024);
+        while (true) {
+            batch.clear();
+            drain(batch);
+            if (!batch.isEmpty()) {
+                try {
+                    append(batch, buf);
+                } catch (IOException e) {
+                    System.err.println("Failed to write " + batch.size() + " audit events: " + e.getMessage());
+                }
+            }
+            if (batch.size() == MAX_BATCH) continue; // more waiting
+            if (!running && head.get() == tail) break;
+            syncIfDue(false);
+            LockSupport.parkNanos(flushNanos);
+        }
+        try {
+            if (active != null) seal();
+        } catch (IOException e) {
+            System.err.println("Failed to seal audit segment: " + e.getMessage());
+        }
+    }
+
+    private void drain(List<Event> batch) {
+        long t = tail;
+        while (batch.size() < MAX_BATCH) {
+            int slot = (int) (t & mask);
+            Event e = ring.get(slot);
+            if (e == null) break; // empty, or claimed but not yet published
+            ring.set(slot, null);
+            batch.add(e);
+            t++;
+        }
+        tail = t; // frees the slots for producers
+    }
+
+    private void append(List<Event> batch, ByteArrayOutputStream buf) throws IOException {
+        if (active == null) openSegment(batch.get(0).time());
+        buf.reset();
+        for (Event e : batch) {
+            mapper.writeValue(buf, e); // does not close buf
+            buf.write('\n');
+            activeMin = Math.min(activeMin, e.time());
+            activeMax = Math.max(activeMax, e.time());
+            activeCount++;
+            activeChats.add(e.chatId());
+            if (e.folderId() != null) activeFolders.add(e.folderId());
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buf.toByteArray());
+        while (bytes.hasRemaining()) active.write(bytes);
+        unsynced = true;
+        if (active.position() >= segmentBytes) seal();
+    }
+
+    private void syncIfDue(boolean force) {
+        if (active == null || !unsynced) return;
+        if (!force && System.nanoTime() - lastSync < fsyncNanos) return;
+        try {
+            active.force(false);
+        } catch (IOException e) {
+            System.err.println("Audit fsync failed: " + e.getMessage());
+        }
+        unsynced = false;
+        lastSync = System.nanoTime();
+    }
+
+    private void openSegment(long startTime) throws IOException {
+        activePath = dir.resolve("audit-" + startTime + "-" + ProcessHandle.current().pid() + ".log");
+        active = FileChannel.open(activePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeMin = Long.MAX_VALUE;
+        activeMax = Long.MIN_VALUE;
+        activeCount = 0;
+        activeChats.clear();
+        activeFolders.clear();
+    }
+
+    private void seal() throws IOException {
+        syncIfDue(true);
+        active.close();
+        Index index = new Index(activeMin, activeMax, activeCount, new TreeSet<>(activeChats), new TreeSet<>(activeFolders));
+        writeIndex(activePath, index);
+        sealed.put(activePath, index);
+        active = null;
+        activePath = null;
+    }
+
+    private void writeIndex(Path segment, Index index) throws IOException {
+        Path idx = indexPath(segment);
+        Path tmp = idx.resolveSibling(idx.getFileName() + ".tmp");
+        mapper.writeValue(tmp.toFile(), index);
+        Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Indexes segments left unsealed by a process that died; segments of live processes are still growing
+    private void recoverUnsealed() throws IOException {
+        for (Path segment : segments()) {
+            if (Files.exists(indexPath(segment))) continue;
+            long pid = pidOf(segment);
+            if (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) continue;
+            Index index = scanIndex(segment);
+            writeIndex(segment, index);
+            System.out.println("Indexed unsealed audit segment " + segment.getFileName() + " (" + index.count() + " events)");
+        }
+    }
+
+    private Index scanIndex(Path segment) throws IOException {
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE, count = 0;
+        Set<Long> chats = new TreeSet<>();
+        Set<String> folders = new TreeSet<>();
+        try (BufferedReader r = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+            for (String line; (line = r.readLine()) != null; ) {
+                Event e = parse(line);
+                if (e == null) continue;
+                min = Math.min(min, e.time());
+                max = Math.max(max, e.time());
+                count++;
+                chats.add(e.chatId());
+                if (e.folderId() != null) folders.add(e.folderId());
+            }
+        }
+        return new Index(min, max, count, chats, folders);
+    }
+
+    // =====================
+    // Queries
+    // =====================
+
+    /**
+     * Newest events first, at most {@code limit}. Null filters match anything.
+     * Events still in the buffer (up to "audit.flushMillis" old) are not included.
+     */
+    public List<Event> query(Long chatId, String folderId, int limit) throws IOException {
+        List<Event> result = new ArrayList<>();
+        List<Path> all = segments();
+        for (int i = all.size() - 1; i >= 0 && result.size() < limit; i--) {
+            Path segment = all.get(i);
+            Index index = indexOf(segment);
+            if (index != null && !index.mayContain(chatId, folderId)) continue;
+            // keep only the newest matches of this segment
+            Deque<Event> newest = new ArrayDeque<>();
+            try (BufferedReader r = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                for (String line; (line = r.readLine()) != null; ) {
+                    Event e = parse(line);
+                    if (e == null) continue;
+                    if (chatId != null && e.chatId() != chatId) continue;
+                    if (folderId != null && !folderId.equals(e.folderId())) continue;
+                    newest.addLast(e);
+                    if (newest.size() > limit - result.size()) newest.removeFirst();
+                }
+            }
+            while (!newest.isEmpty()) result.add(newest.removeLast());
+        }
+        return result;
+    }
+
+    /** Sealed index, the live one for our own active segment, or null (another process's active segment). */
+    private Index indexOf(Path segment) {
+        Path current = activePath;
+        if (segment.equals(current)) {
+            return new Index(activeMin, activeMax, activeCount, activeChats, activeFolders);
+        }
+        Index index = sealed.get(segment);
+        if (index != null) return index;
+        Path idx = indexPath(segment);
+        if (!Files.exists(idx)) return null;
+        try {
+            index = mapper.readValue(idx.toFile(), Index.class);
+            sealed.put(segment, index);
+            return index;
+        } catch (IOException e) {
+            return null; // scan it instead
+        }
+    }
+
+    private Event parse(String line) {
+        if (line.isBlank()) return null;
+        try {
+            return mapper.readValue(line, Event.class);
+        } catch (IOException e) {
+            return null; // torn last line after a crash
+        }
+    }
+
+    /** Segment files, oldest first. */
+    private List<Path> segments() throws IOException {
+        List<Path> result = new ArrayList<>();
+        File[] files = dir.toFile().listFiles((d, name) -> name.startsWith("audit-") && name.endsWith(".log"));
+        if (files == null) return result;
+        for (File f : files) result.add(f.toPath());
+        result.sort(Comparator.comparingLong(AuditLog::startOf).thenComparing(Path::toString));
+        return result;
+    }
+
+    private static Path indexPath(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - ".log".length()) + ".idx");
+    }
+
+    // audit-<startMillis>-<pid>.log
+    private static long startOf(Path segment) {
+        String[] parts = segment.getFileName().toString().split("[-.]");
+        try {
+            return Long.parseLong(parts[1]);
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static long pidOf(Path segment) {
+        String[] parts = segment.getFileName().toString().split("[-.]");
+        try {
+            return Long.parseLong(parts[2]);
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package security;
+
+import config.AppConfig;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encryption at rest for files uploaded into encrypted folders, as streams that never hold a whole file.
+ *
+ * Format (v1): a {@value #HEADER}-byte header (magic, the file's random AES-256 key wrapped with the master key,
+ * a nonce prefix), then the content in {@value #CHUNK}-byte chunks, each AES-GCM sealed with its own 16-byte tag.
+ * A chunk's nonce contains its index and its associated data marks the last chunk, so reordered, dropped or
+ * truncated chunks fail authentication. Chunks are sealed and opened in parallel on "crypto.threads" (default
+ * all cores) while the stream is read in order. Each stream always has one chunk under way; chunks read ahead
+ * beyond that come from a budget shared by all streams, "crypto.maxChunks" (default two per thread), so
+ * concurrent uploads and downloads together hold a bounded number of chunks however many there are.
+ *
+ * The master key is "crypto.keyFile" (default folder-crypto.key), created on first use. Without it the
+ * encrypted files cannot be read, by anyone: back it up.
+ */
+public class FolderCrypto {
+
+    /** Drive MIME type of encrypted files, so they are recognised without reading them. */
+    public static final String ENCRYPTED_MIME = "application/x-tgdrive-encrypted";
+
+    static final int CHUNK = 1024 * 1024;
+    private static final int TAG = 16;
+    private static final byte[] MAGIC = "TGDENC01".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    private static final int HEADER = MAGIC.length + 12 + 32 + TAG + 4;
+    private static final byte[] LAST = {1};
+    private static final byte[] NOT_LAST = {0};
+    private static volatile FolderCrypto defaultInstance;
+
+    private final Path keyFile;
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService workers;
+    private final Semaphore readAhead;
+    private final AtomicLong cryptoNanos = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile SecretKey masterKey;
+
+    /** The process-wide instance for "crypto.keyFile". */
+    public static FolderCrypto getDefault() {
+        FolderCrypto c = defaultInstance;
+        if (c == null) {
+            synchronized (FolderCrypto.class) {
+                c = defaultInstance;
+                if (c == null) {
+                    c = new FolderCrypto(Path.of(AppConfig.get("crypto.keyFile", "folder-crypto.key")));
+                    defaultInstance = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public FolderCrypto(Path keyFile) {
+        this.keyFile = keyFile;
+        int threads = Math.max(1, AppConfig.getInt("crypto.threads", Runtime.getRuntime().availableProcessors()));
+        this.readAhead = new Semaphore(Math.max(0, AppConfig.getInt("crypto.maxChunks", threads * 2)));
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "crypto");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Size of the encrypted form of plainLength bytes; -1 stays -1 (unknown). */
+    public static long encryptedLength(long plainLength) {
+        if (plainLength < 0) return -1;
+        return HEADER + plainLength + TAG * Math.max(1, (plainLength + CHUNK - 1) / CHUNK);
+    }
+
+    /** Size of the content of an encrypted file of encryptedLength bytes. */
+    public static long plainLength(long encryptedLength) {
+        if (encryptedLength < HEADER + TAG) return -1;
+        long body = encryptedLength - HEADER;
+        long chunks = (body + CHUNK + TAG - 1) / (CHUNK + TAG);
+        return body - TAG * chunks;
+    }
+
+    /** Whether the stream starts with an encrypted file's header; needs mark support and leaves the stream where it was. */
+    public static boolean hasHeader(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+        } finally {
+            in.reset();
+        }
+    }
+
+    /** The encrypted form of a stream, produced as it is read. */
+    public CryptoStream encrypt(InputStream plain) throws IOException {
+        byte[] fileKey = new byte[32];
+        byte[] keyNonce = new byte[12];
+        byte[] prefix = new byte[4];
+        random.nextBytes(fileKey);
+        random.nextBytes(keyNonce);
+        random.nextBytes(prefix);
+        byte[] wrapped;
+        try {
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            c.init(Cipher.ENCRYPT_MODE, masterKey(), new GCMParameterSpec(TAG * 8, keyNonce));
+            c.updateAAD(MAGIC);
+            wrapped = c.doFinal(fileKey);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption failed", e);
+        }
+        byte[] header = ByteBuffer.allocate(HEADER).put(MAGIC).put(keyNonce).put(wrapped).put(prefix).array();
+        return new CryptoStream(plain, header, new SecretKeySpec(fileKey, "AES"), prefix, Cipher.ENCRYPT_MODE, CHUNK);
+    }
+
+    /** The content of an encrypted stream; a damaged or altered file fails with an IOException. */
+    public CryptoStream decrypt(InputStream encrypted) throws IOException {
+        byte[] header = encrypted.readNBytes(HEADER);
+        if (header.length < HEADER || !Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            throw new IOException("Not an encrypted file");
+        }
+        ByteBuffer h = ByteBuffer.wrap(header, MAGIC.length, HEADER - MAGIC.length);
+        byte[] keyNonce = new byte[12];
+        byte[] wrapped = new byte[32 + TAG];
+        byte[] prefix = new byte[4];
+        h.get(keyNonce).get(wrapped).get(prefix);
+        byte[] fileKey;
+        try {
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            c.init(Cipher.DECRYPT_MODE, masterKey(), new GCMParameterSpec(TAG * 8, keyNonce));
+            c.updateAAD(MAGIC);
+            fileKey = c.doFinal(wrapped);
+        } catch (AEADBadTagException e) {
+            throw new IOException("The file was encrypted with a different key");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decryption failed", e);
+        }
+        return new CryptoStream(encrypted, new byte[0], new SecretKeySpec(fileKey, "AES"), prefix, Cipher.DECRYPT_MODE, CHUNK + TAG);
+    }
+
+    /** Time spent sealing/opening chunks, time readers actually waited for them, and the bytes processed. */
+    public String describe() {
+        return String.format(java.util.Locale.ROOT, "crypto: %.1f MB, %d ms cpu, %d ms waited, %d read-ahead chunks free",
+                bytes.get() / 1048576.0, cryptoNanos.get() / 1_000_000, waitNanos.get() / 1_000_000,
+                readAhead.availablePermits());
+    }
+
+    private SecretKey masterKey() throws IOException {
+        SecretKey k = masterKey;
+        if (k != null) return k;
+        synchronized (this) {
+            if (masterKey == null) {
+                if (Files.exists(keyFile)) {
+                    byte[] raw = Files.readAllBytes(keyFile);
+                    if (raw.length != 32) throw new IOException("Key file " + keyFile + " is not a 256-bit key");
+                    masterKey = new SecretKeySpec(raw, "AES");
+                } else {
+                    masterKey = createKey();
+                }
+            }
+            return masterKey;
+        }
+    }
+
+    private SecretKey createKey() throws IOException {
+        try {
+            KeyGenerator gen = KeyGenerator.getInstance("AES");
+            gen.init(256, random);
+            SecretKey key = gen.generateKey();
+            if (keyFile.getParent() != null) Files.createDirectories(keyFile.getParent());
+            Files.write(keyFile, key.getEncoded(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                Files.setPosixFilePermissions(keyFile, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+                // not a POSIX file system
+            }
+            System.out.println("Created encryption key " + keyFile.toAbsolutePath() + " - back it up");
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot create an encryption key", e);
+        }
+    }
+
+    /**
+     * Reads the source in chunks, seals or opens them on the workers and hands the results out in order.
+     * Reading ahead stops when the shared {@link #readAhead} budget is used up.
+     */
+    public final class CryptoStream extends InputStream {
+        private final InputStream src;
+        private final SecretKey key;
+        private final byte[] prefix;
+        private final int mode;
+        private final int chunkIn;
+        private final Deque<CompletableFuture<byte[]>> ahead = new ArrayDeque<>();
+        private int permits; // read-ahead permits held: all chunks under way but one
+        private long nextIndex;
+        private int carry = -1; // the byte read to find out whether the previous chunk was the last
+        private boolean sourceDone;
+        private byte[] current;
+        private int pos;
+        private long waited;
+
+        CryptoStream(InputStream src, byte[] header, SecretKey key, byte[] prefix, int mode, int chunkIn) {
+            this.src = src;
+            this.current = header;
+            this.key = key;
+            this.prefix = prefix;
+            this.mode = mode;
+            this.chunkIn = chunkIn;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (pos == current.length) {
+                try {
+                    fill();
+                } catch (IOException e) {
+                    discard();
+                    throw e;
+                }
+                if (ahead.isEmpty()) return -1;
+                long t0 = System.nanoTime();
+                CompletableFuture<byte[]> next = ahead.poll();
+                if (permits > 0) {
+                    permits--;
+                    readAhead.release();
+                }
+                try {
+                    current = next.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    discard();
+                    throw new IOException("Interrupted", e);
+                } catch (ExecutionException e) {
+                    discard(); // a failed stream is not read further, closed or not
+                    if (e.getCause() instanceof AEADBadTagException) {
+                        throw new IOException("The encrypted file is damaged or was changed");
+                    }
+                    throw new IOException("Encryption failed", e.getCause());
+                }
+                long w = System.nanoTime() - t0;
+                waited += w;
+                waitNanos.addAndGet(w);
+                pos = 0;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private void fill() throws IOException {
+            while (!sourceDone && (ahead.isEmpty() || readAhead.tryAcquire())) {
+                if (!ahead.isEmpty()) permits++;
+                byte[] chunk = new byte[chunkIn];
+                int n = 0;
+                if (carry >= 0) {
+                    chunk[n++] = (byte) carry;
+                    carry = -1;
+                }
+                n += src.readNBytes(chunk, n, chunkIn - n);
+                boolean last = n < chunkIn || (carry = src.read()) < 0;
+                if (last) sourceDone = true;
+                if (mode == Cipher.DECRYPT_MODE && n < TAG) throw new IOException("The encrypted file is truncated");
+                byte[] in = n == chunkIn ? chunk : Arrays.copyOf(chunk, n);
+                long index = nextIndex++;
+                ahead.add(CompletableFuture.supplyAsync(() -> seal(in, index, last), workers));
+            }
+        }
+
+        private byte[] seal(byte[] in, long index, boolean last) {
+            long t0 = System.nanoTime();
+            try {
+                Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+                byte[] nonce = ByteBuffer.allocate(12).put(prefix).putLong(index).array();
+                c.init(mode, key, new GCMParameterSpec(TAG * 8, nonce));
+                c.updateAAD(last ? LAST : NOT_LAST);
+                byte[] out = c.doFinal(in);
+                bytes.addAndGet(in.length);
+                return out;
+            } catch (GeneralSecurityException e) {
+                throw new java.util.concurrent.CompletionException(e);
+            } finally {
+                cryptoNanos.addAndGet(System.nanoTime() - t0);
+            }
+        }
+
+        /** How long reads of this stream waited for chunks to be sealed or opened: the cost encryption added. */
+        public long waitedNanos() {
+            return waited;
+        }
+
+        @Override
+        public void close() throws IOException {
+            discard();
+            src.close();
+        }
+
+        // Drops the chunks under way and gives their read-ahead permits back
+        private void discard() {
+            ahead.forEach(f -> f.cancel(false));
+            ahead.clear();
+            sourceDone = true;
+            readAhead.release(permits);
+            permits = 0;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package security;
+
+import model.Folder;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which password-protected folder guards each folder, so a lock on a folder also covers all its subfolders.
+ *
+ * For every folder at or below a protected one, {@code lockOf} holds the nearest protected folder (itself or
+ * an ancestor); for every protected folder, {@code outerLockOf} holds the next protected folder above it.
+ * Checking a tap is one lookup plus one per nested lock, regardless of depth; folders outside any lock
+ * have no entry at all.
+ *
+ * The index is rebuilt when a new tree is published ({@link #rebuild}) and patched per subtree when a
+ * password changes in the {@link SecurityStore} or folders are moved, copied or trashed.
+ */
+public class ProtectionIndex {
+
+    private record State(List<Folder> roots, Map<String, String> lockOf, Map<String, String> outerLockOf) {}
+
+    private final SecurityStore store;
+    private volatile State state = new State(List.of(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+
+    public ProtectionIndex(SecurityStore store) {
+        this.store = store;
+        store.addFolderListener(this::passwordsChanged);
+    }
+
+    /**
+     * The protected folder the user still has to unlock to open a folder, or null if it is open to them.
+     *
+     * @param unlocked    folders unlocked in the session
+     * @param boundaryId  direct-access root: locks above it do not apply (null for none)
+     */
+    public String firstLocked(String folderId, Set<String> unlocked, String boundaryId) {
+        State s = state;
+        String lock = s.lockOf.get(folderId);
+        // not indexed yet (tree still loading): at least the folder's own password applies
+        if (lock == null && isProtected(folderId)) lock = folderId;
+        String stop = boundaryId == null ? null : s.lockOf.get(boundaryId);
+        for (; lock != null; lock = s.outerLockOf.get(lock)) {
+            if (lock.equals(stop)) return null;
+            if (!unlocked.contains(lock)) return lock;
+        }
+        return null;
+    }
+
+    /** Indexes a newly published tree; does nothing if that tree is already indexed. */
+    public synchronized void rebuild(List<Folder> roots) {
+        if (roots == state.roots) return;
+        State next = new State(roots, new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        for (Folder root : roots) index(next, root, null);
+        state = next;
+    }
+
+    /** Re-indexes a folder and everything below it, e.g. after it was moved or copied into place. */
+    public synchronized void subtreeChanged(Folder folder) {
+        Folder parent = folder.getParent();
+        index(state, folder, parent == null ? null : state.lockOf.get(parent.getId()));
+    }
+
+    /** Drops a folder and everything below it, e.g. after it was trashed. */
+    public synchronized void subtreeRemoved(Folder folder) {
+        State s = state;
+        Deque<Folder> stack = new ArrayDeque<>();
+        stack.push(folder);
+        while (!stack.isEmpty()) {
+            Folder f = stack.pop();
+            s.lockOf.remove(f.getId());
+            s.outerLockOf.remove(f.getId());
+            f.getSubFolders().forEach(stack::push);
+        }
+    }
+
+    /** Passwords of these folders were set, cleared or copied: only their subtrees change. */
+    private synchronized void passwordsChanged(Collection<String> folderIds) {
+        Set<String> wanted = new HashSet<>(folderIds);
+        // Locate them in one pass; password changes are rare admin actions, taps stay O(1)
+        Deque<Folder> stack = new ArrayDeque<>(state.roots);
+        while (!stack.isEmpty() && !wanted.isEmpty()) {
+            Folder f = stack.pop();
+            if (wanted.remove(f.getId())) {
+                subtreeChanged(f);
+                continue; // its subtree was just re-indexed, including any other wanted ids in it
+            }
+            f.getSubFolders().forEach(stack::push);
+        }
+    }
+
+    private void index(State s, Folder top, String inheritedTop) {
+        Deque<Folder> folders = new ArrayDeque<>();
+        Deque<String> inherited = new ArrayDeque<>();
+        folders.push(top);
+        inherited.push(inheritedTop == null ? "" : inheritedTop); // ArrayDeque takes no nulls
+        while (!folders.isEmpty()) {
+            Folder f = folders.pop();
+            String above = inherited.pop();
+            String id = f.getId();
+            String lock = above;
+            if (isProtected(id)) {
+                if (above.isEmpty()) s.outerLockOf.remove(id);
+                else s.outerLockOf.put(id, above);
+                lock = id;
+            } else {
+                s.outerLockOf.remove(id);
+            }
+            if (lock.isEmpty()) s.lockOf.remove(id);
+            else s.lockOf.put(id, lock);
+            for (Folder sub : f.getSubFolders()) {
+                folders.push(sub);
+                inherited.push(lock);
+            }
+        }
+    }
+
+    private boolean isProtected(String folderId) {
+        String pw = store.getFolderPassword(folderId);
+        return pw != null && !pw.isBlank();
+    }
+}
@@ -8,6 +8,8 @@ import java.io.File;
 import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
  * Thread-safe, tiny JSON-backed credential store.
@@ -18,7 +20,8 @@ import java.util.concurrent.ConcurrentHashMap;
  *    "folders": {
  *      "<folderId>": {
  *        "password": "abc123",              // null or empty => no password
- *        "directAccess": ["x1y2", "z9z9"]   // zero or more codes
+ *        "directAccess": ["x1y2", "z9z9"],  // zero or more codes
+ *        "encrypt": true                    // uploads into it and its subfolders are encrypted
  *      }
  *    }
  *  }
@@ -34,10 +37,12 @@ public class SecurityStore {
 
     private volatile String adminPassword;
     private final Map<String, FolderSecurity> folders = new ConcurrentHashMap<>();
+    private final List<Consumer<Collection<String>>> folderListeners = new CopyOnWriteArrayList<>();
 
     public static class FolderSecurity {
         public String password;               // null => no password required
         public Set<String> directAccess = new HashSet<>();
+        public boolean encrypt;
     }
 
     public SecurityStore() {
@@ -73,6 +78,7 @@ public class SecurityStore {
                         if (da instanceof Collection<?> col) {
                             for (Object o : col) fs.directAccess.add(String.valueOf(o));
                         }
+                        fs.encrypt = Boolean.TRUE.equals(v.get("encrypt"));
                         folders.put(fid, fs);
                     }
                 }
@@ -94,6 +100,7 @@ public class SecurityStore {
                 Map<String, Object> v = new LinkedHashMap<>();
                 v.put("password", e.getValue().password);
                 v.put("directAccess", new ArrayList<>(e.getValue().directAccess));
+                if (e.getValue().encrypt) v.put("encrypt", true);
                 f.put(e.getKey(), v);
             }
             root.put("folders", f);
@@ -103,6 +110,16 @@ public class SecurityStore {
         }
     }
 
+    /** Called with the ids of folders whose password was set, cleared or copied. */
+    public void addFolderListener(Consumer<Collection<String>> listener) {
+        folderListeners.add(listener);
+    }
+
+    private void folderChanged(Collection<String> folderIds) {
+        if (folderIds.isEmpty()) return;
+        for (Consumer<Collection<String>> l : folderListeners) l.accept(folderIds);
+    }
+
     // === Admin password ===
     public boolean checkAdminPassword(String candidate) {
         return Objects.equals(candidate, adminPassword);
@@ -131,6 +148,20 @@ public class SecurityStore {
             fs.password = (newPasswordOrNull == null || newPasswordOrNull.isBlank()) ? null : newPasswordOrNull;
             saveLocked();
         }
+        folderChanged(List.of(folderId));
+    }
+
+    /** Whether this folder itself is marked for encryption (subfolders inherit it; see the bot). */
+    public boolean isFolderEncrypted(String folderId) {
+        FolderSecurity fs = folders.get(folderId);
+        return fs != null && fs.encrypt;
+    }
+
+    public void setFolderEncrypted(String folderId, boolean encrypt) {
+        synchronized (lock) {
+            ensure(folderId).encrypt = encrypt;
+            saveLocked();
+        }
     }
 
     public Set<String> getDirectAccessList(String folderId) {
@@ -150,4 +181,34 @@ public class SecurityStore {
         FolderSecurity fs = folders.get(folderId);
         return fs != null && fs.directAccess.contains(code);
     }
+
+    // === Bulk changes (one save per call) ===
+
+    /** Gives a copied folder the same password, direct codes and encryption as its source. */
+    public void copyFolderSecurity(Map<String, String> sourceToCopy) {
+        synchronized (lock) {
+            boolean changed = false;
+            for (var e : sourceToCopy.entrySet()) {
+                FolderSecurity src = folders.get(e.getKey());
+                if (src == null) continue;
+                FolderSecurity copy = new FolderSecurity();
+                copy.password = src.password;
+                copy.directAccess.addAll(src.directAccess);
+                copy.encrypt = src.encrypt;
+                folders.put(e.getValue(), copy);
+                changed = true;
+            }
+            if (changed) saveLocked();
+        }
+        folderChanged(sourceToCopy.values());
+    }
+
+    /** Drops the entries of folders that no longer exist (e.g. trashed). */
+    public void removeFolders(Collection<String> folderIds) {
+        synchronized (lock) {
+            boolean changed = false;
+            for (String id : folderIds) changed |= folders.remove(id) != null;
+            if (changed) saveLocked();
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package service;
+
+import config.AppConfig;
+import model.FileEntry;
+import model.Folder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DriveService} calls that return at once with a {@link CompletableFuture}, so a caller can chain Drive
+ * work ({@code thenApply}, {@code thenCompose}, {@code allOf}) instead of holding a thread while Drive answers.
+ *
+ * All calls run on one bounded pool of "drive.asyncThreads" threads (default 16) with up to "drive.asyncQueue"
+ * waiting (default 1000); beyond that a future fails at once with an IOException instead of adding threads or
+ * memory. Calls other than uploads fail with a TimeoutException after "drive.asyncTimeoutSeconds" (default 120,
+ * 0 = never). Cancelling a returned future, or its timing out, takes a waiting call off the queue and
+ * interrupts a running one; the interrupt stops retries, though a request already on the wire may still finish.
+ * Cancelling a future derived from it with {@code thenApply} etc. does not reach the call.
+ */
+public class AsyncDriveService {
+
+    /** A blocking call on the Drive service. */
+    public interface DriveCall<T> {
+        T call(DriveService drive) throws Exception;
+    }
+
+    private final DriveService drive;
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMs;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AsyncDriveService(DriveService drive) {
+        this(drive, AppConfig.getInt("drive.asyncThreads", 16), AppConfig.getInt("drive.asyncQueue", 1000),
+                AppConfig.getLong("drive.asyncTimeoutSeconds", 120) * 1000);
+    }
+
+    public AsyncDriveService(DriveService drive, int threads, int queue, long timeoutMs) {
+        this.drive = drive;
+        this.timeoutMs = timeoutMs;
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+            Thread t = new Thread(r, "drive-async");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true); // idle bots keep no threads
+    }
+
+    /** The blocking service underneath. */
+    public DriveService blocking() {
+        return drive;
+    }
+
+    public CompletableFuture<List<FileEntry>> listChildrenAsync(String folderId) {
+        return submit(d -> d.listChildren(folderId));
+    }
+
+    public CompletableFuture<List<FileEntry>> listFolderFilesAsync(String folderId) {
+        return submit(d -> d.listFolderFiles(folderId));
+    }
+
+    public CompletableFuture<FileEntry> getFileMetadataAsync(String fileId) {
+        return submit(d -> d.getFileMetadata(fileId));
+    }
+
+    /** The top-level folders with their subtrees, as {@link DriveService#scanTopLevelFolders}. */
+    public CompletableFuture<List<Folder>> scanAsync() {
+        return submit(DriveService::scanTopLevelFolders);
+    }
+
+    /** Uploads a local file (made public, as every upload); not subject to the timeout. */
+    public CompletableFuture<FileEntry> uploadAsync(java.io.File localFile, String fileName, String folderId) {
+        return submit(d -> d.upload(localFile, fileName, folderId), 0);
+    }
+
+    /** Lets anyone with the link read the file. */
+    public CompletableFuture<Void> createPermissionAsync(String fileId) {
+        return submit(d -> {
+            d.makePublic(fileId);
+            return null;
+        });
+    }
+
+    public CompletableFuture<FileEntry> createFolderAsync(String name, String parentId) {
+        return submit(d -> d.createFolder(name, parentId));
+    }
+
+    public CompletableFuture<List<FileEntry>> trashAllAsync(List<String> ids) {
+        return submit(d -> d.trashAll(ids, null));
+    }
+
+    /** Any other call, with the default timeout. */
+    public <T> CompletableFuture<T> submit(DriveCall<T> call) {
+        return submit(call, timeoutMs);
+    }
+
+    /** Any other call; {@code timeoutMs} 0 for none. */
+    public <T> CompletableFuture<T> submit(DriveCall<T> call, long timeoutMs) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicBoolean finished = new AtomicBoolean();
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            if (result.isDone()) return; // cancelled or timed out while waiting
+            T value;
+            try {
+                value = call.call(drive);
+            } catch (Throwable e) {
+                finished.set(true);
+                result.completeExceptionally(e);
+                return;
+            }
+            finished.set(true);
+            result.complete(value);
+        }, null);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(new IOException("Too many Drive requests waiting, please try again shortly"));
+            return result;
+        }
+        // Completing early (cancel, timeout, or complete() by the caller) drops or interrupts the call
+        result.whenComplete((v, e) -> {
+            if (!finished.get()) {
+                task.cancel(true);
+                executor.remove(task);
+            }
+        });
+        if (timeoutMs > 0) result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /** Pool use for status lines. */
+    public String describe() {
+        return "async: " + executor.getActiveCount() + " running, " + executor.getQueue().size() + " queued, "
+                + rejected.get() + " rejected";
+    }
+}
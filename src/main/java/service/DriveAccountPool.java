@@ -0,0 +1,167 @@
+package service;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Several Drive identities (OAuth users) used side by side, so traffic is not capped by one user's quota.
+ *
+ * Each call goes to the least-loaded account (fewest requests in flight) that is healthy and not throttled.
+ * A rate-limit answer (429, or 403 with a rate/quota reason) benches the account with exponential backoff;
+ * read-only calls are then retried on another account, writes are not (they may have partly happened).
+ * The first account added is the primary: calls about one user's own My Drive (root, change feed) go there.
+ */
+public class DriveAccountPool {
+
+    private static final Set<String> RATE_REASONS = Set.of("rateLimitExceeded", "userRateLimitExceeded");
+    private static final Set<String> QUOTA_REASONS = Set.of("quotaExceeded", "dailyLimitExceeded", "storageQuotaExceeded");
+    private static final long MAX_BACKOFF_MS = 60_000;
+    private static final long QUOTA_BENCH_MS = TimeUnit.MINUTES.toMillis(10);
+
+    public interface Call<T> {
+        T run(GoogleDriveUploader account) throws IOException;
+    }
+
+    public static final class Account {
+        private final String name;
+        private final GoogleDriveUploader uploader;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong throttles = new AtomicLong();
+        private volatile long benchedUntil;   // System.nanoTime()
+        private volatile long backoffMs;
+        private volatile boolean healthy = true;
+
+        Account(String name, GoogleDriveUploader uploader) {
+            this.name = name;
+            this.uploader = uploader;
+        }
+
+        public String name() { return name; }
+        public GoogleDriveUploader uploader() { return uploader; }
+        public boolean isHealthy() { return healthy; }
+        public void setHealthy(boolean healthy) { this.healthy = healthy; }
+        public boolean isThrottled() { return benchedUntil - System.nanoTime() > 0; }
+
+        /** e.g. "user2: 3 in flight, 1200 calls, 4 throttled" */
+        public String describe() {
+            return name + ": " + inFlight.get() + " in flight, " + calls.get() + " calls, " + throttles.get() + " throttled"
+                    + (isThrottled() ? " (benched)" : "") + (healthy ? "" : " (unreachable)");
+        }
+    }
+
+    private final List<Account> accounts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    public void add(String name, GoogleDriveUploader uploader) {
+        accounts.add(new Account(name, uploader));
+    }
+
+    public boolean isEmpty() {
+        return accounts.isEmpty();
+    }
+
+    public List<Account> accounts() {
+        return new ArrayList<>(accounts);
+    }
+
+    /** Runs a read-only call on the best account, moving to another one if it is rate limited. */
+    public <T> T read(Call<T> call) throws IOException {
+        int attempts = Math.max(1, accounts.size());
+        for (int i = 1; ; i++) {
+            try {
+                return run(pick(), call);
+            } catch (GoogleJsonResponseException e) {
+                if (i >= attempts || !isRateLimit(e)) throw e;
+            }
+        }
+    }
+
+    /** Runs a call that changes Drive on the best account, once. */
+    public <T> T write(Call<T> call) throws IOException {
+        return run(pick(), call);
+    }
+
+    /** Runs a call on the primary account (the My Drive the bot presents). */
+    public <T> T primary(Call<T> call) throws IOException {
+        if (accounts.isEmpty()) throw new DriveNotReadyException();
+        return run(accounts.get(0), call);
+    }
+
+    private <T> T run(Account a, Call<T> call) throws IOException {
+        a.inFlight.incrementAndGet();
+        a.calls.incrementAndGet();
+        try {
+            T result = call.run(a.uploader);
+            a.backoffMs = 0;
+            return result;
+        } catch (GoogleJsonResponseException e) {
+            if (isRateLimit(e)) bench(a, quotaReason(e) ? QUOTA_BENCH_MS : nextBackoff(a));
+            throw e;
+        } finally {
+            a.inFlight.decrementAndGet();
+        }
+    }
+
+    /** Least in-flight among usable accounts; rotation breaks ties so idle accounts share the load. */
+    private Account pick() throws DriveNotReadyException {
+        List<Account> all = accounts;
+        int n = all.size();
+        if (n == 0) throw new DriveNotReadyException();
+        if (n == 1) return all.get(0);
+        int start = Math.floorMod(rotation.getAndIncrement(), n);
+        Account best = null;
+        Account soonest = null;
+        for (int i = 0; i < n; i++) {
+            Account a = all.get((start + i) % n);
+            if (!a.healthy) continue;
+            if (a.isThrottled()) {
+                if (soonest == null || a.benchedUntil - soonest.benchedUntil < 0) soonest = a;
+                continue;
+            }
+            if (best == null || a.inFlight.get() < best.inFlight.get()) best = a;
+        }
+        if (best != null) return best;
+        if (soonest != null) return soonest;  // everyone is benched: the one back first
+        return all.get(start);                // everyone looks down: let the call report why
+    }
+
+    private static long nextBackoff(Account a) {
+        long next = a.backoffMs == 0 ? 1000 : Math.min(MAX_BACKOFF_MS, a.backoffMs * 2);
+        a.backoffMs = next;
+        return next;
+    }
+
+    private static void bench(Account a, long millis) {
+        a.throttles.incrementAndGet();
+        a.benchedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        System.err.println("Drive account " + a.name + " throttled, resting " + millis / 1000 + "s");
+    }
+
+    static boolean isRateLimit(GoogleJsonResponseException e) {
+        if (e.getStatusCode() == 429) return true;
+        return e.getStatusCode() == 403 && (hasReason(e, RATE_REASONS) || hasReason(e, QUOTA_REASONS));
+    }
+
+    private static boolean quotaReason(GoogleJsonResponseException e) {
+        return hasReason(e, QUOTA_REASONS);
+    }
+
+    private static boolean hasReason(GoogleJsonResponseException e, Set<String> reasons) {
+        GoogleJsonError details = e.getDetails();
+        if (details == null || details.getErrors() == null) return false;
+        for (GoogleJsonError.ErrorInfo info : details.getErrors()) {
+            if (reasons.contains(info.getReason())) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,13 @@
+package service;
+
+import java.io.IOException;
+
+/** Thrown by {@link DriveService} calls made before the Google Drive connection is established. */
+public class DriveNotReadyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DriveNotReadyException() {
+        super("Google Drive is still connecting, please try again in a moment");
+    }
+}
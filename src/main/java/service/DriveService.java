@@ -1,38 +1,178 @@
 package service;
 
+import config.AppConfig;
+import model.CompactFolderTree;
+import model.FileEntry;
 import model.Folder;
+import security.FolderCrypto;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DriveService {
 
-    private final GoogleDriveUploader uploader;
-    private final Drive driveService;
+    private static final String FOLDER_MIME = "application/vnd.google-apps.folder";
+    private static final String FILE_FIELDS = "id, name, mimeType, size, md5Checksum, modifiedTime";
+    private static final int BATCH_LIMIT = 100;
+    private static final String UPLOAD_JOB_PROPERTY = "uploadJob";
 
-    public DriveService() throws Exception {
-        this.uploader = new GoogleDriveUploader();
-        this.driveService = uploader.getDriveService();
+    private final DriveAccountPool pool = new DriveAccountPool();
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private CompletableFuture<Void> accountJoined; // while connecting: the previously configured account
+
+    /**
+     * Connects the accounts listed in "drive.accounts" (comma-separated OAuth user names, default "user") on
+     * background threads and returns at once, so the bot can answer from cached state meanwhile. Drive is ready
+     * as soon as the first account is connected; until then Drive calls throw {@link DriveNotReadyException}.
+     * Every account must be able to see the folders the bot serves (e.g. they are shared with all of them);
+     * the first one is the primary, whose My Drive is the tree shown to users.
+     */
+    public DriveService() {
+        String[] names = AppConfig.get("drive.accounts", "user").split(",");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (name.isEmpty()) continue;
+            // accounts join in configuration order so the first one stays the primary
+            CompletableFuture<Void> previous = i == 0 ? CompletableFuture.completedFuture(null) : accountJoined;
+            CompletableFuture<Void> joined = new CompletableFuture<>();
+            Thread t = new Thread(() -> connect(name, previous, joined), "drive-init-" + name);
+            t.setDaemon(true);
+            t.start();
+            accountJoined = joined;
+        }
+    }
+
+    public DriveService(GoogleDriveUploader uploader) {
+        this(List.of(uploader));
+    }
+
+    /** Already connected accounts, primary first. */
+    public DriveService(List<GoogleDriveUploader> accounts) {
+        for (int i = 0; i < accounts.size(); i++) addAccount(i == 0 ? "user" : "user" + (i + 1), accounts.get(i));
+    }
+
+    /** Uses the uploader once the future completes (e.g. a connection made elsewhere). */
+    public DriveService(CompletableFuture<GoogleDriveUploader> connection) {
+        connection.thenAccept(u -> addAccount("user", u));
+    }
+
+    // Retries with backoff: a missing network at boot should not need a restart
+    private void connect(String name, CompletableFuture<Void> previous, CompletableFuture<Void> joined) {
+        long delayMs = 1000;
+        while (true) {
+            try {
+                long t0 = System.nanoTime();
+                GoogleDriveUploader uploader = new GoogleDriveUploader(AppConfig.get("drive.rootUrl"), name);
+                previous.join();
+                addAccount(name, uploader);
+                joined.complete(null);
+                System.out.println("Google Drive account " + name + " connected in " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+                return;
+            } catch (Exception e) {
+                System.err.println("Google Drive account " + name + " failed to connect, retrying in " + delayMs / 1000 + "s: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delayMs = Math.min(delayMs * 2, 60_000);
+        }
+    }
+
+    private synchronized void addAccount(String name, GoogleDriveUploader uploader) {
+        pool.add(name, uploader);
+        if (!ready.isDone()) {
+            ready.complete(null);
+            startHealthProbe();
+        }
+    }
+
+    private AsyncDriveService async;
+
+    /** Non-blocking versions of the calls, on one bounded pool shared by all callers of this service. */
+    public synchronized AsyncDriveService async() {
+        if (async == null) async = new AsyncDriveService(this);
+        return async;
+    }
+
+    /** True once at least one Drive account is connected. */
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    /** Completes when Drive is connected. */
+    public CompletableFuture<Void> whenReady() {
+        return ready.thenAccept(v -> {});
+    }
+
+    /** One-line state for health endpoints: "connecting", "ok", "unreachable", or per account with several. */
+    public String healthStatus() {
+        if (!isReady()) return "connecting";
+        List<DriveAccountPool.Account> accounts = pool.accounts();
+        if (accounts.size() == 1) return accounts.get(0).isHealthy() ? "ok" : "unreachable";
+        StringBuilder sb = new StringBuilder();
+        for (DriveAccountPool.Account a : accounts) sb.append(sb.length() == 0 ? "" : "; ").append(a.describe());
+        return sb.toString();
+    }
+
+    // about.get on every account each "drive.healthSeconds" (default 30); logs only state changes
+    private void startHealthProbe() {
+        ScheduledExecutorService probe = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "drive-health");
+            t.setDaemon(true);
+            return t;
+        });
+        probe.scheduleWithFixedDelay(() -> {
+            for (DriveAccountPool.Account a : pool.accounts()) {
+                boolean ok;
+                String problem = null;
+                try {
+                    a.uploader().getDriveService().about().get().setFields("user(emailAddress)").execute();
+                    ok = true;
+                } catch (Exception e) {
+                    ok = false;
+                    problem = e.getMessage();
+                }
+                if (ok != a.isHealthy()) {
+                    if (ok) System.out.println("Google Drive account " + a.name() + " reachable again");
+                    else System.err.println("Google Drive account " + a.name() + " health check failed: " + problem);
+                }
+                a.setHealthy(ok);
+            }
+        }, 0, AppConfig.getLong("drive.healthSeconds", 30), TimeUnit.SECONDS);
     }
 
-    /** Scan top-level folders in My Drive */
+    /**
+     * Scan top-level folders in My Drive.
+     * With "tree.compact=true" the tree is held in a {@link CompactFolderTree} and Folder views are returned.
+     */
     public List<Folder> scanTopLevelFolders() throws IOException {
+        if (AppConfig.getBoolean("tree.compact", false)) {
+            return scanCompactTree().roots();
+        }
         List<Folder> topFolders = new ArrayList<>();
 
         String query = "mimeType = 'application/vnd.google-apps.folder' " +
                 "and 'root' in parents and trashed = false";
 
-        FileList result = driveService.files()
-                .list()
-                .setQ(query)
-                .setFields("files(id, name)")
-                .execute();
-
-        for (File file : result.getFiles()) {
+        for (File file : listAll(query, "id, name", true)) {
             Folder folder = new Folder(file.getId(), file.getName());
             buildFolderTree(folder);
             topFolders.add(folder);
@@ -44,31 +184,331 @@ public class DriveService {
     private void buildFolderTree(Folder parentFolder) throws IOException {
         String query = String.format("'%s' in parents and trashed = false", parentFolder.getId());
 
-        FileList result = driveService.files()
-                .list()
-                .setQ(query)
-                .setFields("files(id, name, mimeType)")
-                .execute();
-
-        for (File file : result.getFiles()) {
-            if ("application/vnd.google-apps.folder".equals(file.getMimeType())) {
-                // Create subfolder and link back to parent
+        for (File file : listAll(query, FILE_FIELDS, false)) {
+            if (FOLDER_MIME.equals(file.getMimeType())) {
+                // Create subfolder and link back to parent (files found later roll up through it)
                 Folder subFolder = new Folder(file.getId(), file.getName());
-                subFolder.setParent(parentFolder);
-                parentFolder.getSubFolders().add(subFolder);
+                parentFolder.addSubFolder(subFolder);
 
                 // Recursive scan
                 buildFolderTree(subFolder);
             } else {
-                // Add regular file names to list
-                parentFolder.getFiles().add(file.getName());
+                // Add regular files to list
+                parentFolder.addFile(toEntry(file));
+            }
+        }
+    }
+
+    /** Scans My Drive straight into a compact tree, without creating Folder objects. */
+    public CompactFolderTree scanCompactTree() throws IOException {
+        CompactFolderTree.Builder builder = CompactFolderTree.builder();
+        String query = "mimeType = 'application/vnd.google-apps.folder' " +
+                "and 'root' in parents and trashed = false";
+        for (File file : listAll(query, "id, name", true)) {
+            int node = builder.add(builder.root(), file.getId(), file.getName(), true);
+            buildCompactTree(builder, node, file.getId());
+        }
+        return builder.build(AppConfig.getBoolean("tree.offHeap", false));
+    }
+
+    private void buildCompactTree(CompactFolderTree.Builder builder, int parentNode, String parentId) throws IOException {
+        String query = String.format("'%s' in parents and trashed = false", parentId);
+        // add all children first so siblings stay contiguous, then recurse
+        List<Integer> subNodes = new ArrayList<>();
+        List<String> subIds = new ArrayList<>();
+        for (File file : listAll(query, "id, name, mimeType, size, modifiedTime", false)) {
+            boolean isFolder = FOLDER_MIME.equals(file.getMimeType());
+            int node = builder.add(parentNode, file.getId(), file.getName(), isFolder,
+                    !isFolder && file.getMimeType() != null && file.getMimeType().startsWith("application/vnd.google-apps."),
+                    FolderCrypto.ENCRYPTED_MIME.equals(file.getMimeType()),
+                    file.getSize() == null ? -1 : file.getSize(),
+                    file.getModifiedTime() == null ? 0 : file.getModifiedTime().getValue());
+            if (isFolder) {
+                subNodes.add(node);
+                subIds.add(file.getId());
+            }
+        }
+        for (int i = 0; i < subNodes.size(); i++) {
+            buildCompactTree(builder, subNodes.get(i), subIds.get(i));
+        }
+    }
+
+    /**
+     * Runs a files.list query and follows nextPageToken until every page is read, all on one account.
+     * @param primary queries about 'root' must see the primary account's My Drive
+     */
+    private List<File> listAll(String query, String fileFields, boolean primary) throws IOException {
+        DriveAccountPool.Call<List<File>> list = u -> listAll(u.getDriveService(), query, fileFields);
+        return primary ? pool.primary(list) : pool.read(list);
+    }
+
+    private static List<File> listAll(Drive drive, String query, String fileFields) throws IOException {
+        List<File> all = new ArrayList<>();
+        String pageToken = null;
+        do {
+            FileList result = drive.files()
+                    .list()
+                    .setQ(query)
+                    .setPageSize(1000)
+                    .setPageToken(pageToken)
+                    .setFields("nextPageToken, files(" + fileFields + ")")
+                    .execute();
+            all.addAll(result.getFiles());
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        return all;
+    }
+
+    /** Metadata of the regular files directly inside a folder, in one listing. */
+    public List<FileEntry> listFolderFiles(String folderId) throws IOException {
+        String query = String.format("'%s' in parents and mimeType != '%s' and trashed = false", folderId, FOLDER_MIME);
+        List<FileEntry> out = new ArrayList<>();
+        for (File file : listAll(query, FILE_FIELDS, false)) out.add(toEntry(file));
+        return out;
+    }
+
+    /** Files and folders directly inside a folder, in one listing (folders have the folder MIME type). */
+    public List<FileEntry> listChildren(String folderId) throws IOException {
+        String query = String.format("'%s' in parents and trashed = false", folderId);
+        List<FileEntry> out = new ArrayList<>();
+        for (File file : listAll(query, FILE_FIELDS, false)) out.add(toEntry(file));
+        return out;
+    }
+
+    /** Current metadata of a single file */
+    public FileEntry getFileMetadata(String fileId) throws IOException {
+        return toEntry(pool.read(u -> u.getDriveService().files().get(fileId).setFields(FILE_FIELDS).execute()));
+    }
+
+    /** Streams the file's content; the caller must close the stream */
+    public InputStream openFileStream(String fileId) throws IOException {
+        return pool.read(u -> u.getDriveService().files().get(fileId).executeMediaAsInputStream());
+    }
+
+    // === Change feed ===
+
+    /** Token for "changes from now on"; take it before a full scan so nothing made during the scan is lost. */
+    public String getStartPageToken() throws IOException {
+        return pool.primary(u -> u.getDriveService().changes().getStartPageToken().execute().getStartPageToken());
+    }
+
+    private volatile String rootFolderId;
+
+    private String getRootFolderId() throws IOException {
+        if (rootFolderId == null) {
+            rootFolderId = pool.primary(u -> u.getDriveService().files().get("root").setFields("id").execute().getId());
+        }
+        return rootFolderId;
+    }
+
+    /** All changes since the token, plus the token to continue from next time. */
+    public record ChangeBatch(List<CompactFolderTree.Change> changes, String newStartPageToken) {}
+
+    public ChangeBatch changesSince(String pageToken) throws IOException {
+        // The feed names My Drive by its real id; the tree calls it "root"
+        String rootId = getRootFolderId();
+        List<CompactFolderTree.Change> out = new ArrayList<>();
+        String token = pageToken;
+        while (true) {
+            String current = token;
+            ChangeList page = pool.primary(u -> u.getDriveService().changes().list(current)
+                    .setSpaces("drive")
+                    .setIncludeRemoved(true)
+                    .setPageSize(1000)
+                    .setFields("nextPageToken, newStartPageToken, changes(fileId, removed, file(id, name, mimeType, size, modifiedTime, parents, trashed))")
+                    .execute());
+            for (Change c : page.getChanges()) {
+                File f = c.getFile();
+                boolean gone = Boolean.TRUE.equals(c.getRemoved()) || f == null || Boolean.TRUE.equals(f.getTrashed());
+                String mime = f == null ? null : f.getMimeType();
+                boolean folder = FOLDER_MIME.equals(mime);
+                String parentId = gone || f.getParents() == null || f.getParents().isEmpty() ? null : f.getParents().get(0);
+                out.add(new CompactFolderTree.Change(c.getFileId(), gone,
+                        rootId.equals(parentId) ? "root" : parentId,
+                        gone ? null : f.getName(), folder,
+                        !folder && mime != null && mime.startsWith("application/vnd.google-apps."),
+                        FolderCrypto.ENCRYPTED_MIME.equals(mime),
+                        gone || f.getSize() == null ? -1 : f.getSize(),
+                        gone || f.getModifiedTime() == null ? 0 : f.getModifiedTime().getValue()));
             }
+            if (page.getNewStartPageToken() != null) return new ChangeBatch(out, page.getNewStartPageToken());
+            token = page.getNextPageToken();
         }
     }
 
+    // === Bulk operations (Drive batch requests) ===
+
+    /** Called after each executed batch. */
+    public interface BatchProgress {
+        void update(int done, int total);
+    }
+
+    /** Moves items out of one folder into another; a null result means that item failed. */
+    public List<FileEntry> moveAll(List<String> ids, String fromFolderId, String toFolderId, BatchProgress progress) throws IOException {
+        return executeBatch(drive -> {
+            List<Drive.Files.Update> requests = new ArrayList<>();
+            for (String id : ids) {
+                requests.add(drive.files().update(id, new File())
+                        .setAddParents(toFolderId).setRemoveParents(fromFolderId));
+            }
+            return requests;
+        }, progress);
+    }
+
+    /** Copies files (Drive cannot copy folders); file ids and destination folder ids are parallel lists. */
+    public List<FileEntry> copyAll(List<String> fileIds, List<String> toFolderIds, BatchProgress progress) throws IOException {
+        return executeBatch(drive -> {
+            List<Drive.Files.Copy> requests = new ArrayList<>();
+            for (int i = 0; i < fileIds.size(); i++) {
+                requests.add(drive.files().copy(fileIds.get(i), new File().setParents(List.of(toFolderIds.get(i)))));
+            }
+            return requests;
+        }, progress);
+    }
+
+    /** Creates folders; names and parent ids are parallel lists. */
+    public List<FileEntry> createFolders(List<String> names, List<String> parentIds, BatchProgress progress) throws IOException {
+        return executeBatch(drive -> {
+            List<Drive.Files.Create> requests = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                requests.add(drive.files().create(new File()
+                        .setName(names.get(i)).setMimeType(FOLDER_MIME).setParents(List.of(parentIds.get(i)))));
+            }
+            return requests;
+        }, progress);
+    }
+
+    /** Renames items; ids and names are parallel lists. */
+    public List<FileEntry> renameAll(List<String> ids, List<String> names, BatchProgress progress) throws IOException {
+        return executeBatch(drive -> {
+            List<Drive.Files.Update> requests = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i++) {
+                requests.add(drive.files().update(ids.get(i), new File().setName(names.get(i))));
+            }
+            return requests;
+        }, progress);
+    }
+
+    /** Moves items to the trash. */
+    public List<FileEntry> trashAll(List<String> ids, BatchProgress progress) throws IOException {
+        return executeBatch(drive -> {
+            List<Drive.Files.Update> requests = new ArrayList<>();
+            for (String id : ids) {
+                requests.add(drive.files().update(id, new File().setTrashed(true)));
+            }
+            return requests;
+        }, progress);
+    }
+
+    private interface RequestBuilder {
+        List<? extends DriveRequest<File>> build(Drive drive) throws IOException;
+    }
+
+    /**
+     * Sends the requests as batches of {@value #BATCH_LIMIT} (the Drive maximum per HTTP call), all from one
+     * account and without failover, since earlier batches have already been applied.
+     * Results are in request order; failed items are null and logged.
+     */
+    private List<FileEntry> executeBatch(RequestBuilder builder, BatchProgress progress) throws IOException {
+        return pool.write(u -> executeBatch(u.getDriveService(), builder.build(u.getDriveService()), progress));
+    }
+
+    private static List<FileEntry> executeBatch(Drive drive, List<? extends DriveRequest<File>> requests, BatchProgress progress) throws IOException {
+        List<FileEntry> results = new ArrayList<>(java.util.Collections.nCopies(requests.size(), null));
+        for (int start = 0; start < requests.size(); start += BATCH_LIMIT) {
+            int end = Math.min(requests.size(), start + BATCH_LIMIT);
+            BatchRequest batch = drive.batch();
+            for (int i = start; i < end; i++) {
+                final int index = i;
+                requests.get(i).setFields(FILE_FIELDS).queue(batch, new JsonBatchCallback<File>() {
+                    @Override
+                    public void onSuccess(File file, HttpHeaders headers) {
+                        results.set(index, toEntry(file));
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                        System.err.println("Batch item " + index + " failed: " + error.getMessage());
+                    }
+                });
+            }
+            batch.execute();
+            if (progress != null) progress.update(end, requests.size());
+        }
+        return results;
+    }
+
+    static FileEntry toEntry(File file) {
+        return new FileEntry(file.getId(), file.getName(), file.getMimeType(),
+                file.getSize() == null ? -1 : file.getSize(),
+                file.getMd5Checksum(),
+                file.getModifiedTime() == null ? 0 : file.getModifiedTime().getValue());
+    }
+
+    /** Uploads and returns the new file's metadata (e.g. to add it to the cached tree). */
+    public FileEntry upload(java.io.File localFile, String fileName, String folderId) throws IOException {
+        return toEntry(pool.write(u -> u.upload(localFile.getAbsolutePath(), fileName, folderId, FILE_FIELDS)));
+    }
+
+    /**
+     * Uploads without making the file public; it keeps the sharing of the folder it lands in.
+     * The local file may be written to meanwhile (folder sync).
+     */
+    public FileEntry uploadPrivate(java.io.File localFile, String fileName, String folderId) throws IOException {
+        return toEntry(pool.write(u -> u.uploadChangingFile(localFile.getAbsolutePath(), fileName, folderId, FILE_FIELDS)));
+    }
+
+    /**
+     * Uploads as part of a journaled job: the file is tagged with the job id, so after a restart
+     * {@link #findUpload} can tell whether the interrupted upload already reached Drive.
+     */
+    public FileEntry upload(java.io.File localFile, String fileName, String folderId, String jobId) throws IOException {
+        java.util.Map<String, String> tag = java.util.Map.of(UPLOAD_JOB_PROPERTY, jobId);
+        return toEntry(pool.write(u -> u.upload(localFile.getAbsolutePath(), fileName, folderId, FILE_FIELDS, tag)));
+    }
+
+    /**
+     * Uploads a stream that is read once (e.g. a download in progress); length -1 if unknown.
+     *
+     * @param jobId journaled job to tag the file with (see {@link #findUpload}), or null
+     */
+    public FileEntry upload(java.io.InputStream in, long length, String mimeType, String fileName, String folderId,
+                            String jobId) throws IOException {
+        java.util.Map<String, String> tag = jobId == null ? null : java.util.Map.of(UPLOAD_JOB_PROPERTY, jobId);
+        return toEntry(pool.write(u -> u.upload(in, length, mimeType, fileName, folderId, FILE_FIELDS, tag)));
+    }
+
+    /** Uploads a new version of an existing file; its id and links stay the same. */
+    public FileEntry updateContent(String fileId, java.io.File localFile) throws IOException {
+        return toEntry(pool.write(u -> u.update(fileId, localFile.getAbsolutePath(), FILE_FIELDS)));
+    }
+
+    /** Lets anyone with the link read the file (uploads already are). */
+    public void makePublic(String fileId) throws IOException {
+        pool.write(u -> {
+            u.makePublic(fileId);
+            return null;
+        });
+    }
+
+    /** Creates one folder. */
+    public FileEntry createFolder(String name, String parentId) throws IOException {
+        FileEntry created = createFolders(List.of(name), List.of(parentId), null).get(0);
+        if (created == null) throw new IOException("Could not create folder " + name);
+        return created;
+    }
+
+    /** The file a job uploaded into the folder, or null if it never got there. */
+    public FileEntry findUpload(String folderId, String jobId) throws IOException {
+        String query = String.format("'%s' in parents and appProperties has { key='%s' and value='%s' } and trashed = false",
+                folderId, UPLOAD_JOB_PROPERTY, jobId);
+        List<File> found = listAll(query, FILE_FIELDS, false);
+        return found.isEmpty() ? null : toEntry(found.get(0));
+    }
+
     /** Upload a file to Google Drive (uses original filename) */
     public String uploadFile(java.io.File localFile, String fileName, String folderId) throws IOException {
-        return uploader.uploadFile(localFile.getAbsolutePath(), fileName, folderId);
+        return pool.write(u -> u.uploadFile(localFile.getAbsolutePath(), fileName, folderId));
     }
 
 }
@@ -0,0 +1,89 @@
+package service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent map from Drive content to the Telegram file_id it was already uploaded as.
+ * File format: fileid-cache.json
+ *
+ *  {
+ *    "<driveFileId>:<md5Checksum>": "<telegram file_id>"
+ *  }
+ *
+ * Keying on the checksum means an edited Drive file misses the cache instead of re-sending stale content.
+ */
+public class FileIdCache {
+
+    private static final String FILE_NAME = "fileid-cache.json";
+
+    private final Object lock = new Object();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final File file;
+    private final Map<String, String> entries = new ConcurrentHashMap<>();
+
+    public FileIdCache() {
+        this(new File(FILE_NAME));
+    }
+
+    public FileIdCache(File file) {
+        this.file = file;
+        load();
+    }
+
+    private void load() {
+        try {
+            if (file.exists() && Files.size(file.toPath()) > 0) {
+                entries.putAll(mapper.readValue(file, new TypeReference<Map<String, String>>() {}));
+            }
+        } catch (Exception e) {
+            // A broken cache only costs re-uploads
+            System.err.println("Ignoring unreadable file_id cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** @return null when the file has no checksum (Google Docs) and so cannot be cached safely */
+    public static String key(String driveFileId, String md5Checksum) {
+        return md5Checksum == null ? null : driveFileId + ":" + md5Checksum;
+    }
+
+    public String get(String key) {
+        return key == null ? null : entries.get(key);
+    }
+
+    public void put(String key, String telegramFileId) {
+        if (key == null || telegramFileId == null) return;
+        synchronized (lock) {
+            entries.put(key, telegramFileId);
+            saveLocked();
+        }
+    }
+
+    public void remove(String key) {
+        if (key == null) return;
+        synchronized (lock) {
+            if (entries.remove(key) != null) saveLocked();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void saveLocked() {
+        try {
+            File tmp = new File(file.getPath() + ".tmp");
+            mapper.writeValue(tmp, new TreeMap<>(entries));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to save file_id cache", e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package service;
+
+import config.AppConfig;
+import model.FileEntry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recently listed Drive file metadata, so tapping a file can skip the files.get round trip.
+ *
+ * Entries expire after "prefetch.metadataTtlSeconds" (default 30): an edit made on Drive within that window
+ * may still be answered with the previous version, the same staleness as the folder tree itself.
+ * At most {@value #CAPACITY} entries are kept, least recently used first out.
+ */
+public class FileMetadataCache {
+
+    private static final int CAPACITY = 10_000;
+
+    private record Entry(FileEntry file, long fetchedAt) {}
+
+    private final long ttlNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Map<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    public FileMetadataCache() {
+        this(TimeUnit.SECONDS.toNanos(AppConfig.getLong("prefetch.metadataTtlSeconds", 30)));
+    }
+
+    public FileMetadataCache(long ttlNanos) {
+        this.ttlNanos = ttlNanos;
+    }
+
+    /** @return the cached metadata, or null if the file was not listed recently */
+    public FileEntry get(String fileId) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(fileId);
+            if (e != null && System.nanoTime() - e.fetchedAt() > ttlNanos) {
+                entries.remove(fileId);
+                e = null;
+            }
+        }
+        (e == null ? misses : hits).incrementAndGet();
+        return e == null ? null : e.file();
+    }
+
+    public void putAll(Iterable<FileEntry> files) {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            for (FileEntry f : files) {
+                if (f.getId() != null) entries.put(f.getId(), new Entry(f, now));
+            }
+        }
+    }
+
+    public long hits() { return hits.get(); }
+    public long misses() { return misses.get(); }
+}
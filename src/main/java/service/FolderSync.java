@@ -0,0 +1,768 @@
+package service;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import config.AppConfig;
+import model.CompactFolderTree;
+import model.FileEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a local directory and a Drive folder the same, in both directions ("sync.pairs").
+ *
+ * The first run lists both sides and matches them by path: files only on one side are copied to the other,
+ * files on both sides are hashed and compared. After that only changes are looked at: locally the directories
+ * are watched and changed paths rescanned once they have been quiet for "sync.settleMs"; on Drive the change
+ * feed is read every "sync.pollSeconds". Each change is compared with the {@link SyncState} of the last
+ * agreement, so a file is hashed only when its size or time changed, and a full local rescan
+ * ("sync.rescanMinutes", and after watch overflows or a restart) costs one directory walk.
+ *
+ * When both sides changed the same file, the Drive version is kept next to the local one as
+ * "name (conflict yyyy-MM-dd HHmmss).ext" and the local version is uploaded; a change wins over a deletion.
+ * Downloads go to a temporary file that replaces the target in one move, so no half-written file is seen.
+ * Synced files keep the sharing of their Drive folder; "sync.publish=true" makes every created or updated
+ * file readable by anyone with the link, like the bot's own uploads.
+ */
+public class FolderSync {
+
+    private static final String TEMP_PREFIX = ".tgsync-";
+    private static final String FOLDER_MIME = "application/vnd.google-apps.folder";
+    private static final DateTimeFormatter CONFLICT_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HHmmss").withZone(ZoneId.systemDefault());
+
+    /** A path as found on disk. */
+    private record Local(boolean folder, long size, long mtime) {}
+
+    /** A path that changed on Drive: now this item, or gone when the item is null. */
+    private record Remote(FileEntry item, boolean folder) {
+        boolean gone() {
+            return item == null;
+        }
+    }
+
+    private record Dir(String path, String id) {}
+
+    private final DriveService drive;
+    private final Path root;
+    private final String folderId;
+    private final SyncState state;
+    private final long settleMs;
+    private final long pollMs;
+    private final long rescanMs;
+    private final boolean publish;
+    private final ExecutorService hashers;
+    private final ExecutorService transfers;
+    private final Map<String, Long> dirty = new ConcurrentHashMap<>(); // changed local path -> last event millis
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+    private WatchService watcher;
+    private volatile boolean fullRescan = true; // whatever changed while the process was not running
+    private volatile boolean watchLimitWarned;
+
+    private final AtomicInteger uploaded = new AtomicInteger();
+    private final AtomicInteger downloaded = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicInteger conflicts = new AtomicInteger();
+    private final AtomicInteger hashed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public FolderSync(DriveService drive, Path root, String folderId, Path stateFile) throws IOException {
+        this.drive = drive;
+        this.root = root;
+        this.folderId = folderId;
+        this.state = new SyncState(stateFile);
+        this.settleMs = AppConfig.getLong("sync.settleMs", 2000);
+        this.pollMs = AppConfig.getLong("sync.pollSeconds", 30) * 1000;
+        this.rescanMs = AppConfig.getLong("sync.rescanMinutes", 60) * 60_000;
+        this.publish = AppConfig.getBoolean("sync.publish", false);
+        this.hashers = pool("sync-hash", AppConfig.getInt("sync.hashThreads", Runtime.getRuntime().availableProcessors()));
+        this.transfers = pool("sync-transfer", AppConfig.getInt("sync.transfers", 4));
+    }
+
+    /** The pairs of "sync.pairs" ("/local/dir=<Drive folder id>;..."), with their state under "sync.stateDir". */
+    public static List<FolderSync> configured(DriveService drive) throws IOException {
+        List<FolderSync> out = new ArrayList<>();
+        Path stateDir = Path.of(AppConfig.get("sync.stateDir", "sync-state"));
+        for (String pair : AppConfig.get("sync.pairs", "").split(";")) {
+            pair = pair.trim();
+            if (pair.isEmpty()) continue;
+            int eq = pair.lastIndexOf('=');
+            if (eq <= 0 || eq == pair.length() - 1) {
+                throw new IllegalArgumentException("sync.pairs entry '" + pair + "' must be /local/dir=<Drive folder id>");
+            }
+            String id = pair.substring(eq + 1).trim();
+            Path dir = Path.of(pair.substring(0, eq).trim()).toAbsolutePath().normalize();
+            out.add(new FolderSync(drive, dir, id, stateDir.resolve(id + ".log")));
+        }
+        return out;
+    }
+
+    /** Starts syncing in the background; Drive must be connected. */
+    public void start() {
+        Thread t = new Thread(this::run, "folder-sync");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    /** Totals since start, for logs and status. */
+    public String describe() {
+        return root + " ⇄ " + folderId + ": " + state.size() + " items, " + uploaded + " uploaded, "
+                + downloaded + " downloaded, " + deleted + " deleted, " + conflicts + " conflicts, "
+                + hashed + " hashed, " + failed + " failed";
+    }
+
+    private void run() {
+        try {
+            Files.createDirectories(root);
+            watcher = root.getFileSystem().newWatchService();
+            Thread t = new Thread(this::watch, "folder-sync-watch");
+            t.setDaemon(true);
+            t.start();
+            watchTree(root);
+        } catch (IOException e) {
+            watcher = null;
+            System.err.println("⚠️ Cannot watch " + root + " (" + e.getMessage() + "), relying on rescans");
+        }
+        long nextPoll = 0;
+        long nextRescan = System.currentTimeMillis() + rescanMs;
+        while (true) {
+            try {
+                long now = System.currentTimeMillis();
+                if (state.pageToken() == null) {
+                    initialSync();
+                    nextPoll = now + pollMs;
+                    nextRescan = now + rescanMs;
+                    fullRescan = false;
+                    continue;
+                }
+                if (now >= nextRescan || watcher == null && now >= nextPoll) {
+                    fullRescan = true;
+                    nextRescan = now + rescanMs;
+                }
+                boolean poll = now >= nextPoll;
+                Set<String> local = settled(now);
+                if (poll || !local.isEmpty()) {
+                    if (poll) nextPoll = now + pollMs;
+                    pass(local, poll);
+                }
+                Thread.sleep(Math.max(100, Math.min(500, settleMs)));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("⚠️ Sync of " + root + " failed: " + e.getMessage());
+                e.printStackTrace();
+                fullRescan = true;
+                try {
+                    Thread.sleep(Math.max(1000, pollMs));
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** First run: both sides listed in full and matched by path. */
+    private void initialSync() throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        // Taken before listing, so changes made during the listing come through the feed afterwards
+        String token = drive.getStartPageToken();
+        TreeMap<String, Remote> remote = new TreeMap<>();
+        for (Map.Entry<String, FileEntry> e : listRemote().entrySet()) {
+            remote.put(e.getKey(), new Remote(e.getValue(), e.getValue().isFolder()));
+        }
+        int failures = reconcile(Set.of(""), remote);
+        if (failures > 0) {
+            state.flush();
+            throw new IOException(failures + " items could not be synced, retrying");
+        }
+        state.setPageToken(token);
+        state.flush();
+        System.out.println("🔁 Synced " + root + " with Drive in " + (System.nanoTime() - t0) / 1_000_000
+                + " ms: " + describe());
+    }
+
+    /** Local paths changed since the last pass, or the whole tree when a rescan is due. */
+    private Set<String> settled(long now) {
+        if (fullRescan) {
+            fullRescan = false;
+            return Set.of("");
+        }
+        Set<String> out = new TreeSet<>();
+        for (Map.Entry<String, Long> e : dirty.entrySet()) {
+            if (now - e.getValue() >= settleMs && dirty.remove(e.getKey(), e.getValue())) out.add(e.getKey());
+        }
+        return out;
+    }
+
+    private void pass(Set<String> localRoots, boolean poll) throws IOException, InterruptedException {
+        int before = uploaded.get() + downloaded.get() + deleted.get() + conflicts.get();
+        long t0 = System.nanoTime();
+        TreeMap<String, Remote> remote = new TreeMap<>();
+        String newToken = null;
+        if (poll) {
+            DriveService.ChangeBatch batch = drive.changesSince(state.pageToken());
+            remote = remoteChanges(batch.changes());
+            newToken = batch.newStartPageToken();
+        }
+        int failures = reconcile(localRoots, remote);
+        // On failures the feed is read again from the same point; changes already applied are no-ops then
+        if (newToken != null && failures == 0) state.setPageToken(newToken);
+        state.flush();
+        if (failures > 0) fullRescan = true;
+        int done = uploaded.get() + downloaded.get() + deleted.get() + conflicts.get() - before;
+        if (done > 0 || failures > 0) {
+            System.out.println("🔁 Sync " + root + ": " + done + " changes applied, " + failures + " failed in "
+                    + (System.nanoTime() - t0) / 1_000_000 + " ms");
+        }
+    }
+
+    // === Drive side ===
+
+    /** Every file and folder below the synced folder by path, listing one level at a time in parallel. */
+    private Map<String, FileEntry> listRemote() throws IOException, InterruptedException {
+        Map<String, FileEntry> out = new HashMap<>();
+        List<Dir> level = List.of(new Dir("", folderId));
+        while (!level.isEmpty()) {
+            List<Future<List<FileEntry>>> listings = new ArrayList<>();
+            for (Dir d : level) listings.add(transfers.submit(() -> drive.listChildren(d.id())));
+            List<Dir> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                for (FileEntry f : await(listings.get(i))) {
+                    if (!f.isFolder() && f.isGoogleDoc()) continue; // no content to sync
+                    String path = child(level.get(i).path(), f.getName());
+                    out.put(path, f);
+                    if (f.isFolder()) next.add(new Dir(path, f.getId()));
+                }
+            }
+            level = next;
+        }
+        return out;
+    }
+
+    /**
+     * Turns the change feed into changes by path. Moves and renames are repeated locally when the local item
+     * is still there and the target free; otherwise they become a deletion plus a new item.
+     */
+    private TreeMap<String, Remote> remoteChanges(List<CompactFolderTree.Change> changes) throws IOException, InterruptedException {
+        TreeMap<String, Remote> out = new TreeMap<>();
+        Map<String, String> folders = new HashMap<>(); // folders changed in this batch: id -> new path
+        Map<String, String> files = new HashMap<>();   // path -> id of changed files
+        for (CompactFolderTree.Change c : changes) {
+            String oldPath = state.pathOf(c.id());
+            String newPath = c.removed() || (c.googleDoc() && !c.folder()) ? null : pathFor(c.parentId(), c.name(), folders);
+            if (oldPath == null && newPath == null) continue; // outside the synced folder
+            if (oldPath != null && !oldPath.equals(newPath) && (newPath == null || !moveLocal(oldPath, newPath))) {
+                gone(oldPath, out);
+            }
+            if (newPath == null) continue;
+            if (c.folder()) {
+                folders.put(c.id(), newPath);
+                out.put(newPath, new Remote(new FileEntry(c.id(), c.name(), FOLDER_MIME, -1, null, c.modifiedTime()), true));
+            } else {
+                files.values().remove(c.id());
+                files.put(newPath, c.id());
+            }
+        }
+        // The feed has no checksums: fetch them for the changed files
+        Map<String, Future<FileEntry>> meta = new HashMap<>();
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            meta.put(e.getKey(), transfers.submit(() -> drive.getFileMetadata(e.getValue())));
+        }
+        for (Map.Entry<String, Future<FileEntry>> e : meta.entrySet()) {
+            out.put(e.getKey(), new Remote(await(e.getValue()), false));
+        }
+        return out;
+    }
+
+    private String pathFor(String parentId, String name, Map<String, String> folders) {
+        if (parentId == null) return null;
+        if (parentId.equals(folderId)) return child("", name);
+        String parent = folders.get(parentId);
+        if (parent == null) {
+            parent = state.pathOf(parentId);
+            SyncState.Entry e = parent == null ? null : state.get(parent);
+            if (e == null || !e.folder()) return null;
+        }
+        return child(parent, name);
+    }
+
+    private void gone(String path, Map<String, Remote> out) {
+        SyncState.Entry e = state.get(path);
+        if (e == null) return;
+        out.put(path, new Remote(null, e.folder()));
+        if (e.folder()) for (SyncState.Entry sub : state.under(path)) out.put(sub.path(), new Remote(null, sub.folder()));
+    }
+
+    /** Repeats a Drive move locally and moves the state along; false when it cannot be done as a move. */
+    private boolean moveLocal(String from, String to) {
+        SyncState.Entry e = state.get(from);
+        Path source = local(from);
+        Path target = local(to);
+        if (e == null || Files.exists(target, LinkOption.NOFOLLOW_LINKS)) return false;
+        if (e.folder() ? !Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS) : !Files.isRegularFile(source, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        try {
+            Files.createDirectories(target.getParent());
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            // Local edits travel with the file: its state keeps the old size and time, so they are still seen
+            List<SyncState.Entry> below = e.folder() ? state.under(from) : List.of();
+            state.put(new SyncState.Entry(to, e.folder(), e.size(), e.mtime(), e.md5(), e.driveId()));
+            for (SyncState.Entry sub : below) {
+                state.put(new SyncState.Entry(to + sub.path().substring(from.length()), sub.folder(), sub.size(),
+                        sub.mtime(), sub.md5(), sub.driveId()));
+            }
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // === Reconciling ===
+
+    /**
+     * Brings the paths below the local roots and the changed Drive paths into agreement.
+     *
+     * @return items that failed and are retried by the next pass
+     */
+    private int reconcile(Set<String> localRoots, TreeMap<String, Remote> remote) throws InterruptedException {
+        Map<String, Local> local = new HashMap<>();
+        TreeSet<String> paths = new TreeSet<>(remote.keySet());
+        for (String r : localRoots) {
+            if (!r.isEmpty() && state.get(r) != null) paths.add(r);
+            for (SyncState.Entry e : state.under(r)) paths.add(e.path());
+            scan(r, local);
+            paths.addAll(local.keySet());
+        }
+        for (String p : paths) {
+            if (!local.containsKey(p)) {
+                Local l = snapshot(local(p));
+                if (l != null) local.put(p, l);
+            }
+        }
+        AtomicInteger failures = new AtomicInteger();
+
+        // Folders first, parents before children, so files have somewhere to go
+        List<String> files = new ArrayList<>();
+        List<String> goneFolders = new ArrayList<>();
+        Set<String> trashed = new TreeSet<>();
+        for (String p : paths) {
+            if (underAny(p, trashed)) continue;
+            SyncState.Entry base = state.get(p);
+            Local l = local.get(p);
+            Remote r = remote.get(p);
+            boolean folder = l != null ? l.folder() : r != null && !r.gone() ? r.folder() : base != null && base.folder();
+            if (l != null && r != null && !r.gone() && l.folder() != r.folder()) {
+                System.err.println("⚠️ Sync skips " + p + ": a folder on one side, a file on the other");
+                continue;
+            }
+            if (!folder) {
+                files.add(p);
+                continue;
+            }
+            try {
+                if (r != null && r.gone()) {
+                    state.remove(p); // contents are decided one by one; the empty directory goes at the end
+                    goneFolders.add(p);
+                } else if (r != null) {
+                    if (l == null) Files.createDirectories(local(p));
+                    state.put(new SyncState.Entry(p, true, 0, 0, null, r.item().getId()));
+                } else if (l != null) {
+                    if (base == null) ensureFolder(p);
+                } else if (base != null) {
+                    if (remote.subMap(p + "/", p + "0").values().stream().anyMatch(c -> !c.gone())) {
+                        Files.createDirectories(local(p)); // deleted here, but changed on Drive: the change wins
+                    } else {
+                        drive.trashAll(List.of(base.driveId()), null);
+                        for (SyncState.Entry sub : state.under(p)) state.remove(sub.path());
+                        state.remove(p);
+                        trashed.add(p);
+                        deleted.incrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                System.err.println("⚠️ Sync of folder " + p + " failed: " + e.getMessage());
+            }
+        }
+
+        // Hash only where size or time moved, or where both sides have the file
+        Map<String, Future<String>> hashes = new HashMap<>();
+        for (String p : files) {
+            SyncState.Entry base = state.get(p);
+            Local l = local.get(p);
+            Remote r = remote.get(p);
+            if (l == null) continue;
+            boolean touched = base != null && (l.size() != base.size() || l.mtime() != base.mtime());
+            boolean both = r != null && !r.gone() && (base == null || touched);
+            if (touched && base.md5() != null && l.size() == base.size() || both) {
+                hashes.put(p, hashers.submit(() -> md5(local(p))));
+            }
+        }
+
+        List<Future<?>> work = new ArrayList<>();
+        for (String p : files) {
+            work.add(transfers.submit(() -> {
+                try {
+                    syncFile(p, local.get(p), remote.get(p), hashes.get(p));
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    failed.incrementAndGet();
+                    System.err.println("⚠️ Sync of " + p + " failed: " + e.getMessage());
+                }
+            }));
+        }
+        for (Future<?> f : work) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                failures.incrementAndGet();
+            }
+        }
+
+        // Folders deleted on Drive go locally once nothing local is left in them
+        for (int i = goneFolders.size() - 1; i >= 0; i--) {
+            String p = goneFolders.get(i);
+            try {
+                if (!state.under(p).isEmpty()) {
+                    ensureFolder(p); // local changes were uploaded into it again
+                } else if (Files.isDirectory(local(p), LinkOption.NOFOLLOW_LINKS)) {
+                    try (var children = Files.list(local(p))) {
+                        if (children.findAny().isEmpty()) {
+                            Files.delete(local(p));
+                            deleted.incrementAndGet();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            }
+        }
+        return failures.get();
+    }
+
+    /** Decides one file against the last agreed state and applies the result. */
+    private void syncFile(String p, Local l, Remote r, Future<String> hash) throws IOException, InterruptedException {
+        SyncState.Entry base = state.get(p);
+        String md5 = hash == null ? null : await(hash);
+        if (hash != null) hashed.incrementAndGet();
+        boolean localChanged = base == null ? l != null
+                : l == null || (l.size() != base.size() || l.mtime() != base.mtime()) && !(md5 != null && md5.equals(base.md5()));
+        if (localChanged && r == null && base != null && base.driveId() != null) {
+            // Drive may have changed too without the feed having said so yet: check before overwriting it
+            r = currentRemote(base);
+        }
+        boolean remoteChanged = r != null && (r.gone() ? base != null
+                : base == null || !Objects.equals(r.item().getMd5Checksum(), base.md5()));
+        FileEntry item = r == null ? null : r.item();
+
+        if (!localChanged && !remoteChanged) {
+            if (base == null || l == null) return;
+            String id = item != null ? item.getId() : base.driveId();
+            if (l.mtime() != base.mtime() || !Objects.equals(id, base.driveId())) {
+                state.put(new SyncState.Entry(p, false, l.size(), l.mtime(), base.md5(), id)); // same content
+            }
+        } else if (!remoteChanged) {
+            if (l == null) {
+                if (base.driveId() != null) drive.trashAll(List.of(base.driveId()), null);
+                state.remove(p);
+                deleted.incrementAndGet();
+            } else {
+                upload(p, l, base == null ? null : base.driveId());
+            }
+        } else if (!localChanged) {
+            if (item == null) {
+                deleteLocal(p, l);
+            } else {
+                download(item, p, p, l);
+            }
+        } else if (l == null) {
+            if (item == null) state.remove(p);
+            else download(item, p, p, null); // changed there, deleted here: the change wins
+        } else if (item == null) {
+            state.remove(p);
+            upload(p, l, null); // deleted there, changed here: the change wins
+        } else if (item.getMd5Checksum() != null && item.getMd5Checksum().equals(md5 != null ? md5 : md5(local(p)))) {
+            state.put(new SyncState.Entry(p, false, l.size(), l.mtime(), item.getMd5Checksum(), item.getId())); // same edit on both sides
+        } else {
+            // Both changed: keep Drive's version beside the local one, which becomes the new Drive version
+            String copy = conflictName(p, System.currentTimeMillis());
+            download(item, p, copy, null);
+            dirty.put(copy, 0L);
+            upload(p, l, item.getId());
+            conflicts.incrementAndGet();
+        }
+    }
+
+    /** The file as it is on Drive now when it differs from the agreed state, else null. */
+    private Remote currentRemote(SyncState.Entry base) throws IOException {
+        try {
+            FileEntry now = drive.getFileMetadata(base.driveId());
+            return Objects.equals(now.getMd5Checksum(), base.md5()) ? null : new Remote(now, false);
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) return new Remote(null, false);
+            throw e;
+        }
+    }
+
+    private void upload(String p, Local l, String driveId) throws IOException {
+        java.io.File file = local(p).toFile();
+        FileEntry up = driveId != null
+                ? drive.updateContent(driveId, file)
+                : drive.uploadPrivate(file, file.getName(), ensureFolder(parentOf(p)));
+        if (publish) drive.makePublic(up.getId());
+        // Recorded with the size and time from before the upload: an edit made meanwhile is seen next pass
+        state.put(new SyncState.Entry(p, false, l.size(), l.mtime(), up.getMd5Checksum(), up.getId()));
+        uploaded.incrementAndGet();
+    }
+
+    /**
+     * Downloads to a temporary file and moves it to {@code target} in one step, unless the local file changed
+     * from what was decided on ({@code expected}, null for none) in the meantime.
+     */
+    private void download(FileEntry item, String p, String target, Local expected) throws IOException {
+        Path dest = local(target);
+        Files.createDirectories(dest.getParent());
+        Path tmp = dest.resolveSibling(TEMP_PREFIX + UUID.randomUUID() + ".part");
+        try {
+            try (InputStream in = drive.openFileStream(item.getId())) {
+                Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (item.getModifiedTime() > 0) Files.setLastModifiedTime(tmp, FileTime.fromMillis(item.getModifiedTime()));
+            if (target.equals(p) && !Objects.equals(snapshot(dest), expected)) {
+                throw new IOException("changed locally during download, retrying");
+            }
+            Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (target.equals(p)) {
+            Local now = snapshot(dest);
+            state.put(new SyncState.Entry(p, false, now.size(), now.mtime(), item.getMd5Checksum(), item.getId()));
+        }
+        downloaded.incrementAndGet();
+    }
+
+    private void deleteLocal(String p, Local expected) throws IOException {
+        if (expected != null) {
+            if (!Objects.equals(snapshot(local(p)), expected)) return; // edited meanwhile: uploaded next pass
+            Files.deleteIfExists(local(p));
+            deleted.incrementAndGet();
+        }
+        state.remove(p);
+    }
+
+    /** Drive id of a synced folder, creating it (and its parents) on Drive when missing. */
+    private synchronized String ensureFolder(String dir) throws IOException {
+        if (dir.isEmpty()) return folderId;
+        SyncState.Entry e = state.get(dir);
+        if (e != null && e.folder() && e.driveId() != null) return e.driveId();
+        String parentId = ensureFolder(parentOf(dir));
+        FileEntry created = drive.createFolder(dir.substring(dir.lastIndexOf('/') + 1), parentId);
+        state.put(new SyncState.Entry(dir, true, 0, 0, null, created.getId()));
+        return created.getId();
+    }
+
+    // === Local side ===
+
+    /** Adds the files and directories at and below a relative path to {@code out}. */
+    private void scan(String start, Map<String, Local> out) {
+        Path dir = local(start);
+        if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) return;
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                    if (!d.equals(root)) out.put(rel(d), new Local(true, 0, 0));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !f.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                        out.put(rel(f), new Local(false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path f, IOException e) {
+                    System.err.println("⚠️ Sync cannot read " + f + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("⚠️ Sync cannot scan " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private Local snapshot(Path path) {
+        try {
+            BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (a.isDirectory()) return new Local(true, 0, 0);
+            if (!a.isRegularFile()) return null;
+            return new Local(false, a.size(), a.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watched.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    fullRescan = true; // events were lost
+                    continue;
+                }
+                if (dir == null) continue;
+                Path child = dir.resolve((Path) event.context());
+                if (child.getFileName().toString().startsWith(TEMP_PREFIX)) continue;
+                boolean isDir = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+                if (isDir && event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) continue; // its own watch reports
+                if (isDir && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) watchTree(child);
+                dirty.put(rel(child), System.currentTimeMillis());
+            }
+            if (!key.reset()) watched.remove(key);
+        }
+    }
+
+    /** Watches a directory and all directories below it; a moved directory keeps its watch under the new path. */
+    private void watchTree(Path start) {
+        if (watcher == null) return;
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                    try {
+                        watched.put(d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), d);
+                    } catch (IOException e) {
+                        if (!watchLimitWarned) {
+                            watchLimitWarned = true;
+                            System.err.println("⚠️ Cannot watch " + d + " (" + e.getMessage() + "); changes there are found by"
+                                    + " rescans only. On Linux raise fs.inotify.max_user_watches.");
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path f, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            fullRescan = true;
+        }
+    }
+
+    // === Helpers ===
+
+    private Path local(String path) {
+        return path.isEmpty() ? root : root.resolve(path);
+    }
+
+    private String rel(Path path) {
+        return root.relativize(path).toString().replace(java.io.File.separatorChar, '/');
+    }
+
+    private static String child(String parent, String name) {
+        String safe = name.replace('/', '_'); // allowed in Drive names, not in local ones
+        return parent.isEmpty() ? safe : parent + "/" + safe;
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static boolean underAny(String path, Set<String> folders) {
+        for (String f : folders) if (path.startsWith(f + "/")) return true;
+        return false;
+    }
+
+    static String conflictName(String path, long millis) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash + 1) dot = path.length();
+        return path.substring(0, dot) + " (conflict " + CONFLICT_TIME.format(Instant.ofEpochMilli(millis)) + ")"
+                + path.substring(dot);
+    }
+
+    private static String md5(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buf = new byte[256 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) > 0) digest.update(buf, 0, n);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static ExecutorService pool(String name, int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,143 @@
+package service;
+
+import config.AppConfig;
+import model.CompactFolderTree;
+import model.Folder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The Drive folder tree shared by all sessions, kept current from the Drive change feed.
+ *
+ * After every sync the tree is written to a binary snapshot ("tree.snapshot", default folder-tree.snapshot)
+ * together with the change-feed page token. On startup that snapshot is loaded (a few bulk array reads) and
+ * users are served from it right away, while a background task applies only the changes made since.
+ * Without a snapshot the first request waits for one full scan, as before.
+ *
+ * Every sync publishes a new tree instead of editing the published one; sessions move to it on their next
+ * update. With "tree.compact=false" (default) the published roots are a mutable object tree with concurrent
+ * child lists, so in-place patches (bulk admin operations) are safe while others read.
+ */
+public class FolderTreeCache {
+
+    private final DriveService driveService;
+    private final Path snapshot;           // null = no persistence
+    private final boolean compact;
+    private final boolean offHeap;
+    private final ScheduledExecutorService sync = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tree-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile CompactFolderTree tree;
+    private volatile List<Folder> roots;
+    private final List<Consumer<List<Folder>>> listeners = new CopyOnWriteArrayList<>();
+
+    public FolderTreeCache(DriveService driveService) {
+        this.driveService = driveService;
+        String file = AppConfig.get("tree.snapshot", "folder-tree.snapshot");
+        this.snapshot = file.isBlank() || "none".equalsIgnoreCase(file) ? null : Path.of(file);
+        this.compact = AppConfig.getBoolean("tree.compact", false);
+        this.offHeap = AppConfig.getBoolean("tree.offHeap", false);
+    }
+
+    /**
+     * Loads the snapshot (if any) and, once Drive is connected, starts background syncing every
+     * "tree.syncSeconds" (default 60).
+     */
+    public void start() {
+        if (snapshot != null && Files.exists(snapshot)) {
+            try {
+                long t0 = System.nanoTime();
+                CompactFolderTree loaded = CompactFolderTree.load(snapshot, offHeap);
+                if (loaded.pageToken() != null) {
+                    publish(loaded);
+                    System.out.printf("Loaded folder tree snapshot (%d nodes) in %d ms%n",
+                            loaded.size(), (System.nanoTime() - t0) / 1_000_000);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring unreadable tree snapshot " + snapshot + ": " + e.getMessage());
+            }
+        }
+        long period = AppConfig.getLong("tree.syncSeconds", 60);
+        driveService.whenReady().thenRun(
+                () -> sync.scheduleWithFixedDelay(this::syncQuietly, 0, period, TimeUnit.SECONDS));
+    }
+
+    /** Called with the new roots each time a tree is published (on the sync thread). */
+    public void addListener(Consumer<List<Folder>> listener) {
+        listeners.add(listener);
+        List<Folder> r = roots;
+        if (r != null) listener.accept(r);
+    }
+
+    public void stop() {
+        sync.shutdownNow();
+    }
+
+    /**
+     * Current top-level folders; blocks for the first full scan only if nothing is loaded yet.
+     * @throws DriveNotReadyException if there is no snapshot and Drive is still connecting
+     */
+    public List<Folder> getRoots() throws IOException {
+        List<Folder> r = roots;
+        if (r != null) return r;
+        sync();
+        return roots;
+    }
+
+    /** Applies pending Drive changes now (e.g. after bulk edits on a read-only tree). */
+    public void refreshNow() throws IOException {
+        sync();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (Exception e) {
+            System.err.println("Folder tree sync failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized void sync() throws IOException {
+        CompactFolderTree current = tree;
+        CompactFolderTree next;
+        if (current == null) {
+            String token = driveService.getStartPageToken(); // before the scan: replaying overlaps is harmless
+            next = driveService.scanCompactTree();
+            next.setPageToken(token);
+        } else {
+            DriveService.ChangeBatch batch = driveService.changesSince(current.pageToken());
+            if (batch.changes().isEmpty()) {
+                current.setPageToken(batch.newStartPageToken());
+                return; // token-only movement; the snapshot's older token just replays nothing next start
+            }
+            next = current.withChanges(batch.changes(), offHeap);
+            next.setPageToken(batch.newStartPageToken());
+        }
+        publish(next);
+        if (snapshot != null) {
+            try {
+                next.save(snapshot);
+            } catch (IOException e) {
+                System.err.println("Failed to save tree snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    private void publish(CompactFolderTree t) {
+        List<Folder> r = compact ? t.roots() : t.toFolders();
+        roots = r;
+        tree = t;
+        for (Consumer<List<Folder>> l : listeners) l.accept(r);
+    }
+}
@@ -6,7 +6,7 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 
-import com.google.api.client.http.FileContent;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.http.javanet.NetHttpTransport;
 
 import com.google.api.client.json.JsonFactory;
@@ -18,6 +18,7 @@ import com.google.api.services.drive.DriveScopes;
 
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.Permission;
+import config.AppConfig;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -36,17 +37,49 @@ public class GoogleDriveUploader {
     private static final List<String> SCOPES = Collections.singletonList(DriveScopes.DRIVE);
     private static final String CREDENTIALS_FILE_PATH = "/credentials.json";
 
+    // Must be a multiple of 256 KB; "drive.uploadChunkMb" overrides the 32 MB default
+    private static final int UPLOAD_CHUNK_SIZE = AppConfig.getInt("drive.uploadChunkMb", 32) * 1024 * 1024;
+    // Chunks of a stream are buffered in memory (to resend them on errors), so they stay smaller
+    private static final int STREAM_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    public static final String ACCOUNT_HEADER = "X-Drive-Account";
+
     private final Drive service;
 
     public GoogleDriveUploader() throws IOException, GeneralSecurityException {
-        final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-        service = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-                .setApplicationName(APPLICATION_NAME)
-                .build();
+        this(AppConfig.get("drive.rootUrl"));
+    }
+
+    /**
+     * @param rootUrl Alternative Drive API root (e.g. "http://localhost:8081/" for the load-test fake server).
+     *                When set, requests are sent unauthenticated and no OAuth flow is started.
+     */
+    public GoogleDriveUploader(String rootUrl) throws IOException, GeneralSecurityException {
+        this(rootUrl, "user");
+    }
+
+    /**
+     * @param account OAuth user the stored tokens belong to; each account signs in once and its tokens are kept
+     *                under that name in the tokens directory. With a rootUrl it is only sent along as the
+     *                {@value #ACCOUNT_HEADER} header, so a fake server can tell accounts apart.
+     */
+    public GoogleDriveUploader(String rootUrl, String account) throws IOException, GeneralSecurityException {
+        if (rootUrl == null) {
+            final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+            service = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT, account))
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+        } else {
+            service = new Drive.Builder(new NetHttpTransport(), JSON_FACTORY,
+                            request -> request.getHeaders().set(ACCOUNT_HEADER, account))
+                    .setApplicationName(APPLICATION_NAME)
+                    .setRootUrl(rootUrl.endsWith("/") ? rootUrl : rootUrl + "/")
+                    .build();
+        }
     }
 
     private static com.google.api.client.auth.oauth2.Credential getCredentials(
-            final NetHttpTransport HTTP_TRANSPORT) throws IOException {
+            final NetHttpTransport HTTP_TRANSPORT, String account) throws IOException {
         InputStream in = GoogleDriveUploader.class.getResourceAsStream(CREDENTIALS_FILE_PATH);
         if (in == null) {
             throw new IOException("File 'credentials.json' not found in resources.");
@@ -61,7 +94,7 @@ public class GoogleDriveUploader {
                 .setAccessType("offline")
                 .build();
 
-        return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
+        return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize(account);
     }
 
     /**
@@ -72,29 +105,96 @@ public class GoogleDriveUploader {
      * @return Public link to the uploaded file
      */
     public String uploadFile(String filePath, String originalFileName, String folderId) throws IOException {
+        return "https://drive.google.com/uc?id=" + upload(filePath, originalFileName, folderId, "id").getId();
+    }
+
+    /** Same as {@link #uploadFile}, returning the created file with the requested fields. */
+    public File upload(String filePath, String originalFileName, String folderId, String fields) throws IOException {
+        return upload(filePath, originalFileName, folderId, fields, null);
+    }
+
+    /** @param appProperties private key/value tags stored with the file (null for none) */
+    public File upload(String filePath, String originalFileName, String folderId, String fields,
+                       java.util.Map<String, String> appProperties) throws IOException {
+        return upload(filePath, originalFileName, folderId, fields, appProperties, true);
+    }
+
+    /** @param publish whether to make the file readable by anyone with the link, as bot uploads are */
+    public File upload(String filePath, String originalFileName, String folderId, String fields,
+                       java.util.Map<String, String> appProperties, boolean publish) throws IOException {
+        return upload(content(filePath, false), originalFileName, folderId, fields, appProperties, publish);
+    }
+
+    /** Uploads a file that may be written to meanwhile, such as a synced one; not made public. */
+    public File uploadChangingFile(String filePath, String name, String folderId, String fields) throws IOException {
+        return upload(content(filePath, true), name, folderId, fields, null, false);
+    }
+
+    private File upload(MappedFileContent mediaContent, String originalFileName, String folderId, String fields,
+                        java.util.Map<String, String> appProperties, boolean publish) throws IOException {
+        Drive.Files.Create create = service.files().create(metadata(originalFileName, folderId, appProperties), mediaContent)
+                .setFields(fields);
+        // Chunks come from the mapping without extra buffering, so fewer, larger round trips are cheap
+        create.getMediaHttpUploader().setChunkSize(UPLOAD_CHUNK_SIZE);
+        return publish ? publish(create.execute()) : create.execute();
+    }
+
+    /**
+     * Resumable upload of a stream, read once from start to end.
+     *
+     * @param length bytes the stream will deliver, or -1 if unknown
+     */
+    public File upload(InputStream in, long length, String mimeType, String name, String folderId, String fields,
+                       java.util.Map<String, String> appProperties) throws IOException {
+        InputStreamContent mediaContent = new InputStreamContent(
+                mimeType != null ? mimeType : "application/octet-stream", in);
+        mediaContent.setLength(length);
+        File fileMetadata = metadata(name, folderId, appProperties);
+        if (mimeType != null) fileMetadata.setMimeType(mimeType); // stated, not left to Drive's content sniffing
+        Drive.Files.Create create = service.files().create(fileMetadata, mediaContent).setFields(fields);
+        create.getMediaHttpUploader().setChunkSize(Math.min(UPLOAD_CHUNK_SIZE, STREAM_CHUNK_SIZE));
+        return publish(create.execute());
+    }
+
+    /**
+     * Replaces an existing file's content with a local file, as a resumable upload; id, name and sharing stay.
+     * The local file may be written to meanwhile (folder sync).
+     */
+    public File update(String fileId, String filePath, String fields) throws IOException {
+        Drive.Files.Update update = service.files().update(fileId, new File(), content(filePath, true)).setFields(fields);
+        update.getMediaHttpUploader().setChunkSize(UPLOAD_CHUNK_SIZE);
+        return update.execute();
+    }
+
+    private static MappedFileContent content(String filePath, boolean mayChange) throws IOException {
+        java.nio.file.Path path = java.nio.file.Path.of(filePath);
+        String mimeType = java.nio.file.Files.probeContentType(path);
+        return new MappedFileContent(mimeType != null ? mimeType : "application/octet-stream", path, mayChange);
+    }
+
+    private static File metadata(String name, String folderId, java.util.Map<String, String> appProperties) {
         File fileMetadata = new File();
-        fileMetadata.setName(originalFileName); // ✅ keep original filename
+        fileMetadata.setName(name); // ✅ keep original filename
         if (folderId != null) {
             fileMetadata.setParents(Collections.singletonList(folderId));
         }
+        if (appProperties != null) {
+            fileMetadata.setAppProperties(appProperties);
+        }
+        return fileMetadata;
+    }
 
-        java.io.File filePathObj = new java.io.File(filePath);
-        String mimeType = java.nio.file.Files.probeContentType(filePathObj.toPath());
-        if (mimeType == null) mimeType = "application/octet-stream";
-
-        FileContent mediaContent = new FileContent(mimeType, filePathObj);
-
-        File uploadedFile = service.files().create(fileMetadata, mediaContent)
-                .setFields("id")
-                .execute();
+    private File publish(File uploadedFile) throws IOException {
+        makePublic(uploadedFile.getId());
+        return uploadedFile;
+    }
 
-        // Make the file public
+    /** Lets anyone with the link read the file. */
+    public void makePublic(String fileId) throws IOException {
         Permission permission = new Permission()
                 .setType("anyone")
                 .setRole("reader");
-        service.permissions().create(uploadedFile.getId(), permission).execute();
-
-        return "https://drive.google.com/uc?id=" + uploadedFile.getId();
+        service.permissions().create(fileId, permission).execute();
     }
 
 
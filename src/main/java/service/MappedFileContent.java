@@ -0,0 +1,155 @@
+package service;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Upload content read straight from a memory-mapped file.
+ *
+ * Unlike FileContent, the stream supports mark/reset, so the resumable uploader sends chunks
+ * from the page cache instead of first copying each chunk into a BufferedInputStream.
+ * Files above 2 GB (beyond a single mapping) fall back to a plain channel stream.
+ *
+ * Files that may change while they are uploaded (folder sync reads files users are editing) are never mapped:
+ * reading a mapped page of a file cut short under it raises an InternalError, which may even surface later in
+ * other code. They are read through the channel, and a file shorter than announced to Drive fails the upload
+ * with an IOException, like any read error, so retries and the journal handle it.
+ */
+public class MappedFileContent extends AbstractInputStreamContent {
+
+    private final Path path;
+    private final long length;
+    private final boolean mayChange;
+
+    public MappedFileContent(String type, Path path) throws IOException {
+        this(type, path, false);
+    }
+
+    /** @param mayChange the file may be written to during the upload, so it is not mapped */
+    public MappedFileContent(String type, Path path, boolean mayChange) throws IOException {
+        super(type);
+        this.path = path;
+        this.length = Files.size(path);
+        this.mayChange = mayChange;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (mayChange) {
+            if (Files.size(path) != length) throw new IOException(path + " changed size during the upload");
+            return new ExactLengthStream(Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ)));
+        }
+        if (length > Integer.MAX_VALUE) {
+            return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+        }
+        // The mapping stays valid after the channel is closed
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new BufferInputStream(ch.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        }
+    }
+
+    @Override
+    public MappedFileContent setType(String type) {
+        return (MappedFileContent) super.setType(type);
+    }
+
+    /** Exactly {@link #length} bytes of the file: cut off if it grew, an IOException if it shrank. */
+    private final class ExactLengthStream extends FilterInputStream {
+        private long left = length;
+
+        ExactLengthStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (left == 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n < 0) throw new IOException(path + " was truncated during the upload");
+            left -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long k = in.skip(Math.min(n, left));
+            left -= k;
+            return k;
+        }
+    }
+
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        BufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buf.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buf.reset();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package service;
+
+import config.AppConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk space for files in transit between Telegram and Drive.
+ *
+ * Every process writes into its own subdirectory "<spool.dir>/<pid>"; at startup the directories of
+ * processes that are no longer alive are deleted, so a crash never leaks files for good.
+ * Space is reserved before a file is written: when the quota ("spool.quotaMb", default 1024) is used up,
+ * new jobs wait up to "spool.waitSeconds" (default 30) and are then refused instead of filling the disk.
+ * A {@link SpoolFile} is deleted and its reservation released when it is closed.
+ */
+public class SpoolManager {
+
+    private static final int COPY_BUFFER = 256 * 1024;
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER]);
+
+    private static volatile SpoolManager defaultInstance;
+
+    private final Path dir;
+    private final long quotaBytes;
+    private final long waitMillis;
+    private final Object lock = new Object();
+    private long reservedBytes;
+    private final AtomicLong names = new AtomicLong();
+
+    /** The process-wide spool configured by "spool.dir" (default "spool"), quota and wait time. */
+    public static SpoolManager getDefault() {
+        SpoolManager s = defaultInstance;
+        if (s == null) {
+            synchronized (SpoolManager.class) {
+                s = defaultInstance;
+                if (s == null) {
+                    s = new SpoolManager(Path.of(AppConfig.get("spool.dir", "spool")),
+                            AppConfig.getLong("spool.quotaMb", 1024) * 1024 * 1024,
+                            TimeUnit.SECONDS.toMillis(AppConfig.getLong("spool.waitSeconds", 30)));
+                    defaultInstance = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    public SpoolManager(Path root, long quotaBytes, long waitMillis) {
+        this.quotaBytes = quotaBytes;
+        this.waitMillis = waitMillis;
+        try {
+            Files.createDirectories(root);
+            sweepOrphans(root);
+            this.dir = Files.createDirectories(root.resolve(String.valueOf(ProcessHandle.current().pid())));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to prepare spool directory " + root, e);
+        }
+    }
+
+    /** Deletes spool directories of dead processes (and our own, in case the pid was reused). */
+    private static void sweepOrphans(Path root) throws IOException {
+        long self = ProcessHandle.current().pid();
+        File[] entries = root.toFile().listFiles();
+        if (entries == null) return;
+        for (File entry : entries) {
+            long pid;
+            try {
+                pid = Long.parseLong(entry.getName());
+            } catch (NumberFormatException e) {
+                continue; // not ours
+            }
+            if (pid != self && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) continue;
+            File[] files = entry.listFiles();
+            if (files != null) for (File f : files) Files.deleteIfExists(f.toPath());
+            Files.deleteIfExists(entry.toPath());
+            System.out.println("Removed orphaned spool directory " + entry);
+        }
+    }
+
+    /**
+     * Reserves room for a file of the expected size, waiting for space if needed.
+     *
+     * @throws IOException if the reservation can never fit or no space frees up in time
+     */
+    public SpoolFile create(String suffix, long expectedBytes) throws IOException {
+        long bytes = Math.max(0, expectedBytes);
+        if (bytes > quotaBytes) {
+            throw new IOException("File of " + (bytes >> 20) + " MB exceeds the spool quota");
+        }
+        reserve(bytes, waitMillis);
+        try {
+            String safe = suffix == null ? "" : "_" + suffix.replaceAll("[^a-zA-Z0-9._-]", "_");
+            if (safe.length() > 100) safe = safe.substring(safe.length() - 100);
+            Path path = dir.resolve(names.incrementAndGet() + safe);
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new SpoolFile(path, channel, bytes);
+        } catch (IOException | RuntimeException e) {
+            release(bytes);
+            throw e;
+        }
+    }
+
+    public long getReservedBytes() {
+        synchronized (lock) {
+            return reservedBytes;
+        }
+    }
+
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    private void reserve(long bytes, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            while (reservedBytes + bytes > quotaBytes) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) throw new IOException("Spool is full, try again later");
+                try {
+                    lock.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for spool space", e);
+                }
+            }
+            reservedBytes += bytes;
+        }
+    }
+
+    private void release(long bytes) {
+        synchronized (lock) {
+            reservedBytes -= bytes;
+            lock.notifyAll();
+        }
+    }
+
+    /** A spooled file; closing it deletes the file and frees its quota. */
+    public class SpoolFile implements AutoCloseable {
+        private final Path path;
+        private final FileChannel channel;
+        private long reserved;
+        private long written;
+        private boolean closed;
+
+        private SpoolFile(Path path, FileChannel channel, long reserved) {
+            this.path = path;
+            this.channel = channel;
+            this.reserved = reserved;
+        }
+
+        public Path path() { return path; }
+
+        public FileChannel channel() { return channel; }
+
+        public long size() { return written; }
+
+        /** Appends the whole stream; growing past the reservation takes more quota without waiting. */
+        public long writeFrom(InputStream in) throws IOException {
+            byte[] buf = BUFFERS.get();
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                ensureReserved(written + n);
+                bb.clear().limit(n);
+                while (bb.hasRemaining()) channel.write(bb, written + bb.position());
+                written += n;
+                total += n;
+            }
+            // No force(): after a crash the file is swept anyway
+            return total;
+        }
+
+        private void ensureReserved(long needed) throws IOException {
+            if (needed <= reserved) return;
+            // Grow in 8 MB steps so an unexpectedly large file does not take the lock per buffer
+            long extra = Math.max(needed - reserved, 8L * 1024 * 1024);
+            try {
+                reserve(extra, 0);
+            } catch (IOException e) {
+                extra = needed - reserved;
+                reserve(extra, 0);
+            }
+            reserved += extra;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Failed to delete spool file " + path + ": " + e.getMessage());
+            } finally {
+                release(reserved);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What a {@link FolderSync} last saw as agreed between the local directory and Drive: per relative path
+ * ("a/b.txt") the size, modification time and MD5 of the file, and its Drive id. Also the change-feed token
+ * to continue from.
+ *
+ * Kept in memory in path order, so a subtree is one range lookup even with hundreds of thousands of entries.
+ * On disk it is a log of JSON lines, appended as entries change and fsynced at the end of every sync pass;
+ * it is rewritten with only the live entries once it holds twice as many lines as there are entries.
+ */
+public class SyncState {
+
+    /** One file or folder; folders have no size, time or checksum. */
+    public record Entry(String path, boolean folder, long size, long mtime, String md5, String driveId) {}
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record Line(String op, Entry entry, String path, String token) {}
+
+    private static final int MIN_COMPACT_LINES = 10_000;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path file;
+    private final TreeMap<String, Entry> byPath = new TreeMap<>();
+    private final Map<String, String> pathById = new HashMap<>();
+    private String pageToken;
+    private BufferedWriter out;
+    private FileOutputStream stream;
+    private long lines;
+
+    public SyncState(Path file) throws IOException {
+        this.file = file;
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        boolean torn = false;
+        if (Files.exists(file)) {
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String text;
+                while ((text = in.readLine()) != null) {
+                    if (text.isBlank()) continue;
+                    try {
+                        apply(mapper.readValue(text, Line.class));
+                    } catch (IOException e) {
+                        torn = true; // last line of a crashed write
+                        continue;
+                    }
+                    lines++;
+                }
+            }
+        }
+        open();
+        if (torn) rewrite(); // appending would continue the torn line, and lose the next entry with it
+    }
+
+    /** Token of the Drive change feed, or null before the first complete sync. */
+    public synchronized String pageToken() {
+        return pageToken;
+    }
+
+    public synchronized void setPageToken(String token) throws IOException {
+        pageToken = token;
+        append(new Line("token", null, null, token));
+    }
+
+    public synchronized Entry get(String path) {
+        return byPath.get(path);
+    }
+
+    /** Path of the entry with this Drive id, or null. */
+    public synchronized String pathOf(String driveId) {
+        return pathById.get(driveId);
+    }
+
+    /** Entries below a folder (all entries for ""), in path order; not the folder itself. */
+    public synchronized List<Entry> under(String folder) {
+        if (folder.isEmpty()) return new ArrayList<>(byPath.values());
+        // '0' is the character after '/': the range holds exactly the paths starting with folder + "/"
+        return new ArrayList<>(byPath.subMap(folder + "/", folder + "0").values());
+    }
+
+    public synchronized int size() {
+        return byPath.size();
+    }
+
+    public synchronized void put(Entry entry) throws IOException {
+        apply(new Line("put", entry, null, null));
+        append(new Line("put", entry, null, null));
+    }
+
+    public synchronized void remove(String path) throws IOException {
+        if (!byPath.containsKey(path)) return;
+        apply(new Line("del", null, path, null));
+        append(new Line("del", null, path, null));
+    }
+
+    /** Makes the changes so far durable; compacts the log when it has grown. */
+    public synchronized void flush() throws IOException {
+        out.flush();
+        stream.getFD().sync();
+        if (lines > Math.max(MIN_COMPACT_LINES, 2L * byPath.size())) rewrite();
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private void apply(Line line) {
+        switch (line.op()) {
+            case "put" -> {
+                Entry e = line.entry();
+                Entry old = byPath.put(e.path(), e);
+                if (old != null && old.driveId() != null) pathById.remove(old.driveId(), old.path());
+                if (e.driveId() != null) {
+                    String previous = pathById.put(e.driveId(), e.path());
+                    if (previous != null && !previous.equals(e.path())) byPath.remove(previous); // moved
+                }
+            }
+            case "del" -> {
+                Entry old = byPath.remove(line.path());
+                if (old != null && old.driveId() != null) pathById.remove(old.driveId(), old.path());
+            }
+            case "token" -> pageToken = line.token();
+            default -> { }
+        }
+    }
+
+    private void append(Line line) throws IOException {
+        out.write(mapper.writeValueAsString(line));
+        out.write('\n');
+        lines++;
+    }
+
+    private void open() throws IOException {
+        stream = new FileOutputStream(file.toFile(), true);
+        out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private void rewrite() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream s = new FileOutputStream(tmp.toFile());
+             BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s, StandardCharsets.UTF_8), 64 * 1024)) {
+            for (Entry e : byPath.values()) {
+                w.write(mapper.writeValueAsString(new Line("put", e, null, null)));
+                w.write('\n');
+            }
+            if (pageToken != null) w.write(mapper.writeValueAsString(new Line("token", null, null, pageToken)) + "\n");
+            w.flush();
+            s.getFD().sync();
+        }
+        out.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = byPath.size() + (pageToken != null ? 1 : 0);
+        open();
+    }
+}
@@ -0,0 +1,223 @@
+package service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import config.AppConfig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Write-ahead log of uploads from Telegram to Drive, so an upload cut off by a restart is finished afterwards.
+ *
+ * A job (Telegram file id, target folder, chat) is appended and fsynced before the transfer starts, and a
+ * "done" or "failed" line after it ends; jobs without an outcome are {@link #pending()}. Each process writes
+ * "<upload.journalDir>/<pid>.wal" (default upload-journal) and holds a lock on it while alive. At startup the
+ * logs of processes that are gone are adopted: their pending jobs are copied into the new log and the old file
+ * is deleted. The log is rewritten with only pending jobs whenever it has grown past {@value #COMPACT_BYTES} bytes.
+ *
+ * Jobs are keyed by chat, Telegram file and folder, so a file sent again while its upload is still pending
+ * (e.g. a user re-sending after a deploy) is not queued twice.
+ */
+public class UploadJournal {
+
+    /** @param encrypt store the file encrypted (decided when queued, so a resumed job does the same) */
+    public record Job(String id, long chatId, String user, String telegramFileId, String fileUniqueId,
+                      String name, long size, String folderId, String folderName, long created, boolean encrypt) {
+
+        String key() {
+            return chatId + "/" + fileUniqueId + "/" + folderId;
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record Line(String op, Job job, String id, String detail) {}
+
+    private static final long COMPACT_BYTES = 1024 * 1024;
+    private static final String SUFFIX = ".wal";
+    private static volatile UploadJournal defaultInstance;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path dir;
+    private final Path file;
+    private final Map<String, Job> pending = new LinkedHashMap<>(); // id -> job, in queue order
+    private final Map<String, String> pendingKeys = new java.util.HashMap<>(); // key -> id
+    private FileChannel channel;
+    private FileLock lock;
+
+    /** The process-wide journal in "upload.journalDir" (default upload-journal). */
+    public static UploadJournal getDefault() {
+        UploadJournal j = defaultInstance;
+        if (j == null) {
+            synchronized (UploadJournal.class) {
+                j = defaultInstance;
+                if (j == null) {
+                    j = new UploadJournal(Path.of(AppConfig.get("upload.journalDir", "upload-journal")));
+                    defaultInstance = j;
+                }
+            }
+        }
+        return j;
+    }
+
+    public UploadJournal(Path dir) {
+        this.dir = dir;
+        this.file = dir.resolve(ProcessHandle.current().pid() + SUFFIX);
+        try {
+            Files.createDirectories(dir);
+            List<Path> adopted = new ArrayList<>();
+            for (Path orphan : orphans()) {
+                if (replayOrphan(orphan)) adopted.add(orphan);
+            }
+            rewrite();
+            for (Path orphan : adopted) {
+                if (!orphan.equals(file)) Files.deleteIfExists(orphan);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open upload journal in " + dir, e);
+        }
+        if (!pending.isEmpty()) {
+            System.out.println("Upload journal: " + pending.size() + " unfinished upload(s) to resume");
+        }
+    }
+
+    /**
+     * Records a new job before its transfer starts.
+     *
+     * @return the job, or null when the same file is already pending for the same chat and folder
+     */
+    public synchronized Job begin(long chatId, String user, String telegramFileId, String fileUniqueId,
+                                  String name, long size, String folderId, String folderName, boolean encrypt)
+            throws IOException {
+        Job job = new Job(UUID.randomUUID().toString(), chatId, user, telegramFileId,
+                fileUniqueId != null ? fileUniqueId : telegramFileId, name, size, folderId, folderName,
+                System.currentTimeMillis(), encrypt);
+        if (pendingKeys.containsKey(job.key())) return null;
+        append(new Line("queued", job, null, null));
+        pending.put(job.id(), job);
+        pendingKeys.put(job.key(), job.id());
+        return job;
+    }
+
+    public void done(Job job, String driveFileId) throws IOException {
+        finish(job, "done", driveFileId);
+    }
+
+    public void failed(Job job, String reason) throws IOException {
+        finish(job, "failed", reason);
+    }
+
+    public synchronized List<Job> pending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    private synchronized void finish(Job job, String op, String detail) throws IOException {
+        if (pending.remove(job.id()) == null) return;
+        pendingKeys.remove(job.key());
+        append(new Line(op, null, job.id(), detail));
+        if (channel.size() > COMPACT_BYTES) rewrite();
+    }
+
+    private void append(Line line) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(line);
+        ByteBuffer buf = ByteBuffer.allocate(bytes.length + 1).put(bytes).put((byte) '\n').flip();
+        while (buf.hasRemaining()) channel.write(buf);
+        channel.force(false);
+    }
+
+    /** Writes the pending jobs into a fresh log and swaps it in; the lock moves to the new file. */
+    private void rewrite() throws IOException {
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder sb = new StringBuilder();
+            for (Job job : pending.values()) {
+                sb.append(mapper.writeValueAsString(new Line("queued", job, null, null))).append('\n');
+            }
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) out.write(buf);
+            out.force(false);
+        }
+        if (channel != null) channel.close(); // also releases the lock
+        Files.move(tmp, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        lock = channel.lock(0, Long.MAX_VALUE, false);
+    }
+
+    /** Logs of other processes, or of an earlier process that had our pid. */
+    private List<Path> orphans() {
+        List<Path> out = new ArrayList<>();
+        File[] entries = dir.toFile().listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (entries == null) return out;
+        for (File entry : entries) {
+            try {
+                long pid = Long.parseLong(entry.getName().substring(0, entry.getName().length() - SUFFIX.length()));
+                if (pid != ProcessHandle.current().pid() && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+                    continue; // its owner will finish its jobs
+                }
+            } catch (NumberFormatException e) {
+                continue; // not ours
+            }
+            out.add(entry.toPath());
+        }
+        java.util.Collections.sort(out);
+        return out;
+    }
+
+    /** Loads the pending jobs of a dead process's log; false if another process is adopting it right now. */
+    private boolean replayOrphan(Path orphan) throws IOException {
+        try (FileChannel ch = FileChannel.open(orphan, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock l;
+            try {
+                l = ch.tryLock();
+            } catch (OverlappingFileLockException e) {
+                l = null;
+            }
+            if (l == null) return false;
+            try (BufferedReader in = Files.newBufferedReader(orphan, StandardCharsets.UTF_8)) {
+                String text;
+                while ((text = in.readLine()) != null) {
+                    if (text.isBlank()) continue;
+                    Line line;
+                    try {
+                        line = mapper.readValue(text, Line.class);
+                    } catch (IOException e) {
+                        continue; // torn last line of a crashed write
+                    }
+                    apply(line);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void apply(Line line) {
+        if ("queued".equals(line.op()) && line.job() != null) {
+            Job job = line.job();
+            if (pendingKeys.containsKey(job.key())) return; // the same file queued twice, e.g. by two processes
+            pending.put(job.id(), job);
+            pendingKeys.put(job.key(), job.id());
+        } else if (line.id() != null) {
+            Job job = pending.remove(line.id());
+            if (job != null) pendingKeys.remove(job.key());
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package service;
+
+import config.AppConfig;
+
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a file from an HTTP(S) URL as one ordered stream, for uploading it to Drive without a local copy.
+ *
+ * When the server accepts byte ranges and the file is larger than one part ("url.partMb", default 4), the
+ * parts are fetched over "url.connections" (default 4) parallel requests and handed out strictly in order.
+ * A part is only requested once it is within that many parts of the reader, so a download never holds more
+ * than connections + 1 parts in memory, however fast the server is. Every range request carries If-Range,
+ * so a file that changes meanwhile fails the download instead of mixing two versions. Otherwise the file is
+ * read as a single plain GET.
+ *
+ * All downloads together are limited to "url.maxKBps" (default 0 = unlimited) and each to "url.maxMb"
+ * (default 4096). Only public addresses are fetched, also after redirects, unless "url.allowPrivate=true".
+ * The check is made where the host name is resolved for the connection, so a name that resolves to a public
+ * address when vetted and to a private one when connecting cannot slip through.
+ */
+public class UrlDownloader {
+
+    /** What the server tells about the file before the download. */
+    public record Probe(URI uri, long length, boolean ranges, String name, String mimeType, String validator) {}
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final int PART_ATTEMPTS = 3;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+    private static final Pattern FILENAME = Pattern.compile("filename\\*?=(?:UTF-8'')?\"?([^\";]+)\"?", Pattern.CASE_INSENSITIVE);
+
+    private final OkHttpClient http = new OkHttpClient.Builder()
+            .connectTimeout(10, TimeUnit.SECONDS)
+            .readTimeout(60, TimeUnit.SECONDS)
+            .followRedirects(false) // followed by hand, to check every hop
+            .followSslRedirects(false)
+            .proxy(Proxy.NO_PROXY) // a proxy would resolve the host itself
+            .dns(this::resolve)
+            .build();
+    private final int partSize;
+    private final int connections;
+    private final long maxBytes;
+    private final long bytesPerSecond;
+    private final boolean allowPrivate;
+    private final ExecutorService fetchers;
+    private long nextFreeNanos; // shared throughput limit: when the next byte may be read
+
+    public UrlDownloader() {
+        this.partSize = Math.max(64 * 1024, AppConfig.getInt("url.partMb", 4) * 1024 * 1024);
+        this.connections = Math.max(1, AppConfig.getInt("url.connections", 4));
+        this.maxBytes = AppConfig.getLong("url.maxMb", 4096) * 1024 * 1024;
+        this.bytesPerSecond = AppConfig.getLong("url.maxKBps", 0) * 1024;
+        this.allowPrivate = AppConfig.getBoolean("url.allowPrivate", false);
+        this.fetchers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "url-fetch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** {@link #probe} on the fetch pool, for callers that must not wait on the network. */
+    public CompletableFuture<Probe> probeAsync(String url) {
+        CompletableFuture<Probe> result = new CompletableFuture<>();
+        fetchers.execute(() -> {
+            try {
+                result.complete(probe(url));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /** Follows redirects and asks for the first byte, to learn the size, name and range support. */
+    public Probe probe(String url) throws IOException {
+        URI uri;
+        try {
+            uri = URI.create(url.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Not a valid link.");
+        }
+        for (int hop = 0; hop <= MAX_REDIRECTS; hop++) {
+            checkAllowed(uri);
+            try (Response resp = send(request(uri).header("Range", "bytes=0-0"))) {
+                int status = resp.code();
+                if (status >= 300 && status < 400) {
+                    String location = resp.header("Location");
+                    if (location == null) throw new IOException("Redirect without a location");
+                    uri = uri.resolve(location);
+                    continue;
+                }
+                if (status != 200 && status != 206) throw new IOException("The server answered HTTP " + status);
+                long length = -1;
+                boolean ranges = false;
+                if (status == 206) {
+                    Matcher m = CONTENT_RANGE.matcher(resp.header("Content-Range", ""));
+                    if (m.matches()) {
+                        length = Long.parseLong(m.group(1));
+                        ranges = true;
+                    }
+                } else {
+                    length = resp.body().contentLength();
+                }
+                if (length > maxBytes) {
+                    throw new IllegalStateException("File is larger than the " + (maxBytes >> 20) + " MB link limit.");
+                }
+                String validator = resp.header("ETag");
+                if (validator == null || validator.startsWith("W/")) { // If-Range needs a strong validator
+                    validator = resp.header("Last-Modified");
+                }
+                String type = resp.header("Content-Type");
+                String mime = type == null ? null : type.split(";")[0].trim();
+                return new Probe(uri, length, ranges && validator != null, fileName(resp, uri), mime, validator);
+            }
+        }
+        throw new IOException("Too many redirects");
+    }
+
+    /** The file's bytes in order; parallel ranges when the probe allows, else one request. */
+    public InputStream open(Probe probe) throws IOException {
+        if (probe.ranges() && probe.length() > partSize) return new PartStream(probe);
+        Response resp = send(request(probe.uri()));
+        if (resp.code() != 200) {
+            resp.close();
+            throw new IOException("The server answered HTTP " + resp.code());
+        }
+        return new LimitedStream(resp.body().byteStream());
+    }
+
+    private static Request.Builder request(URI uri) {
+        // Sizes and ranges are of the file as stored: no transparent gzip
+        return new Request.Builder().url(uri.toString()).header("Accept-Encoding", "identity");
+    }
+
+    private Response send(Request.Builder request) throws IOException {
+        return http.newCall(request.build()).execute();
+    }
+
+    private void checkAllowed(URI uri) throws IOException {
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        if (!scheme.equals("http") && !scheme.equals("https") || uri.getHost() == null) {
+            throw new IllegalArgumentException("Only http:// and https:// links can be uploaded.");
+        }
+        if (allowPrivate) return;
+        try {
+            for (InetAddress a : InetAddress.getAllByName(uri.getHost())) {
+                if (isPrivate(a)) throw new IllegalArgumentException("Links to private network addresses are not allowed.");
+            }
+        } catch (UnknownHostException e) {
+            throw new IOException("Unknown host " + uri.getHost());
+        }
+    }
+
+    // Resolves a host for a connection: the addresses returned are the ones connected to, so they are vetted here
+    private List<InetAddress> resolve(String host) throws UnknownHostException {
+        List<InetAddress> addresses = Dns.SYSTEM.lookup(host);
+        if (!allowPrivate) {
+            for (InetAddress a : addresses) {
+                if (isPrivate(a)) throw new UnknownHostException(host + " resolves to a private network address");
+            }
+        }
+        return addresses;
+    }
+
+    static boolean isPrivate(InetAddress a) {
+        if (a.isLoopbackAddress() || a.isSiteLocalAddress() || a.isLinkLocalAddress()
+                || a.isAnyLocalAddress() || a.isMulticastAddress()) {
+            return true;
+        }
+        byte[] b = a.getAddress();
+        if (a instanceof Inet4Address) {
+            int first = b[0] & 0xff;
+            int second = b[1] & 0xff;
+            return first == 0                                         // "this network"
+                    || first == 100 && second >= 64 && second < 128   // carrier-grade NAT 100.64/10
+                    || first == 192 && second == 0 && b[2] == 0       // protocol assignments 192.0.0/24
+                    || first == 198 && (second == 18 || second == 19) // benchmarking 198.18/15
+                    || first >= 240;                                  // reserved and broadcast
+        }
+        if (a instanceof Inet6Address) {
+            if ((b[0] & 0xfe) == 0xfc) return true; // unique local fc00::/7
+            // IPv4 addresses carried in IPv6 ones: mapped ::ffff:0:0/96, compatible ::/96, NAT64 64:ff9b::/96
+            // and 6to4 2002::/16 are judged by the IPv4 address inside
+            boolean zeroPrefix = Arrays.equals(b, 0, 10, new byte[10], 0, 10);
+            if (zeroPrefix && (b[10] & b[11] & 0xff) == 0xff || zeroPrefix && b[10] == 0 && b[11] == 0
+                    || b[0] == 0 && b[1] == 0x64 && (b[2] & 0xff) == 0xff && (b[3] & 0xff) == 0x9b
+                        && Arrays.equals(b, 4, 12, new byte[8], 0, 8)) {
+                return isPrivate(ipv4(b, 12));
+            }
+            if (b[0] == 0x20 && b[1] == 0x02) return isPrivate(ipv4(b, 2));
+        }
+        return false;
+    }
+
+    private static InetAddress ipv4(byte[] b, int from) {
+        try {
+            return InetAddress.getByAddress(Arrays.copyOfRange(b, from, from + 4));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // four bytes are always an address
+        }
+    }
+
+    private static String fileName(Response resp, URI uri) {
+        Matcher m = FILENAME.matcher(resp.header("Content-Disposition", ""));
+        String name = m.find() ? m.group(1) : null;
+        if (name == null && uri.getRawPath() != null) {
+            String path = uri.getRawPath();
+            name = path.substring(path.lastIndexOf('/') + 1);
+        }
+        if (name != null) name = URLDecoder.decode(name, StandardCharsets.UTF_8).replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+        return name == null || name.isEmpty() ? "download" : name;
+    }
+
+    // Waits until the shared byte budget allows n more bytes
+    private void throttle(int n) {
+        if (bytesPerSecond <= 0) return;
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextFreeNanos = Math.max(nextFreeNanos, now) + n * 1_000_000_000L / bytesPerSecond;
+            wait = nextFreeNanos - now - 1_000_000_000L; // a second's worth may go in a burst
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** A single response body, throttled and cut off at the size limit (the length may be unknown). */
+    private final class LimitedStream extends InputStream {
+        private final InputStream in;
+        private long read;
+
+        LimitedStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                read += n;
+                if (read > maxBytes) throw new IOException("File is larger than the " + (maxBytes >> 20) + " MB link limit.");
+                throttle(n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** Parts fetched in parallel, read back in order; at most {@link #connections} parts ahead of the reader. */
+    private final class PartStream extends InputStream {
+        private final Probe probe;
+        private final int parts;
+        private final Deque<CompletableFuture<byte[]>> ahead = new ArrayDeque<>();
+        private int requested;
+        private byte[] current = new byte[0];
+        private int pos;
+        private volatile boolean closed;
+
+        PartStream(Probe probe) {
+            this.probe = probe;
+            this.parts = (int) ((probe.length() + partSize - 1) / partSize);
+            fill();
+        }
+
+        private void fill() {
+            while (ahead.size() < connections && requested < parts) {
+                int part = requested++;
+                ahead.add(CompletableFuture.supplyAsync(() -> fetch(part), fetchers));
+            }
+        }
+
+        private byte[] fetch(int part) {
+            long from = (long) part * partSize;
+            long to = Math.min(probe.length(), from + partSize) - 1;
+            IOException last = null;
+            for (int attempt = 1; attempt <= PART_ATTEMPTS && !closed; attempt++) {
+                try {
+                    try (Response resp = send(request(probe.uri())
+                            .header("Range", "bytes=" + from + "-" + to)
+                            .header("If-Range", probe.validator()))) {
+                        if (resp.code() == 200) throw new IllegalStateException("The file changed on the server during the download.");
+                        if (resp.code() != 206) throw new IOException("The server answered HTTP " + resp.code());
+                        InputStream in = resp.body().byteStream();
+                        byte[] buf = new byte[(int) (to - from + 1)];
+                        int off = 0;
+                        while (off < buf.length) {
+                            int n = in.read(buf, off, Math.min(64 * 1024, buf.length - off));
+                            if (n < 0) throw new IOException("Part " + part + " ended early");
+                            throttle(n);
+                            off += n;
+                        }
+                        return buf;
+                    }
+                } catch (IOException e) {
+                    last = e;
+                }
+            }
+            throw new java.io.UncheckedIOException(last != null ? last : new IOException("Download cancelled"));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (pos == current.length) {
+                if (ahead.isEmpty()) return -1;
+                try {
+                    current = ahead.poll().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() instanceof java.io.UncheckedIOException u ? u.getCause() : e.getCause();
+                    if (cause instanceof IOException io) throw io;
+                    throw new IOException(cause.getMessage(), cause);
+                }
+                pos = 0;
+                fill(); // the part just taken frees a slot
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true; // running fetches give up instead of retrying
+            ahead.forEach(f -> f.cancel(false));
+            ahead.clear();
+            current = new byte[0];
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package session;
+
+import java.util.Collection;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring assigning chats to worker processes.
+ * Each worker owns {@value #VIRTUAL_NODES} points on the ring, so a joining or leaving worker only moves
+ * about 1/n of the chats, and the sessions of moved chats stay readable from the shared store.
+ */
+public class ChatRouter {
+
+    public record Worker(long id, int port) {}
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private volatile NavigableMap<Long, Worker> ring = new TreeMap<>();
+
+    public void update(Collection<Worker> workers) {
+        NavigableMap<Long, Worker> next = new TreeMap<>();
+        for (Worker w : workers) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                next.put(mix(mix(w.id()) + v), w);
+            }
+        }
+        ring = next;
+    }
+
+    /** Worker responsible for the chat, or null when no worker is known. */
+    public Worker ownerOf(long chatId) {
+        NavigableMap<Long, Worker> r = ring;
+        if (r.isEmpty()) return null;
+        var e = r.ceilingEntry(mix(chatId));
+        return (e != null ? e : r.firstEntry()).getValue();
+    }
+
+    /** SplitMix64 finaliser: spreads sequential ids over the whole ring. */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,36 @@
+package session;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/** Sessions held in this JVM only. */
+public class InMemorySessionStore implements SessionStore {
+
+    private final Map<Long, UserSession> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public UserSession get(long chatId) {
+        return sessions.get(chatId);
+    }
+
+    @Override
+    public void put(UserSession session) {
+        sessions.put(session.getChatId(), session);
+    }
+
+    @Override
+    public void remove(long chatId) {
+        sessions.remove(chatId);
+    }
+
+    @Override
+    public void flush(long chatId) {
+        // objects are shared by reference, nothing to write
+    }
+
+    @Override
+    public void removeIf(Predicate<UserSession> predicate) {
+        sessions.values().removeIf(predicate);
+    }
+}
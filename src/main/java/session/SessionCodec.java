@@ -0,0 +1,85 @@
+package session;
+
+import model.Folder;
+
+import java.io.*;
+import java.time.Instant;
+
+/**
+ * Compact binary form of a {@link UserSession} for the shared store.
+ * Folders are stored by id only; the loaded tree (rootFolders) is not persisted and is rebuilt on demand.
+ */
+final class SessionCodec {
+
+    private static final int FORMAT = 2; // 2: bulk selection
+
+    private SessionCodec() {}
+
+    static byte[] encode(UserSession s) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT);
+            out.writeLong(s.getChatId());
+            out.writeLong(s.getLastActivity().toEpochMilli());
+            out.writeByte(s.getMode().ordinal());
+            out.writeBoolean(s.isAdminAuthenticated());
+            out.writeBoolean(s.isWaitingForUpload());
+            writeNullable(out, s.getAwaitingWhat());
+            writeNullable(out, s.getPendingFolderId());
+            writeNullable(out, folderId(s.getCurrentFolder(), s.restoredCurrentFolderId));
+            writeNullable(out, folderId(s.getDirectAccessRoot(), s.restoredDirectAccessRootId));
+            out.writeShort(s.getUnlockedFolderIds().size());
+            for (String id : s.getUnlockedFolderIds()) out.writeUTF(id);
+            out.writeBoolean(s.isSelecting());
+            out.writeShort(s.getSelectedIds().size());
+            for (String id : s.getSelectedIds()) out.writeUTF(id);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static UserSession decode(byte[] data, int length) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+            int format = in.readByte();
+            if (format != 1 && format != FORMAT) throw new IOException("Unknown session format " + format);
+            UserSession s = new UserSession(in.readLong());
+            Instant lastActivity = Instant.ofEpochMilli(in.readLong());
+            s.setMode(UserSession.Mode.values()[in.readByte()]);
+            s.setAdminAuthenticated(in.readBoolean());
+            s.setWaitingForUpload(in.readBoolean());
+            s.setAwaitingWhat(readNullable(in));
+            s.setPendingFolderId(readNullable(in));
+            s.restoredCurrentFolderId = readNullable(in);
+            s.restoredDirectAccessRootId = readNullable(in);
+            int unlocked = in.readShort();
+            for (int i = 0; i < unlocked; i++) s.getUnlockedFolderIds().add(in.readUTF());
+            if (format >= 2) {
+                s.setSelecting(in.readBoolean());
+                int selected = in.readShort();
+                for (int i = 0; i < selected; i++) s.getSelectedIds().add(in.readUTF());
+            }
+            // setters above touch(); restore the real activity time last
+            s.setLastActivity(lastActivity);
+            return s;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String folderId(Folder f, String restored) {
+        return f != null ? f.getId() : restored;
+    }
+
+    private static void writeNullable(DataOutputStream out, String v) throws IOException {
+        out.writeBoolean(v != null);
+        if (v != null) out.writeUTF(v);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
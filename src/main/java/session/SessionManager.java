@@ -1,20 +1,58 @@
 package session;
 
+import config.AppConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class SessionManager {
 
-    private final Map<Long, UserSession> sessions = new ConcurrentHashMap<>();
+    private final SessionStore store;
     private static final Duration TIMEOUT = Duration.ofMinutes(10);
 
+    /**
+     * Store chosen by "session.store": "memory" (default) or "shared"
+     * (memory-mapped file "session.sharedFile", default sessions.dat).
+     */
+    public SessionManager() {
+        this(createStore(""));
+    }
+
+    /** Sessions of one of several bots in the process; a shared store gets its own file per bot. */
+    public SessionManager(String botName) {
+        this(createStore(botName));
+    }
+
+    public SessionManager(SessionStore store) {
+        this.store = store;
+    }
+
+    private static SessionStore createStore(String botName) {
+        if (!"shared".equalsIgnoreCase(AppConfig.get("session.store", "memory"))) {
+            return new InMemorySessionStore();
+        }
+        try {
+            return new SharedFileSessionStore(
+                    new File(AppConfig.forBot(AppConfig.get("session.sharedFile", "sessions.dat"), botName)),
+                    AppConfig.getInt("session.slots", 16384),
+                    AppConfig.getInt("session.slotSize", 2048));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open shared session store", e);
+        }
+    }
+
+    public SessionStore getStore() {
+        return store;
+    }
+
     /**
      * Get session if it exists and is still active.
      */
     public UserSession getSession(long chatId) {
-        UserSession session = sessions.get(chatId);
+        UserSession session = store.get(chatId);
         if (session != null && !isExpired(session)) {
             session.touch(); // refresh activity
             return session;
@@ -27,26 +65,29 @@ public class SessionManager {
      */
     public UserSession createSession(long chatId) {
         UserSession session = new UserSession(chatId);
-        sessions.put(chatId, session);
+        store.put(session);
         return session;
     }
 
+    /**
+     * Persist changes made while handling an update (needed by shared stores).
+     */
+    public void saveSession(long chatId) {
+        store.flush(chatId);
+    }
+
     /**
      * Remove session (manual cleanup).
      */
     public void removeSession(long chatId) {
-        sessions.remove(chatId);
+        store.remove(chatId);
     }
 
     /**
      * Cleanup expired sessions (called by SessionCleanupTask).
      */
     public void cleanupExpiredSessions() {
-        for (Map.Entry<Long, UserSession> entry : sessions.entrySet()) {
-            if (isExpired(entry.getValue())) {
-                sessions.remove(entry.getKey());
-            }
-        }
+        store.removeIf(this::isExpired);
     }
 
     private boolean isExpired(UserSession session) {
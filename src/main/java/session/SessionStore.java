@@ -0,0 +1,24 @@
+package session;
+
+import java.util.function.Predicate;
+
+/**
+ * Where {@link SessionManager} keeps sessions.
+ *
+ * {@link InMemorySessionStore} is the single-process default; {@link SharedFileSessionStore} lets several bot
+ * processes on one host share sessions through a memory-mapped file.
+ */
+public interface SessionStore {
+
+    /** Session for the chat, or null if there is none. */
+    UserSession get(long chatId);
+
+    void put(UserSession session);
+
+    void remove(long chatId);
+
+    /** Persists changes made to the chat's session since it was read (no-op for in-memory stores). */
+    void flush(long chatId);
+
+    void removeIf(Predicate<UserSession> predicate);
+}
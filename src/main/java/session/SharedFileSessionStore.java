@@ -0,0 +1,422 @@
+package session;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Session store shared by several bot processes on one host through a memory-mapped file.
+ *
+ * Layout (native byte order):
+ *
+ *  [0, 4096)   header: magic, format, slotCount, slotSize, then a worker table of 64 entries
+ *              (workerId, heartbeatMillis, port) used for membership / consistent hashing
+ *  [4096, ..)  slotCount fixed-size record slots:
+ *              key(8) version(8) length(4) pad(4) lockOwnerPid(8) lockedAtMillis(8) payload
+ *
+ * Chats map to slots by open addressing on the chat id. Every slot carries a version word used as a
+ * seqlock: writers CAS it from an even value v to v+1, note their pid and the time, write the payload and
+ * publish v+2; readers retry if the version changed while they copied. A write whose starting version differs
+ * from the version the session was read at is counted as a conflict (another process wrote in between; chat
+ * ownership by {@link ChatRouter} makes that rare, e.g. while workers join or leave).
+ *
+ * A process that dies while holding a slot would leave it locked for good. A process waiting on a slot that
+ * stays locked takes it over once the owner process is gone, or after {@link #LOCK_TIMEOUT_MS} whatever the
+ * owner: the half-written record is dropped (that chat starts a new session) and the slot is unlocked. Should
+ * the owner still be alive, its late publish fails and its write is lost, counted as a conflict.
+ *
+ * A session that does not fit in a slot cannot be shared: its record is dropped so other processes do not
+ * carry on with an old copy, it lives on in this process only, and a warning is logged once per chat.
+ */
+public class SharedFileSessionStore implements SessionStore, Closeable {
+
+    private static final int MAGIC = 0x53455353; // "SESS"
+    private static final int FORMAT = 2;
+    private static final int HEADER_SIZE = 4096;
+    private static final int WORKER_TABLE = 64;
+    private static final int MAX_WORKERS = 64;
+    private static final int WORKER_ENTRY = 32;
+    private static final int SLOT_HEADER = 40;
+    private static final int REMOVED = -1;
+    static final long WORKER_TIMEOUT_MS = 10_000;
+    private static final long HEARTBEAT_MS = 2_000;
+    static final long LOCK_TIMEOUT_MS = 5_000;
+    // How long a waiter must see the same locked version before judging the owner: a writer notes its pid
+    // just after taking the lock, so the pid read earlier may still be the previous owner's
+    private static final long LOCK_OBSERVE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long PID = ProcessHandle.current().pid();
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int slotCount;
+    private final int slotSize;
+
+    // Objects handed out by this process, reused while their slot version is unchanged
+    private final Map<Long, UserSession> local = new ConcurrentHashMap<>();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final Set<Long> oversized = ConcurrentHashMap.newKeySet();
+
+    private long workerId;
+    private int workerEntry = -1;
+    private ScheduledExecutorService membership;
+
+    public SharedFileSessionStore(File file, int slotCount, int slotSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                // first process formats the file
+                long size = HEADER_SIZE + (long) slotCount * slotSize;
+                if (slotSize % 8 != 0 || size > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Bad session store geometry: " + slotCount + " x " + slotSize);
+                }
+                MappedByteBuffer m = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                m.order(ByteOrder.nativeOrder());
+                m.putInt(4, FORMAT);
+                m.putInt(8, slotCount);
+                m.putInt(12, slotSize);
+                m.putInt(0, MAGIC);
+                m.force();
+            }
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+            head.order(ByteOrder.nativeOrder());
+            if (head.getInt(0) != MAGIC || head.getInt(4) != FORMAT) {
+                throw new IOException("Not a session store file of format " + FORMAT + " (delete it to start afresh): " + file);
+            }
+            this.slotCount = head.getInt(8);
+            this.slotSize = head.getInt(12);
+        } finally {
+            lock.release();
+        }
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * slotSize);
+        map.order(ByteOrder.nativeOrder());
+    }
+
+    // =====================
+    // SessionStore
+    // =====================
+
+    @Override
+    public UserSession get(long chatId) {
+        if (oversized.contains(chatId)) return local.get(chatId);
+        int slot = find(chatId, false);
+        if (slot < 0) {
+            local.remove(chatId);
+            return null;
+        }
+        int off = offset(slot);
+        byte[] buf = new byte[slotSize - SLOT_HEADER];
+        while (true) {
+            long v = stableVersion(off);
+            UserSession cached = local.get(chatId);
+            if (cached != null && cached.storeVersion == v) return cached;
+
+            int len = map.getInt(off + 16);
+            if (len > 0) map.get(off + SLOT_HEADER, buf, 0, len);
+            VarHandle.acquireFence();
+            if ((long) LONGS.getAcquire(map, off + 8) != v) continue; // torn read, retry
+
+            if (len <= 0) {
+                local.remove(chatId);
+                return null;
+            }
+            UserSession s = SessionCodec.decode(buf, len);
+            s.storeVersion = v;
+            local.put(chatId, s);
+            return s;
+        }
+    }
+
+    @Override
+    public void put(UserSession session) {
+        write(session);
+    }
+
+    @Override
+    public void flush(long chatId) {
+        UserSession s = local.get(chatId);
+        if (s != null) write(s);
+    }
+
+    @Override
+    public void remove(long chatId) {
+        local.remove(chatId);
+        oversized.remove(chatId);
+        dropRecord(chatId);
+    }
+
+    private void dropRecord(long chatId) {
+        int slot = find(chatId, false);
+        if (slot < 0) return;
+        int off = offset(slot);
+        long v = lockSlot(off);
+        map.putInt(off + 16, REMOVED);
+        unlock(off, v);
+    }
+
+    @Override
+    public void removeIf(Predicate<UserSession> predicate) {
+        for (int i = 0; i < slotCount; i++) {
+            int off = offset(i);
+            long v = (long) LONGS.getAcquire(map, off + 8);
+            if (v == 0 || (v & 1) != 0 || map.getInt(off + 16) <= 0) continue;
+            long chatId = (long) LONGS.getAcquire(map, off);
+            UserSession s = get(chatId);
+            if (s != null && predicate.test(s)) {
+                // only remove if nobody rewrote it since we looked
+                if (tryLock(off, s.storeVersion)) {
+                    map.putInt(off + 16, REMOVED);
+                    unlock(off, s.storeVersion);
+                    local.remove(chatId);
+                }
+            }
+        }
+        for (Long chatId : oversized) {
+            UserSession s = local.get(chatId);
+            if (s == null || predicate.test(s)) {
+                oversized.remove(chatId);
+                local.remove(chatId);
+            }
+        }
+    }
+
+    /** Writes that found the record changed by another process since it was read. */
+    public long getConflictCount() {
+        return conflicts.get();
+    }
+
+    /** Slots found locked by a dead or stuck writer and taken over. */
+    public long getRecoveredCount() {
+        return recovered.get();
+    }
+
+    /** Chats whose session is too large to share. */
+    public int getOversizedCount() {
+        return oversized.size();
+    }
+
+    // =====================
+    // Slots
+    // =====================
+
+    private void write(UserSession session) {
+        byte[] data = SessionCodec.encode(session);
+        long chatId = session.getChatId();
+        if (data.length > slotSize - SLOT_HEADER) {
+            if (oversized.add(chatId)) {
+                System.err.println("Session for chat " + chatId + " is " + data.length + " bytes, more than the "
+                        + (slotSize - SLOT_HEADER) + " a slot holds (session.slotSize); other workers will not see it");
+            }
+            dropRecord(chatId);
+            session.storeVersion = 0;
+            local.put(chatId, session);
+            return;
+        }
+        oversized.remove(chatId);
+        int off = offset(find(chatId, true));
+        long v = lockSlot(off);
+        if (session.storeVersion != 0 && session.storeVersion != v) conflicts.incrementAndGet();
+        map.put(off + SLOT_HEADER, data, 0, data.length);
+        map.putInt(off + 16, data.length);
+        session.storeVersion = unlock(off, v) ? v + 2 : 0;
+        local.put(chatId, session);
+    }
+
+    /** Takes the slot's lock, waiting while another writer holds it, and returns the even version it had. */
+    private long lockSlot(int off) {
+        while (true) {
+            long v = stableVersion(off);
+            if (tryLock(off, v)) return v;
+        }
+    }
+
+    /** CASes the slot's version from even v to v+1 and notes this process as the holder. */
+    private boolean tryLock(int off, long v) {
+        if (!LONGS.compareAndSet(map, off + 8, v, v + 1)) return false;
+        LONGS.setRelease(map, off + 24, PID);
+        LONGS.setRelease(map, off + 32, System.currentTimeMillis());
+        return true;
+    }
+
+    /** Publishes v+2; false if the lock was taken over meanwhile, so the write is lost. */
+    private boolean unlock(int off, long v) {
+        if (LONGS.compareAndSet(map, off + 8, v + 1, v + 2)) return true;
+        conflicts.incrementAndGet();
+        System.err.println("Session slot at " + off + " was taken over while this process held it; write dropped");
+        return false;
+    }
+
+    /** Waits while a writer holds the slot, taking the slot over from a dead or stuck one. */
+    private long stableVersion(int off) {
+        long seen = -1;
+        long seenSince = 0;
+        long checkedAt = 0;
+        while (true) {
+            long v = (long) LONGS.getAcquire(map, off + 8);
+            if ((v & 1) == 0) return v;
+            long now = System.nanoTime();
+            if (v != seen) {
+                seen = v;
+                seenSince = now;
+                checkedAt = now;
+            } else if (now - seenSince > LOCK_OBSERVE_NANOS && now - checkedAt > LOCK_OBSERVE_NANOS) {
+                checkedAt = now;
+                if (lockAbandoned(off)) recover(off, v);
+                continue;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private boolean lockAbandoned(int off) {
+        long owner = (long) LONGS.getAcquire(map, off + 24);
+        long lockedAt = (long) LONGS.getAcquire(map, off + 32);
+        boolean ownerDead = owner != 0 && ProcessHandle.of(owner).map(p -> !p.isAlive()).orElse(true);
+        return ownerDead || System.currentTimeMillis() - lockedAt > LOCK_TIMEOUT_MS;
+    }
+
+    // Locks the slot as v+2 (still odd, so the old owner's publish of v+1 fails), drops the half-written record
+    // and unlocks it as v+3
+    private void recover(int off, long v) {
+        long owner = (long) LONGS.getAcquire(map, off + 24);
+        if (!LONGS.compareAndSet(map, off + 8, v, v + 2)) return; // released, or another waiter got there first
+        LONGS.setRelease(map, off + 24, PID);
+        LONGS.setRelease(map, off + 32, System.currentTimeMillis());
+        map.putInt(off + 16, REMOVED);
+        LONGS.setRelease(map, off + 8, v + 3);
+        recovered.incrementAndGet();
+        System.err.println("Session slot at " + off + " was left locked by process " + owner + "; record dropped and slot unlocked");
+    }
+
+    /**
+     * Linear probing. Returns the slot holding the chat (live or removed), or -1.
+     * With claim=true a missing chat gets the first removed slot on its chain or the first never-used slot.
+     */
+    private int find(long chatId, boolean claim) {
+        while (true) {
+            int start = (int) Math.floorMod(ChatRouter.mix(chatId), (long) slotCount);
+            int reusable = -1;
+            long reusableVersion = 0;
+            boolean raced = false;
+            for (int probe = 0; probe < slotCount; probe++) {
+                int i = (start + probe) % slotCount;
+                int off = offset(i);
+                long v = stableVersion(off);
+                if (v == 0) {
+                    if (!claim) return -1;
+                    int target = reusable >= 0 ? reusable : i;
+                    if (claimSlot(offset(target), chatId, reusable >= 0 ? reusableVersion : 0)) return target;
+                    raced = true;
+                    break;
+                }
+                if ((long) LONGS.getAcquire(map, off) == chatId) return i;
+                if (reusable < 0 && map.getInt(off + 16) == REMOVED) {
+                    reusable = i;
+                    reusableVersion = v;
+                }
+            }
+            if (raced) continue;
+            if (claim && reusable >= 0 && claimSlot(offset(reusable), chatId, reusableVersion)) return reusable;
+            if (!claim) return -1;
+            if (reusable < 0) throw new IllegalStateException("Shared session store is full (" + slotCount + " slots)");
+        }
+    }
+
+    private boolean claimSlot(int off, long chatId, long expectedVersion) {
+        if (!tryLock(off, expectedVersion)) return false;
+        LONGS.setRelease(map, off, chatId);
+        map.putInt(off + 16, REMOVED);
+        return unlock(off, expectedVersion);
+    }
+
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    // =====================
+    // Worker membership
+    // =====================
+
+    /**
+     * Registers this process in the worker table and keeps the router's ring in sync with live workers.
+     *
+     * @param port port of this worker's webhook server, used by peers to forward updates
+     * @return this worker's id
+     */
+    public synchronized long joinCluster(int port, ChatRouter router) {
+        if (membership != null) return workerId;
+        workerId = ProcessHandle.current().pid();
+        long now = System.currentTimeMillis();
+        for (int k = 0; k < MAX_WORKERS && workerEntry < 0; k++) {
+            int e = WORKER_TABLE + k * WORKER_ENTRY;
+            long cur = (long) LONGS.getAcquire(map, e);
+            long hb = (long) LONGS.getAcquire(map, e + 8);
+            boolean free = cur == 0 || cur == workerId || now - hb > WORKER_TIMEOUT_MS;
+            if (free && LONGS.compareAndSet(map, e, cur, workerId)) {
+                INTS.setRelease(map, e + 16, port);
+                LONGS.setRelease(map, e + 8, now);
+                workerEntry = e;
+            }
+        }
+        if (workerEntry < 0) throw new IllegalStateException("Worker table is full");
+
+        router.update(liveWorkers());
+        membership = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-membership");
+            t.setDaemon(true);
+            return t;
+        });
+        membership.scheduleAtFixedRate(() -> {
+            LONGS.setRelease(map, workerEntry + 8, System.currentTimeMillis());
+            router.update(liveWorkers());
+        }, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        return workerId;
+    }
+
+    public List<ChatRouter.Worker> liveWorkers() {
+        long now = System.currentTimeMillis();
+        List<ChatRouter.Worker> live = new ArrayList<>();
+        for (int k = 0; k < MAX_WORKERS; k++) {
+            int e = WORKER_TABLE + k * WORKER_ENTRY;
+            long id = (long) LONGS.getAcquire(map, e);
+            long hb = (long) LONGS.getAcquire(map, e + 8);
+            if (id != 0 && now - hb <= WORKER_TIMEOUT_MS) {
+                live.add(new ChatRouter.Worker(id, (int) INTS.getAcquire(map, e + 16)));
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (membership != null) {
+            membership.shutdownNow();
+            LONGS.compareAndSet(map, workerEntry, workerId, 0L);
+            membership = null;
+        }
+        map.force();
+        channel.close();
+    }
+}
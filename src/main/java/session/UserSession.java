@@ -96,4 +96,47 @@ public class UserSession {
     public model.Folder getDirectAccessRoot() { return directAccessRoot; }
     public void setDirectAccessRoot(model.Folder f) { this.directAccessRoot = f; touch(); }
 
+
+    /**
+     * Admin bulk selection:
+     */
+
+    private boolean selecting = false;
+    private final java.util.Set<String> selectedIds = new java.util.LinkedHashSet<>(); // ids in the current folder
+
+    public boolean isSelecting() { return selecting; }
+    public void setSelecting(boolean v) {
+        this.selecting = v;
+        if (!v) selectedIds.clear();
+        touch();
+    }
+
+    public java.util.Set<String> getSelectedIds() { return selectedIds; }
+
+
+    /**
+     * Shared session store support:
+     */
+
+    // version of the store record this object was read from / last written as
+    long storeVersion;
+
+    // folder ids read back from a shared store; resolved against the folder tree by the bot
+    String restoredCurrentFolderId;
+    String restoredDirectAccessRootId;
+
+    void setLastActivity(Instant lastActivity) { this.lastActivity = lastActivity; }
+
+    /** True when this session came from another process and its folder references still need resolving. */
+    public boolean needsFolderResolution() {
+        return restoredCurrentFolderId != null || restoredDirectAccessRootId != null;
+    }
+
+    public void resolveFolders(java.util.function.Function<String, Folder> lookup) {
+        if (restoredCurrentFolderId != null) currentFolder = lookup.apply(restoredCurrentFolderId);
+        if (restoredDirectAccessRootId != null) directAccessRoot = lookup.apply(restoredDirectAccessRootId);
+        restoredCurrentFolderId = null;
+        restoredDirectAccessRootId = null;
+    }
+
 }
@@ -0,0 +1,111 @@
+package bot;
+
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.Update;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static bot.UpdateDispatcher.Priority.ADMIN;
+import static bot.UpdateDispatcher.Priority.CALLBACK;
+import static bot.UpdateDispatcher.Priority.COMMAND;
+import static bot.UpdateDispatcher.Priority.UPLOAD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpdateDispatcherTest {
+
+    private final UpdateDispatcher dispatcher = new UpdateDispatcher(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void stop() {
+        release.countDown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void chatUpdatesStayInOrderWhateverTheirClass() throws InterruptedException {
+        UpdateDispatcher.Tenant tenant = blockedTenant();
+        // An upload sent after folder taps belongs to the folder tapped last; a prompt's answer follows the prompt
+        tenant.dispatch(update(1, "tap-a"), CALLBACK);
+        tenant.dispatch(update(1, "upload-1"), UPLOAD);
+        tenant.dispatch(update(1, "tap-b"), CALLBACK);
+        tenant.dispatch(update(1, "admin:setpwd"), ADMIN);
+        tenant.dispatch(update(1, "answer"), COMMAND);
+        tenant.dispatch(update(1, "upload-2"), UPLOAD);
+
+        awaitHandled(6);
+
+        assertEquals(List.of("1:tap-a", "1:upload-1", "1:tap-b", "1:admin:setpwd", "1:answer", "1:upload-2"), handled);
+    }
+
+    @Test
+    void tapsOfOtherChatsOvertakeAChatsUploads() throws InterruptedException {
+        UpdateDispatcher.Tenant tenant = blockedTenant();
+        for (int i = 0; i < 20; i++) tenant.dispatch(update(1, "upload-" + i), UPLOAD);
+        for (int i = 0; i < 3; i++) tenant.dispatch(update(2, "tap-" + i), CALLBACK);
+
+        awaitHandled(23);
+
+        int lastTap = handled.lastIndexOf("2:tap-2");
+        assertTrue(lastTap < 8, "taps handled by position " + lastTap + " of " + handled);
+        assertEquals(List.of("2:tap-0", "2:tap-1", "2:tap-2"), handled.stream().filter(h -> h.startsWith("2:")).toList());
+        assertEquals("1:upload-19", handled.get(handled.size() - 1));
+    }
+
+    @Test
+    void classBeyondItsLimitIsShed() {
+        UpdateDispatcher.Tenant tenant = blockedTenant();
+        for (int i = 0; i < ADMIN.maxQueued; i++) {
+            assertEquals(UpdateDispatcher.Admission.QUEUED, tenant.dispatch(update(1, "admin:" + i), ADMIN));
+        }
+
+        assertEquals(UpdateDispatcher.Admission.SHED, tenant.dispatch(update(1, "admin:more"), ADMIN));
+        assertEquals(UpdateDispatcher.Admission.QUEUED, tenant.dispatch(update(1, "tap"), CALLBACK));
+        assertEquals(ADMIN.maxQueued + 1, tenant.queued());
+    }
+
+    // A tenant whose lane is held by a first update until the test releases it, so the rest queue up
+    private UpdateDispatcher.Tenant blockedTenant() {
+        CountDownLatch blocking = new CountDownLatch(1);
+        UpdateDispatcher.Tenant tenant = dispatcher.register(u -> {
+            String text = u.message().text();
+            if (text.equals("block")) {
+                blocking.countDown();
+                await(release);
+                return;
+            }
+            handled.add(u.message().chat().id() + ":" + text);
+        });
+        tenant.dispatch(update(0, "block"), COMMAND);
+        await(blocking);
+        return tenant;
+    }
+
+    private void awaitHandled(int count) throws InterruptedException {
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (handled.size() < count && System.nanoTime() < deadline) Thread.sleep(5);
+        assertEquals(count, handled.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Update update(long chatId, String text) {
+        return BotUtils.parseUpdate("{\"update_id\":1,\"message\":{\"message_id\":1,\"chat\":{\"id\":" + chatId
+                + "},\"text\":\"" + text + "\"}}");
+    }
+}
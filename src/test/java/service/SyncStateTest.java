@@ -0,0 +1,105 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyncStateTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void entriesAndTokenSurviveReopening() throws IOException {
+        Path file = dir.resolve("state.jsonl");
+        SyncState state = new SyncState(file);
+        state.put(folder("docs", "f1"));
+        state.put(file("docs/a.txt", "id-a", 10));
+        state.put(file("docs/b.txt", "id-b", 20));
+        state.remove("docs/b.txt");
+        state.setPageToken("42");
+        state.close();
+        Files.writeString(file, "{\"op\":\"put\",\"entry\":{\"pa", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        SyncState reopened = new SyncState(file);
+
+        assertEquals(2, reopened.size());
+        assertEquals(10, reopened.get("docs/a.txt").size());
+        assertNull(reopened.get("docs/b.txt"));
+        assertEquals("42", reopened.pageToken());
+        reopened.put(file("docs/c.txt", "id-c", 30)); // not lost in the torn line
+        reopened.close();
+        SyncState again = new SyncState(file);
+        assertEquals(30, again.get("docs/c.txt").size());
+        again.close();
+    }
+
+    @Test
+    void entryWithKnownDriveIdAtNewPathIsAMove() throws IOException {
+        SyncState state = new SyncState(dir.resolve("state.jsonl"));
+        state.put(file("a/x.txt", "id-x", 1));
+
+        state.put(file("b/x.txt", "id-x", 1));
+
+        assertNull(state.get("a/x.txt"));
+        assertEquals("b/x.txt", state.pathOf("id-x"));
+        assertEquals(1, state.size());
+        state.close();
+    }
+
+    @Test
+    void underListsOnlyTheSubtree() throws IOException {
+        SyncState state = new SyncState(dir.resolve("state.jsonl"));
+        state.put(folder("a", "fa"));
+        state.put(file("a/1.txt", "i1", 1));
+        state.put(folder("a/b", "fb"));
+        state.put(file("a/b/2.txt", "i2", 1));
+        state.put(file("a.txt", "i3", 1));      // sorts between "a" and "a/"
+        state.put(file("a0/3.txt", "i4", 1));   // '0' follows '/'
+        state.put(file("ab/4.txt", "i5", 1));
+
+        List<String> paths = state.under("a").stream().map(SyncState.Entry::path).toList();
+
+        assertEquals(List.of("a/1.txt", "a/b", "a/b/2.txt"), paths);
+        assertEquals(7, state.under("").size());
+        state.close();
+    }
+
+    @Test
+    void logIsCompactedToLiveEntries() throws IOException {
+        Path file = dir.resolve("state.jsonl");
+        SyncState state = new SyncState(file);
+        for (int i = 0; i < 12_000; i++) state.put(file("f" + (i % 10) + ".txt", "id" + (i % 10), i));
+        state.setPageToken("t");
+        state.flush();
+
+        assertEquals(11, Files.readAllLines(file).size(), "ten entries and the token");
+        state.put(file("new.txt", "id-new", 1)); // appends keep working after the rewrite
+        state.close();
+
+        SyncState reopened = new SyncState(file);
+        assertEquals(11, reopened.size());
+        assertEquals(11_999, reopened.get("f9.txt").size());
+        assertEquals("t", reopened.pageToken());
+        assertTrue(Files.notExists(dir.resolve("state.jsonl.tmp")));
+        reopened.close();
+    }
+
+    private static SyncState.Entry file(String path, String driveId, long size) {
+        return new SyncState.Entry(path, false, size, 1000, "md5-" + size, driveId);
+    }
+
+    private static SyncState.Entry folder(String path, String driveId) {
+        return new SyncState.Entry(path, true, 0, 0, null, driveId);
+    }
+}
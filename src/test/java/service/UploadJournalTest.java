@@ -0,0 +1,89 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadJournalTest {
+
+    private static final long DEAD_PID = 999_999_999L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void pendingJobsOfDeadProcessAreAdopted() throws IOException {
+        Path orphan = dir.resolve(DEAD_PID + ".wal");
+        Files.writeString(orphan, String.join("\n",
+                queued("a", 1, "file-a"),
+                queued("b", 1, "file-b"),
+                queued("c", 2, "file-c"),
+                "{\"op\":\"done\",\"id\":\"a\",\"detail\":\"drive-a\"}",
+                "{\"op\":\"failed\",\"id\":\"c\",\"detail\":\"too large\"}",
+                queued("d", 2, "file-d"),
+                "{\"op\":\"queued\",\"job\":{\"id\":\"e\",\"chatId\":3,\"telegra") // torn by the crash
+                + "\n", StandardCharsets.UTF_8);
+
+        UploadJournal journal = new UploadJournal(dir);
+
+        List<UploadJournal.Job> pending = journal.pending();
+        assertEquals(List.of("b", "d"), pending.stream().map(UploadJournal.Job::id).toList());
+        assertEquals("file-b", pending.get(0).telegramFileId());
+        assertFalse(Files.exists(orphan), "the adopted log is deleted");
+        String own = Files.readString(dir.resolve(ProcessHandle.current().pid() + ".wal"));
+        assertTrue(own.contains("\"id\":\"b\"") && own.contains("\"id\":\"d\""), "adopted jobs are in the new log");
+    }
+
+    @Test
+    void sameFileQueuedByTwoDeadProcessesIsResumedOnce() throws IOException {
+        Files.writeString(dir.resolve(DEAD_PID + ".wal"), queued("x", 5, "same") + "\n");
+        Files.writeString(dir.resolve((DEAD_PID - 1) + ".wal"), queued("y", 5, "same") + "\n");
+
+        UploadJournal journal = new UploadJournal(dir);
+
+        assertEquals(1, journal.pendingCount());
+    }
+
+    @Test
+    void logOfLiveProcessIsLeftToIt() throws IOException {
+        long livePid = ProcessHandle.current().parent().map(ProcessHandle::pid).orElseThrow();
+        Path live = dir.resolve(livePid + ".wal");
+        Files.writeString(live, queued("z", 7, "theirs") + "\n");
+
+        UploadJournal journal = new UploadJournal(dir);
+
+        assertEquals(0, journal.pendingCount());
+        assertTrue(Files.exists(live));
+    }
+
+    @Test
+    void fileIsNotQueuedTwiceWhilePending() throws IOException {
+        UploadJournal journal = new UploadJournal(dir);
+
+        UploadJournal.Job job = journal.begin(1, "user", "tg-1", "u-1", "a.txt", 10, "folder", "Folder", false);
+        assertNotNull(job);
+        assertNull(journal.begin(1, "user", "tg-1", "u-1", "a.txt", 10, "folder", "Folder", false));
+
+        journal.done(job, "drive-1");
+        assertEquals(0, journal.pendingCount());
+        assertNotNull(journal.begin(1, "user", "tg-1", "u-1", "a.txt", 10, "folder", "Folder", false));
+    }
+
+    private static String queued(String id, long chatId, String telegramFileId) {
+        return "{\"op\":\"queued\",\"job\":{\"id\":\"" + id + "\",\"chatId\":" + chatId + ",\"user\":\"user\","
+                + "\"telegramFileId\":\"" + telegramFileId + "\",\"fileUniqueId\":\"" + telegramFileId + "\","
+                + "\"name\":\"" + id + ".bin\",\"size\":100,\"folderId\":\"folder\",\"folderName\":\"Folder\","
+                + "\"created\":1,\"encrypt\":false}}";
+    }
+}
@@ -0,0 +1,134 @@
+package session;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class SharedFileSessionStoreTest {
+
+    // Layout from the class comment: 4096-byte header, then slots of key(8) version(8) length(4) pad(4)
+    // lockOwnerPid(8) lockedAtMillis(8) payload
+    private static final int HEADER = 4096;
+    private static final int SLOTS = 64;
+    private static final int SLOT_SIZE = 1024;
+
+    @TempDir
+    Path dir;
+
+    private File file;
+    private SharedFileSessionStore store;
+
+    @BeforeEach
+    void open() throws IOException {
+        file = dir.resolve("sessions.dat").toFile();
+        store = new SharedFileSessionStore(file, SLOTS, SLOT_SIZE);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        store.close();
+    }
+
+    @Test
+    void sessionWrittenByOneProcessIsReadByAnother() throws IOException {
+        UserSession s = new UserSession(42L);
+        s.setAwaitingWhat("FOLDER_PWD:abc");
+        store.put(s);
+
+        try (SharedFileSessionStore other = new SharedFileSessionStore(file, SLOTS, SLOT_SIZE)) {
+            UserSession read = other.get(42L);
+            assertNotNull(read);
+            assertEquals("FOLDER_PWD:abc", read.getAwaitingWhat());
+        }
+    }
+
+    @Test
+    void slotLeftLockedByDeadProcessIsTakenOver() throws IOException {
+        store.put(new UserSession(42L));
+        lockSlot(42L, 999_999_999L, System.currentTimeMillis()); // no such process
+
+        long start = System.nanoTime();
+        assertNull(get(42L), "the half-written record is dropped");
+        assertTrue(System.nanoTime() - start < 2_000_000_000L, "recovered well before the stale-lock timeout");
+        assertEquals(1, store.getRecoveredCount());
+
+        store.put(new UserSession(42L));
+        assertNotNull(store.get(42L));
+    }
+
+    @Test
+    void staleLockOfLiveProcessIsTakenOver() throws IOException {
+        store.put(new UserSession(42L));
+        long longAgo = System.currentTimeMillis() - SharedFileSessionStore.LOCK_TIMEOUT_MS - 1000;
+        lockSlot(42L, ProcessHandle.current().pid(), longAgo);
+
+        assertNull(get(42L));
+        assertEquals(1, store.getRecoveredCount());
+    }
+
+    @Test
+    void oversizedSessionStaysLocalAndIsNotShared() throws IOException {
+        store.put(new UserSession(42L));
+        UserSession big = new UserSession(42L);
+        for (int i = 0; i < 200; i++) big.getUnlockedFolderIds().add("folder-" + i);
+        store.put(big);
+
+        assertEquals(1, store.getOversizedCount());
+        assertEquals(200, store.get(42L).getUnlockedFolderIds().size());
+        try (SharedFileSessionStore other = new SharedFileSessionStore(file, SLOTS, SLOT_SIZE)) {
+            assertNull(other.get(42L), "no stale copy is left for other processes");
+        }
+
+        store.remove(42L);
+        assertEquals(0, store.getOversizedCount());
+        assertNull(store.get(42L));
+    }
+
+    // Reads on another thread, so a store that never recovers fails the test instead of hanging it
+    private UserSession get(long chatId) {
+        UserSession[] result = new UserSession[1];
+        Thread t = new Thread(() -> result[0] = store.get(chatId));
+        t.setDaemon(true);
+        t.start();
+        try {
+            t.join(SharedFileSessionStore.LOCK_TIMEOUT_MS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (t.isAlive()) fail("get() still waiting on the locked slot");
+        return result[0];
+    }
+
+    // Makes the chat's slot look like a writer locked it and died before publishing
+    private void lockSlot(long chatId, long ownerPid, long lockedAt) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            m.order(ByteOrder.nativeOrder());
+            for (int i = 0; i < SLOTS; i++) {
+                int off = HEADER + i * SLOT_SIZE;
+                if (m.getLong(off) != chatId) continue;
+                m.putLong(off + 8, m.getLong(off + 8) + 1);
+                m.putLong(off + 24, ownerPid);
+                m.putLong(off + 32, lockedAt);
+                m.force();
+                return;
+            }
+        }
+        fail("no slot for chat " + chatId);
+    }
+}